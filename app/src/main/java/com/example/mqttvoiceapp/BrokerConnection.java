@@ -0,0 +1,350 @@
+package com.example.mqttvoiceapp;
+
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One broker connection. Nothing here blocks the caller: connects complete
+ * through callbacks, and a single reconnect state machine (the client
+ * library's own automatic reconnect is off) retries with capped exponential
+ * backoff and full jitter. The backoff only resets once a connection has
+ * stayed up for {@link #STABLE_AFTER_MS}.
+ *
+ * <p>Topic changes are applied to the live client with
+ * {@link #updateTopics(BrokerConfig)}, which only subscribes and unsubscribes
+ * the difference; the session and the TCP connection are kept.
+ *
+ * <p>Subclasses plug in a protocol version: {@link Mqtt3BrokerConnection} and
+ * {@link Mqtt5BrokerConnection}. Use {@link #create} to get the one the config
+ * asks for.
+ */
+public abstract class BrokerConnection {
+    public interface Listener {
+        void onConnecting(String brokerUrl, int attempt);
+
+        void onConnected(boolean reconnect);
+
+        void onConnectFailed(Throwable cause, long retryDelayMs);
+
+        void onConnectionLost(Throwable cause, long retryDelayMs);
+
+        void onSubscribeFailed(Throwable cause);
+
+        /**
+         * A topic change from {@link #updateTopics} has been applied. {@code live} is false
+         * when there was no connection; the change then takes effect on the next connect.
+         */
+        void onTopicsUpdated(int added, int removed, long elapsedMs, boolean live);
+
+        /**
+         * Called on the MQTT client's callback thread; must not block.
+         *
+         * @param expiresAtNanos the publisher's message expiry in System.nanoTime() terms, 0 for none
+         * @param source         must be told when the message is done with; null if the
+         *                       transport acknowledges by itself
+         */
+        void onMessage(String topic, byte[] payload, int messageId, int qos, boolean duplicate,
+                       long expiresAtNanos, MessageSource source);
+    }
+
+    /** Completion of an asynchronous client operation. */
+    protected interface ActionCallback {
+        void onSuccess();
+
+        void onFailure(Throwable cause);
+    }
+
+    private enum State { IDLE, CONNECTING, CONNECTED, WAITING_RETRY, STOPPED }
+
+    private static final long BASE_RETRY_DELAY_MS = 1000;
+    private static final long MAX_RETRY_DELAY_MS = 120000;
+    private static final long STABLE_AFTER_MS = 30000;
+    protected static final long DISCONNECT_TIMEOUT_MS = 1000;
+
+    protected final ScheduledExecutorService scheduler;
+    protected final Listener listener;
+    private final ReconnectBackoff backoff = new ReconnectBackoff(BASE_RETRY_DELAY_MS, MAX_RETRY_DELAY_MS);
+    private final ConnectionMetrics metrics = new ConnectionMetrics();
+
+    private BrokerConfig config;
+    // Removed while disconnected; a persistent session still holds them until they are unsubscribed
+    private final Set<String> staleTopics = new LinkedHashSet<>();
+    private State state = State.IDLE;
+    // Bumped on every attempt so late callbacks from an abandoned attempt are ignored
+    private int generation;
+    private boolean everConnected;
+    private ScheduledFuture<?> retryTask;
+    private ScheduledFuture<?> stableTask;
+
+    protected BrokerConnection(BrokerConfig config, ScheduledExecutorService scheduler, Listener listener) {
+        this.config = config;
+        this.scheduler = scheduler;
+        this.listener = listener;
+    }
+
+    /**
+     * Builds the connection for {@code config.mqttVersion}.
+     *
+     * @param persistence  where in-flight messages are kept; MQTT 5 connections
+     *                     reach it through {@link Mqtt5Persistence}
+     * @param freeCapacity how many more messages we can take right now; MQTT 5
+     *                     advertises it to the broker as Receive Maximum, sampled
+     *                     once per connect
+     */
+    public static BrokerConnection create(BrokerConfig config, MqttClientPersistence persistence,
+                                          ScheduledExecutorService scheduler, Listener listener,
+                                          Mqtt5BrokerConnection.CapacitySource freeCapacity) {
+        if (config.mqttVersion == BrokerConfig.MQTT_VERSION_5) {
+            return new Mqtt5BrokerConnection(config, new Mqtt5Persistence(persistence, config.getBrokerUrl()),
+                scheduler, listener, freeCapacity);
+        }
+        return new Mqtt3BrokerConnection(config, persistence, scheduler, listener);
+    }
+
+    public synchronized BrokerConfig getConfig() {
+        return config;
+    }
+
+    public ConnectionMetrics getMetrics() {
+        return metrics;
+    }
+
+    public synchronized boolean isConnected() {
+        return state == State.CONNECTED;
+    }
+
+    public synchronized void start() {
+        if (state != State.IDLE) {
+            return;
+        }
+        connect();
+    }
+
+    /**
+     * Stops retrying and disconnects. The connection cannot be started again.
+     * Only the state change happens on the calling thread, which is often the
+     * main thread; disconnecting can wait up to {@link #DISCONNECT_TIMEOUT_MS}
+     * for the broker, so it is queued on the scheduler.
+     */
+    public void stop() {
+        synchronized (this) {
+            state = State.STOPPED;
+            generation++;
+            cancel(retryTask);
+            cancel(stableTask);
+        }
+        try {
+            scheduler.execute(this::closeClient);
+        } catch (RejectedExecutionException e) {
+            // The scheduler is already shut down; nothing else would release the client
+            closeClient();
+        }
+    }
+
+    /**
+     * Switches to {@code newConfig}, which must only differ from the current
+     * config in its topics; anything else needs a new connection. Only the
+     * added and removed filters are sent to the broker.
+     */
+    public void updateTopics(BrokerConfig newConfig) {
+        final long startNanos = System.nanoTime();
+        List<String> added = new ArrayList<>();
+        List<String> removed = new ArrayList<>();
+        boolean live;
+        synchronized (this) {
+            List<String> oldTopics = config.getTopics();
+            List<String> newTopics = newConfig.getTopics();
+            for (String topic : newTopics) {
+                if (!oldTopics.contains(topic)) {
+                    added.add(topic);
+                }
+            }
+            for (String topic : oldTopics) {
+                if (!newTopics.contains(topic)) {
+                    removed.add(topic);
+                }
+            }
+            config = newConfig;
+            staleTopics.removeAll(newTopics);
+            live = state == State.CONNECTED;
+            if (!live) {
+                staleTopics.addAll(removed);
+            }
+        }
+        if (!live || (added.isEmpty() && removed.isEmpty())) {
+            listener.onTopicsUpdated(added.size(), removed.size(), 0, live);
+            return;
+        }
+        int operations = (added.isEmpty() ? 0 : 1) + (removed.isEmpty() ? 0 : 1);
+        final AtomicInteger remaining = new AtomicInteger(operations);
+        final int addedCount = added.size();
+        final int removedCount = removed.size();
+        ActionCallback completion = new ActionCallback() {
+            @Override
+            public void onSuccess() {
+                if (remaining.decrementAndGet() == 0) {
+                    listener.onTopicsUpdated(addedCount, removedCount,
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos), true);
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable cause) {
+                // Counted as done so a later success does not report the change as applied
+                remaining.set(-1);
+                listener.onSubscribeFailed(cause);
+            }
+        };
+        if (!removed.isEmpty()) {
+            unsubscribeClient(removed, completion);
+        }
+        if (!added.isEmpty()) {
+            subscribeClient(added, completion);
+        }
+    }
+
+    /**
+     * Creates the client if needed and starts connecting it. Called holding the
+     * lock; must not block.
+     */
+    protected abstract void connectClient(BrokerConfig config, ActionCallback callback) throws Exception;
+
+    /** Subscribes on the current client at QoS 1; does nothing if there is none. */
+    protected abstract void subscribeClient(List<String> topics, ActionCallback callback);
+
+    protected abstract void unsubscribeClient(List<String> topics, ActionCallback callback);
+
+    /** Disconnects and releases the client. Called on the scheduler, without the lock. */
+    protected abstract void closeClient();
+
+    /** For subclasses: counts a received message and hands it to the listener. */
+    protected void deliver(String topic, byte[] payload, int messageId, int qos, boolean duplicate,
+                           long expiresAtNanos, MessageSource source) {
+        metrics.onMessage();
+        listener.onMessage(topic, payload, messageId, qos, duplicate, expiresAtNanos, source);
+    }
+
+    /** For subclasses: the client reported that an established connection dropped. */
+    protected synchronized void connectionLost(Throwable cause) {
+        if (state != State.CONNECTED) {
+            return;
+        }
+        metrics.onConnectionLost();
+        cancel(stableTask);
+        long delay = scheduleRetry();
+        listener.onConnectionLost(cause, delay);
+    }
+
+    // Must hold the lock
+    private void connect() {
+        state = State.CONNECTING;
+        final int attemptGeneration = ++generation;
+        listener.onConnecting(config.getBrokerUrl(), backoff.getAttempt() + 1);
+        metrics.onAttempt();
+        final long startNanos = System.nanoTime();
+        try {
+            connectClient(config, new ActionCallback() {
+                @Override
+                public void onSuccess() {
+                    onConnectSuccess(attemptGeneration, startNanos);
+                }
+
+                @Override
+                public void onFailure(Throwable cause) {
+                    onConnectFailure(attemptGeneration, cause);
+                }
+            });
+        } catch (Exception e) {
+            onConnectFailure(attemptGeneration, e);
+        }
+    }
+
+    private void onConnectSuccess(int attemptGeneration, long startNanos) {
+        boolean reconnect;
+        synchronized (this) {
+            if (attemptGeneration != generation || state != State.CONNECTING) {
+                return;
+            }
+            metrics.onSuccess(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+            state = State.CONNECTED;
+            reconnect = everConnected;
+            everConnected = true;
+            stableTask = scheduler.schedule(() -> markStable(attemptGeneration),
+                STABLE_AFTER_MS, TimeUnit.MILLISECONDS);
+        }
+        listener.onConnected(reconnect);
+        subscribeAll();
+    }
+
+    private synchronized void onConnectFailure(int attemptGeneration, Throwable cause) {
+        if (attemptGeneration != generation || state != State.CONNECTING) {
+            return;
+        }
+        metrics.onFailure(cause);
+        long delay = scheduleRetry();
+        listener.onConnectFailed(cause, delay);
+    }
+
+    private synchronized void markStable(int connectedGeneration) {
+        if (connectedGeneration == generation && state == State.CONNECTED) {
+            backoff.reset();
+        }
+    }
+
+    // Must hold the lock
+    private long scheduleRetry() {
+        state = State.WAITING_RETRY;
+        long delay = backoff.nextDelayMs();
+        final int retryGeneration = generation;
+        retryTask = scheduler.schedule(() -> {
+            synchronized (BrokerConnection.this) {
+                if (retryGeneration == generation && state == State.WAITING_RETRY) {
+                    connect();
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+        return delay;
+    }
+
+    private void subscribeAll() {
+        List<String> topics;
+        List<String> stale;
+        synchronized (this) {
+            topics = config.getTopics();
+            // A clean session starts without subscriptions, so stale ones only matter for persistent sessions
+            stale = config.persistentSession ? new ArrayList<>(staleTopics) : new ArrayList<>();
+            staleTopics.clear();
+        }
+        ActionCallback failureOnly = new ActionCallback() {
+            @Override
+            public void onSuccess() {
+            }
+
+            @Override
+            public void onFailure(Throwable cause) {
+                listener.onSubscribeFailed(cause);
+            }
+        };
+        if (!stale.isEmpty()) {
+            unsubscribeClient(stale, failureOnly);
+        }
+        if (!topics.isEmpty()) {
+            subscribeClient(topics, failureOnly);
+        }
+    }
+
+    private static void cancel(ScheduledFuture<?> task) {
+        if (task != null) {
+            task.cancel(false);
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package com.example.mqttvoiceapp;
+
+import org.eclipse.paho.client.mqttv3.MqttException;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Counters for connect attempts, their latency, why they failed and the messages received. */
+public class ConnectionMetrics {
+    // Counted on the receive path, so without taking the lock
+    private final AtomicLong messages = new AtomicLong();
+    private long sampledMessages;
+    private long sampledAtNanos;
+    private double messagesPerSecond;
+    private long attempts;
+    private long successes;
+    private long failures;
+    private long connectionsLost;
+    private long lastLatencyMs = -1;
+    private long totalLatencyMs;
+    private long maxLatencyMs;
+    private String lastFailureReason;
+    // Paho reason code -> count
+    private final Map<Integer, Long> failuresByReason = new TreeMap<>();
+
+    public synchronized void onAttempt() {
+        attempts++;
+    }
+
+    public synchronized void onSuccess(long latencyMs) {
+        successes++;
+        lastLatencyMs = latencyMs;
+        totalLatencyMs += latencyMs;
+        maxLatencyMs = Math.max(maxLatencyMs, latencyMs);
+    }
+
+    public synchronized void onFailure(Throwable cause) {
+        failures++;
+        int reasonCode = cause instanceof MqttException ? ((MqttException) cause).getReasonCode() : -1;
+        Long count = failuresByReason.get(reasonCode);
+        failuresByReason.put(reasonCode, count == null ? 1 : count + 1);
+        lastFailureReason = describe(cause);
+    }
+
+    public synchronized void onConnectionLost() {
+        connectionsLost++;
+    }
+
+    /** Called on the client's callback thread for every message received. */
+    public void onMessage() {
+        messages.incrementAndGet();
+    }
+
+    /** Updates {@link #getMessagesPerSecond()} with the messages since the previous sample. */
+    public synchronized void sampleRate(long nowNanos) {
+        long count = messages.get();
+        if (sampledAtNanos != 0 && nowNanos > sampledAtNanos) {
+            messagesPerSecond = (count - sampledMessages) * (double) TimeUnit.SECONDS.toNanos(1)
+                / (nowNanos - sampledAtNanos);
+        }
+        sampledMessages = count;
+        sampledAtNanos = nowNanos;
+    }
+
+    public long getMessages() {
+        return messages.get();
+    }
+
+    public synchronized double getMessagesPerSecond() {
+        return messagesPerSecond;
+    }
+
+    public synchronized long getAttempts() {
+        return attempts;
+    }
+
+    public synchronized long getSuccesses() {
+        return successes;
+    }
+
+    public synchronized long getFailures() {
+        return failures;
+    }
+
+    public synchronized long getConnectionsLost() {
+        return connectionsLost;
+    }
+
+    public synchronized long getLastLatencyMs() {
+        return lastLatencyMs;
+    }
+
+    public synchronized long getAverageLatencyMs() {
+        return successes == 0 ? -1 : totalLatencyMs / successes;
+    }
+
+    public synchronized long getMaxLatencyMs() {
+        return maxLatencyMs;
+    }
+
+    public synchronized String getLastFailureReason() {
+        return lastFailureReason;
+    }
+
+    public synchronized Map<Integer, Long> getFailuresByReason() {
+        return new TreeMap<>(failuresByReason);
+    }
+
+    public synchronized String summary() {
+        StringBuilder builder = new StringBuilder()
+            .append("连接尝试 ").append(attempts)
+            .append("，成功 ").append(successes)
+            .append("，失败 ").append(failures)
+            .append("，断开 ").append(connectionsLost)
+            .append("，消息 ").append(messages.get())
+            .append(String.format(Locale.ROOT, " (%.1f 条/秒)", messagesPerSecond));
+        if (successes > 0) {
+            builder.append("，耗时 ").append(lastLatencyMs).append(" ms (平均 ")
+                .append(getAverageLatencyMs()).append("，最大 ").append(maxLatencyMs).append(")");
+        }
+        if (lastFailureReason != null) {
+            builder.append("，最近失败: ").append(lastFailureReason);
+        }
+        return builder.toString();
+    }
+
+    static String describe(Throwable cause) {
+        if (cause == null) {
+            return "未知原因";
+        }
+        if (cause instanceof MqttException) {
+            MqttException e = (MqttException) cause;
+            return e.getMessage() + " (" + e.getReasonCode() + ")";
+        }
+        if (cause instanceof org.eclipse.paho.mqttv5.common.MqttException) {
+            org.eclipse.paho.mqttv5.common.MqttException e = (org.eclipse.paho.mqttv5.common.MqttException) cause;
+            return e.getMessage() + " (" + e.getReasonCode() + ")";
+        }
+        return cause.getMessage() != null ? cause.getMessage() : cause.getClass().getSimpleName();
+    }
+}
@@ -0,0 +1,66 @@
+package com.example.mqttvoiceapp;
+
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.RecyclerView;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/** Rows of {@link MessageJournal} entries, newest first; pages are added at the end as they load. */
+public class HistoryAdapter extends RecyclerView.Adapter<HistoryAdapter.ViewHolder> {
+    private final List<MessageJournal.Entry> entries = new ArrayList<>();
+    // Adapters are only used on the main thread, so one formatter is enough
+    private final SimpleDateFormat timeFormat = new SimpleDateFormat("MM-dd HH:mm:ss", Locale.getDefault());
+    private final Date date = new Date();
+
+    public void addPage(List<MessageJournal.Entry> page) {
+        int start = entries.size();
+        entries.addAll(page);
+        notifyItemRangeInserted(start, page.size());
+    }
+
+    public void clear() {
+        entries.clear();
+        notifyDataSetChanged();
+    }
+
+    /** The entry the next page continues from, or null if nothing is loaded. */
+    public MessageJournal.Entry last() {
+        return entries.isEmpty() ? null : entries.get(entries.size() - 1);
+    }
+
+    @NonNull
+    @Override
+    public ViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(parent.getContext()).inflate(R.layout.item_message_log, parent, false);
+        return new ViewHolder(view);
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull ViewHolder holder, int position) {
+        MessageJournal.Entry entry = entries.get(position);
+        date.setTime(entry.timeMillis);
+        holder.textView.setText(timeFormat.format(date) + " [" + entry.topic + "] " + entry.text);
+    }
+
+    @Override
+    public int getItemCount() {
+        return entries.size();
+    }
+
+    static class ViewHolder extends RecyclerView.ViewHolder {
+        final TextView textView;
+
+        ViewHolder(View itemView) {
+            super(itemView);
+            textView = (TextView) itemView;
+        }
+    }
+}
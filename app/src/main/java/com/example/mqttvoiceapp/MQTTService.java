@@ -1,89 +1,269 @@
 package com.example.mqttvoiceapp;
 
-import android.app.Notification;
 import android.app.NotificationChannel;
 import android.app.NotificationManager;
-import android.app.PendingIntent;
 import android.app.Service;
-import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
+import android.os.Binder;
 import android.os.Build;
 import android.os.IBinder;
 import android.speech.tts.TextToSpeech;
 import android.util.Log;
-import androidx.core.app.NotificationCompat;
-import org.eclipse.paho.client.mqttv3.*;
-import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.nio.charset.StandardCharsets;
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 public class MQTTService extends Service {
-    // Actions for broadcasts
-    public static final String ACTION_MQTT_MESSAGE_RECEIVED = "com.example.mqttvoiceapp.MQTT_MESSAGE_RECEIVED";
-    public static final String ACTION_MQTT_STATUS_UPDATE = "com.example.mqttvoiceapp.MQTT_STATUS_UPDATE";
-
-    // Keys for extra data in intents
-    public static final String EXTRA_MQTT_MESSAGE = "com.example.mqttvoiceapp.MQTT_MESSAGE";
-    public static final String EXTRA_MQTT_STATUS = "com.example.mqttvoiceapp.MQTT_STATUS";
-
     private static final String TAG = "MQTTService";
     private static final int NOTIFICATION_ID = 1;
     private static final String CHANNEL_ID = "MQTT_CHANNEL";
+    private static final int DEFAULT_QUEUE_CAPACITY = 256;
+    private static final long DROP_REPORT_INTERVAL_MS = 5000;
+    private static final long SPEECH_STATS_INTERVAL_MS = 5000;
+    private static final long SPEECH_WATCHDOG_INTERVAL_MS = 5000;
+    private static final long DEFAULT_SPEECH_MAX_AGE_MS = 60000;
+    private static final int DEFAULT_SPEECH_MAX_QUEUED = 50;
+    private static final int EVENT_REPLAY_CAPACITY = 100;
+    private static final int DEFAULT_SPEECH_CACHE_KB = 8 * 1024;
+    // Dropping repeated content is opt-in: the same alert may legitimately be sent twice
+    private static final long DEFAULT_DEDUP_WINDOW_MS = 0;
+    // Brokers resend unacknowledged messages after a reconnect, which retries may delay for minutes
+    private static final long DEFAULT_REDELIVERY_WINDOW_MS = 10 * 60 * 1000;
+    private static final int DEFAULT_DEDUP_CAPACITY = 2048;
+    private static final int DEFAULT_PENDING_SPEECH_CAPACITY = 32;
+    private static final long DEFAULT_NOTIFICATION_INTERVAL_MS = 1000;
+    /** Name of the broker configured in MainActivity's own fields. */
+    private static final String PRIMARY_BROKER = "主服务器";
+    // Every connection brings the MQTT client's own comms threads (three per client), so
+    // their number is capped; MainActivity refuses to save a longer list
+    static final int MAX_BROKERS = 4;
+    private static final long NOTIFICATION_STATS_INTERVAL_MS = 5000;
+
+    /** Binder for in-process clients; gives direct access to the service. */
+    public class LocalBinder extends Binder {
+        public MQTTService getService() {
+            return MQTTService.this;
+        }
+    }
+
+    private final IBinder binder = new LocalBinder();
+    private final ServiceEventChannel eventChannel = new ServiceEventChannel(EVENT_REPLAY_CAPACITY);
+    private final LatencyTracker latencyTracker = new LatencyTracker();
 
-    private MqttClient mqttClient;
+    // Broker name -> connection, the primary broker first. A leaf lock: nothing else is
+    // locked while holding it, so connection callbacks may take it
+    private final Map<String, BrokerConnection> connections = new LinkedHashMap<>();
     private TextToSpeech textToSpeech;
     private ScheduledExecutorService scheduler;
-    private String brokerIp, brokerPort, protocol, topic, clientId, username, password;
+    // Guarded by pendingSpeech; until the engine is ready speech requests wait there
     private boolean isTtsInitialized = false;
+    private boolean isTtsFailed = false;
+    private final ArrayDeque<SpeechRequest> pendingSpeech = new ArrayDeque<>();
+    private int pendingSpeechCapacity;
+    private long pendingSpeechDropped;
+    // Startup timing, measured from onCreate
+    private long createdNanos;
+    private volatile boolean firstConnectReported;
+    private MessagePipeline messagePipeline;
+    private long lastReportedDrops = 0;
+    private long lastReportedDuplicates = 0;
+    // Only used on the pipeline worker thread
+    private DuplicateFilter duplicateFilter;
+    private volatile TopicRouter topicRouter;
+    private long lastDropReportTime = 0;
+    private SpeechScheduler speechScheduler;
+    private SpeechOutput speechOutput;
+    // Only used on the pipeline worker thread
+    private final PayloadDecoder payloadDecoder = new PayloadDecoder(new PayloadClassifier());
+    private final List<PayloadRecord> decodedRecords = new ArrayList<>();
+    private MessageJournal history;
+    private volatile long lastSpeechStatsTime = 0;
+    private ServiceNotifier notifier;
+    // Only used on the scheduler thread
+    private long lastProcessedCount;
 
     @Override
     public void onCreate() {
         super.onCreate();
+        createdNanos = System.nanoTime();
         createNotificationChannel();
+        notifier = new ServiceNotifier(this, CHANNEL_ID, NOTIFICATION_ID,
+            getSharedPreferences("mqtt_config", MODE_PRIVATE)
+                .getLong("notification_interval_ms", DEFAULT_NOTIFICATION_INTERVAL_MS));
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        history = MessageHistory.get(this);
+        loadRoutes();
+        initSpeechScheduler();
         initTextToSpeech();
+        initMessagePipeline();
+        scheduler.scheduleWithFixedDelay(this::updateNotificationStats,
+            NOTIFICATION_STATS_INTERVAL_MS, NOTIFICATION_STATS_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        scheduler.scheduleWithFixedDelay(this::checkSpeechStalled,
+            SPEECH_WATCHDOG_INTERVAL_MS, SPEECH_WATCHDOG_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    // Runs on the scheduler; some engines drop callbacks, which would stop speech for good
+    private void checkSpeechStalled() {
+        if (speechScheduler.checkStalled(System.nanoTime())) {
+            Log.w(TAG, "播报未收到完成回调，已跳过");
+            broadcastStatus("播报超时，已跳过，累计 " + speechScheduler.getStalledCount() + " 条");
+        }
     }
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
-        if (intent != null && intent.getExtras() != null) {
-            brokerIp = intent.getStringExtra("BROKER_IP");
-            brokerPort = intent.getStringExtra("BROKER_PORT");
-            protocol = intent.getStringExtra("PROTOCOL");
-            topic = intent.getStringExtra("TOPIC");
-            clientId = intent.getStringExtra("CLIENT_ID");
-            username = intent.getStringExtra("USERNAME");
-            password = intent.getStringExtra("PASSWORD");
+        // Go foreground first; connecting must not hold up the start deadline
+        startForeground(NOTIFICATION_ID, notifier.buildInitial("服务已启动"));
+        if (intent == null) {
+            // Restarted by the system after START_STICKY: reconnect with the last saved settings
+            BrokerConfig savedConfig = loadSavedBrokerConfig();
+            if (savedConfig != null) {
+                broadcastStatus("服务已由系统重启，使用已保存的配置重新连接");
+                reconfigure(loadBrokerConfigs(savedConfig));
+            } else {
+                broadcastStatus("服务已由系统重启，但没有已保存的连接配置");
+            }
+        } else if (intent.getExtras() != null) {
+            BrokerConfig newConfig = new BrokerConfig(
+                intent.getStringExtra("BROKER_IP"),
+                intent.getStringExtra("BROKER_PORT"),
+                intent.getStringExtra("PROTOCOL"),
+                intent.getStringExtra("TOPIC"),
+                intent.getStringExtra("CLIENT_ID"),
+                intent.getStringExtra("USERNAME"),
+                intent.getStringExtra("PASSWORD"),
+                intent.getBooleanExtra("PERSISTENT_SESSION", false),
+                intent.getIntExtra("MQTT_VERSION", BrokerConfig.MQTT_VERSION_3));
+
+            // Routes and additional brokers may have been edited together with the connection settings
+            loadRoutes();
+            reconfigure(loadBrokerConfigs(newConfig));
+        }
+        return START_STICKY;
+    }
 
-            // Always try to start the connection when the service is started with details
-            startMQTTConnection();
+    /** Reads the settings MainActivity saved on its last start; null if they are incomplete. */
+    private BrokerConfig loadSavedBrokerConfig() {
+        SharedPreferences prefs = getSharedPreferences("mqtt_config", MODE_PRIVATE);
+        String brokerIp = prefs.getString("broker_ip", "");
+        String topic = prefs.getString("topic", "");
+        String clientId = prefs.getString("client_id", "");
+        if (brokerIp.isEmpty() || topic.isEmpty() || clientId.isEmpty()) {
+            return null;
         }
+        return new BrokerConfig(
+            brokerIp,
+            prefs.getString("broker_port", "1883"),
+            prefs.getString("protocol", "tcp://"),
+            topic,
+            clientId,
+            prefs.getString("username", ""),
+            prefs.getString("password", ""),
+            prefs.getBoolean("persistent_session", false),
+            prefs.getInt("mqtt_version", BrokerConfig.MQTT_VERSION_3));
+    }
 
-        startForeground(NOTIFICATION_ID, createNotification("服务已启动"));
-        return START_STICKY;
+    /**
+     * The primary broker followed by the additional ones saved as
+     * "extra_brokers": a JSON array of objects with "name", "host", "port",
+     * "protocol", "topic", "clientId", "username", "password",
+     * "persistentSession" and "mqttVersion", of which only "host" and "topic"
+     * are required. An invalid list, or one with more than
+     * {@link #MAX_BROKERS} brokers in all, is reported and leaves only the primary.
+     */
+    private Map<String, BrokerConfig> loadBrokerConfigs(BrokerConfig primary) {
+        Map<String, BrokerConfig> configs = new LinkedHashMap<>();
+        configs.put(PRIMARY_BROKER, primary);
+        String json = getSharedPreferences("mqtt_config", MODE_PRIVATE).getString("extra_brokers", "");
+        if (json.trim().isEmpty()) {
+            return configs;
+        }
+        try {
+            JSONArray array = new JSONArray(json);
+            for (int i = 0; i < array.length(); i++) {
+                JSONObject item = array.getJSONObject(i);
+                String name = item.optString("name", "服务器" + (i + 2));
+                BrokerConfig config = new BrokerConfig(
+                    item.getString("host"),
+                    item.optString("port", "1883"),
+                    item.optString("protocol", "tcp://"),
+                    item.getString("topic"),
+                    item.optString("clientId", primary.clientId + "_" + name),
+                    item.optString("username", ""),
+                    item.optString("password", ""),
+                    item.optBoolean("persistentSession", false),
+                    item.optInt("mqttVersion", BrokerConfig.MQTT_VERSION_3));
+                if (configs.containsKey(name)) {
+                    throw new IllegalArgumentException("服务器名称重复: " + name);
+                }
+                for (BrokerConfig other : configs.values()) {
+                    // The broker would keep disconnecting one of the two
+                    if (other.getBrokerUrl().equals(config.getBrokerUrl()) && other.clientId.equals(config.clientId)) {
+                        throw new IllegalArgumentException("同一服务器上的客户端ID重复: " + config.getBrokerUrl());
+                    }
+                }
+                if (configs.size() >= MAX_BROKERS) {
+                    // Only a list saved by an older version gets here; dropping some silently would hide it
+                    throw new IllegalArgumentException("最多连接 " + MAX_BROKERS + " 个服务器（含主服务器）");
+                }
+                configs.put(name, config);
+            }
+        } catch (JSONException | IllegalArgumentException e) {
+            Log.e(TAG, "附加服务器配置无效", e);
+            broadcastStatus("附加服务器配置无效: " + e.getMessage());
+            configs.keySet().retainAll(Collections.singleton(PRIMARY_BROKER));
+        }
+        return configs;
     }
 
     @Override
     public IBinder onBind(Intent intent) {
-        return null;
+        return binder;
+    }
+
+    public ServiceEventChannel getEventChannel() {
+        return eventChannel;
+    }
+
+    public LatencyTracker getLatencyTracker() {
+        return latencyTracker;
     }
 
     @Override
     public void onDestroy() {
         super.onDestroy();
+        notifier.cancelPending();
+        // Upstream first: no new messages, then nothing queued to speak, then the engine
         disconnectMQTT();
+        if (messagePipeline != null) {
+            messagePipeline.stop();
+        }
+        speechScheduler.clear();
+        speechOutput.release();
         if (textToSpeech != null) {
             textToSpeech.stop();
             textToSpeech.shutdown();
         }
         if (scheduler != null) {
-            scheduler.shutdownNow();
+            // Queued behind the disconnects of disconnectMQTT, so they still run
+            scheduler.execute(scheduler::shutdownNow);
         }
+        // The last batch would otherwise wait for its timer, which a dying process may not reach
+        history.requestFlush();
     }
 
     private void createNotificationChannel() {
@@ -98,6 +278,43 @@ public class MQTTService extends Service {
         }
     }
 
+    private void initSpeechScheduler() {
+        SharedPreferences prefs = getSharedPreferences("mqtt_config", MODE_PRIVATE);
+        pendingSpeechCapacity = Math.max(1, prefs.getInt("pending_speech_capacity", DEFAULT_PENDING_SPEECH_CAPACITY));
+        speechOutput = new SpeechOutput(new File(getCacheDir(), "speech"),
+            prefs.getInt("speech_cache_kb", DEFAULT_SPEECH_CACHE_KB) * 1024L);
+        speechScheduler = new SpeechScheduler(
+            speechOutput,
+            this::reportSpeechStats,
+            prefs.getLong("speech_max_age_ms", DEFAULT_SPEECH_MAX_AGE_MS),
+            prefs.getInt("speech_max_queued", DEFAULT_SPEECH_MAX_QUEUED));
+        speechOutput.setProgressListener(new SpeechOutput.ProgressListener() {
+            @Override
+            public void onUtteranceStart(String utteranceId) {
+                latencyTracker.onSpeechStart(utteranceId, System.nanoTime());
+            }
+
+            @Override
+            public void onUtteranceFinished(String utteranceId) {
+                latencyTracker.onSpeechDone(utteranceId, System.nanoTime());
+                speechScheduler.onUtteranceFinished(utteranceId);
+            }
+        });
+    }
+
+    private void reportSpeechStats(int queued, long stalenessMs, long expired, long coalesced, long preempted) {
+        long now = System.currentTimeMillis();
+        if (now - lastSpeechStatsTime < SPEECH_STATS_INTERVAL_MS) {
+            return;
+        }
+        if (queued == 0 && expired == 0 && coalesced == 0 && preempted == 0) {
+            return;
+        }
+        lastSpeechStatsTime = now;
+        broadcastStatus("播报队列: " + queued + " 条，延迟 " + stalenessMs + " ms，过期 " + expired
+            + "，合并 " + coalesced + "，抢占 " + preempted + "；" + speechOutput.getCache().summary());
+    }
+
     private void initTextToSpeech() {
         textToSpeech = new TextToSpeech(this, status -> {
             if (status == TextToSpeech.SUCCESS) {
@@ -107,179 +324,509 @@ public class MQTTService extends Service {
                     result == TextToSpeech.LANG_NOT_SUPPORTED) {
                     Log.e(TAG, "中文语音不支持");
                     broadcastStatus("TTS中文语言不支持或数据丢失");
+                    onTtsUnavailable();
                 } else {
                     Log.d(TAG, "TTS引擎初始化成功，语言已设置为中文");
+                    speechOutput.attach(textToSpeech, Locale.CHINESE);
                     broadcastStatus("TTS中文语言设置成功");
-                    isTtsInitialized = true;
+                    onTtsReady();
+                    warmUpSpeechCache();
                 }
             } else {
                 Log.e(TAG, "TTS初始化失败");
                 broadcastStatus("TTS引擎初始化失败，状态码: " + status);
+                onTtsUnavailable();
             }
         });
     }
 
-    private void startMQTTConnection() {
-        // Disconnect any existing client before creating a new one
-        disconnectMQTT();
+    /**
+     * Marks the engine ready and speaks what arrived meanwhile, oldest first.
+     * Every buffered item is spoken: the replay drops the coalescing keys, so
+     * items with the same key or topic do not replace each other, and an
+     * urgent item waits its turn instead of cutting off the one before it.
+     */
+    private void onTtsReady() {
+        int flushed;
+        long dropped;
+        synchronized (pendingSpeech) {
+            isTtsInitialized = true;
+            flushed = pendingSpeech.size();
+            dropped = pendingSpeechDropped;
+            // Submitted under the lock so a message arriving right now cannot overtake the backlog
+            SpeechRequest request;
+            while ((request = pendingSpeech.pollFirst()) != null) {
+                speechScheduler.submit(new SpeechRequest(null, request.text,
+                    Math.min(request.priority, SpeechScheduler.PRIORITY_HIGH), request.arrivalNanos,
+                    request.expiresAtNanos, request.utteranceId, request.voice));
+            }
+        }
+        StringBuilder status = new StringBuilder("TTS就绪，启动后 ").append(elapsedSinceCreateMs()).append(" ms");
+        if (flushed > 0) {
+            status.append("，补播 ").append(flushed).append(" 条");
+        }
+        if (dropped > 0) {
+            status.append("，等待期间丢弃 ").append(dropped).append(" 条");
+        }
+        broadcastStatus(status.toString());
+    }
 
-        try {
-            String brokerUrl = protocol + brokerIp + ":" + brokerPort;
-            Log.d(TAG, "连接MQTT服务器: " + brokerUrl);
-            broadcastStatus("正在连接: " + brokerUrl);
-            updateNotification("正在连接: " + brokerUrl);
-
-            mqttClient = new MqttClient(brokerUrl, clientId, new MemoryPersistence());
-            
-            MqttConnectOptions options = new MqttConnectOptions();
-            options.setCleanSession(true);
-            options.setKeepAliveInterval(60);
-            options.setConnectionTimeout(30);
-            options.setAutomaticReconnect(true);
-
-            if (username != null && !username.isEmpty()) {
-                options.setUserName(username);
+    private void onTtsUnavailable() {
+        int discarded;
+        synchronized (pendingSpeech) {
+            isTtsFailed = true;
+            discarded = pendingSpeech.size();
+            pendingSpeech.clear();
+        }
+        if (discarded > 0) {
+            broadcastStatus("TTS不可用，已丢弃待播报消息 " + discarded + " 条");
+        }
+    }
+
+    private long elapsedSinceCreateMs() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - createdNanos);
+    }
+
+    /**
+     * Compiles the route_config preference: a JSON array of objects with a
+     * "filter" (MQTT topic filter) and optional "locale", "rate", "pitch",
+     * "priority" and "mode" (both, speak_only or display_only).
+     */
+    private void loadRoutes() {
+        String json = getSharedPreferences("mqtt_config", MODE_PRIVATE).getString("route_config", "");
+        List<TopicRouter.Route> routes = new ArrayList<>();
+        if (!json.trim().isEmpty()) {
+            try {
+                JSONArray array = new JSONArray(json);
+                for (int i = 0; i < array.length(); i++) {
+                    JSONObject item = array.getJSONObject(i);
+                    String mode = item.optString("mode", "both");
+                    String locale = item.optString("locale", null);
+                    String priority = item.optString("priority", null);
+                    RouteProfile profile = new RouteProfile(
+                        locale != null ? Locale.forLanguageTag(locale) : RouteProfile.DEFAULT.locale,
+                        (float) item.optDouble("rate", RouteProfile.DEFAULT.speechRate),
+                        (float) item.optDouble("pitch", RouteProfile.DEFAULT.pitch),
+                        priority != null ? SpeechScheduler.parsePriority(priority) : RouteProfile.PRIORITY_FROM_PAYLOAD,
+                        !"display_only".equals(mode),
+                        !"speak_only".equals(mode));
+                    routes.add(new TopicRouter.Route(item.getString("filter"), profile));
+                }
+            } catch (JSONException | IllegalArgumentException e) {
+                Log.e(TAG, "路由配置无效", e);
+                broadcastStatus("路由配置无效: " + e.getMessage());
+                routes.clear();
             }
-            if (password != null && !password.isEmpty()) {
-                options.setPassword(password.toCharArray());
+        }
+        topicRouter = TopicRouter.compile(routes, RouteProfile.DEFAULT);
+        Log.d(TAG, "已加载路由规则: " + routes.size() + " 条");
+    }
+
+    private void initMessagePipeline() {
+        SharedPreferences prefs = getSharedPreferences("mqtt_config", MODE_PRIVATE);
+        int capacity = prefs.getInt("queue_capacity", DEFAULT_QUEUE_CAPACITY);
+        OverflowPolicy policy = OverflowPolicy.fromName(
+            prefs.getString("overflow_policy", null), OverflowPolicy.DROP_OLDEST);
+        duplicateFilter = new DuplicateFilter(
+            prefs.getLong("dedup_window_ms", DEFAULT_DEDUP_WINDOW_MS),
+            prefs.getLong("redelivery_window_ms", DEFAULT_REDELIVERY_WINDOW_MS),
+            prefs.getInt("dedup_capacity", DEFAULT_DEDUP_CAPACITY));
+        messagePipeline = new MessagePipeline(capacity, policy, this::handleMessage,
+            (message, error) -> Log.e(TAG, "处理消息失败: " + message.topic, error));
+        messagePipeline.start();
+        Log.d(TAG, "消息队列容量: " + messagePipeline.getCapacity() + "，溢出策略: " + policy);
+    }
+
+    private void warmUpSpeechCache() {
+        String phrases = getSharedPreferences("mqtt_config", MODE_PRIVATE).getString("warmup_phrases", "");
+        List<String> list = new ArrayList<>();
+        for (String line : phrases.split("\n")) {
+            if (!line.trim().isEmpty()) {
+                list.add(line.trim());
             }
+        }
+        if (!list.isEmpty()) {
+            int queued = speechOutput.warmUp(list);
+            broadcastStatus("预合成语音: " + queued + " 条");
+        }
+    }
 
-            mqttClient.setCallback(new MqttCallbackExtended() {
-                @Override
-                public void connectComplete(boolean reconnect, String serverURI) {
-                    String status = (reconnect ? "重连" : "连接") + "成功";
-                    Log.d(TAG, status + "，订阅主题: " + topic);
-                    broadcastStatus(status);
-                    updateNotification("已连接，监听主题: " + topic);
-                    try {
-                        String[] topics = topic.split(",");
-                        int[] qos = new int[topics.length];
-                        for (int i = 0; i < topics.length; i++) {
-                            qos[i] = 1;
-                            topics[i] = topics[i].trim();
-                        }
-                        mqttClient.subscribe(topics, qos);
-                    } catch (MqttException e) {
-                        Log.e(TAG, "订阅主题失败", e);
-                        broadcastStatus("订阅主题失败");
-                    }
-                }
+    private void startConnection(String name, BrokerConfig config, long reconfigureStartNanos) {
+        // In-flight QoS 1 messages are kept on disk so they survive restarts. The two protocol
+        // versions persist differently encoded packets, so each gets its own directory; within
+        // it every client id and broker has its own log.
+        boolean mqtt5 = config.mqttVersion == BrokerConfig.MQTT_VERSION_5;
+        MappedFilePersistence persistence = new MappedFilePersistence(
+            new File(getFilesDir(), mqtt5 ? "mqtt5-persistence" : "mqtt-persistence"), scheduler);
+        ConnectionListener listener = new ConnectionListener(name, reconfigureStartNanos);
+        // Timers, pings and retries of every connection share the one scheduler thread
+        BrokerConnection connection = BrokerConnection.create(config, persistence, scheduler,
+            listener, this::freeCapacityPerConnection);
+        listener.connection = connection;
+        synchronized (connections) {
+            connections.put(name, connection);
+        }
+        // Creating the client recovers the persistence log from disk, so keep it off the main
+        // thread; it then connects while the TTS engine is still binding
+        scheduler.execute(connection::start);
+    }
 
-                @Override
-                public void connectionLost(Throwable cause) {
-                    Log.w(TAG, "连接断开", cause);
-                    broadcastStatus("连接已断开");
-                    updateNotification("连接已断开");
+    /**
+     * Applies new connection settings while the service runs. Brokers that
+     * are no longer configured are disconnected and new ones connected. For a
+     * broker that stays, a change that only touches topics is made on the
+     * live client by subscribing and unsubscribing the difference; only a
+     * different broker, client id, credentials or session mode builds a new
+     * connection. Connections whose settings did not change are not touched.
+     */
+    public void reconfigure(Map<String, BrokerConfig> configs) {
+        Map<String, BrokerConnection> removed = new LinkedHashMap<>();
+        synchronized (connections) {
+            Iterator<Map.Entry<String, BrokerConnection>> iterator = connections.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<String, BrokerConnection> entry = iterator.next();
+                if (!configs.containsKey(entry.getKey())) {
+                    removed.put(entry.getKey(), entry.getValue());
+                    iterator.remove();
                 }
+            }
+        }
+        for (Map.Entry<String, BrokerConnection> entry : removed.entrySet()) {
+            entry.getValue().stop();
+            broadcastStatus("[" + entry.getKey() + "] 已移除");
+        }
+        for (Map.Entry<String, BrokerConfig> entry : configs.entrySet()) {
+            String name = entry.getKey();
+            BrokerConfig newConfig = entry.getValue();
+            BrokerConnection connection;
+            synchronized (connections) {
+                connection = connections.get(name);
+            }
+            if (connection == null) {
+                startConnection(name, newConfig, 0);
+            } else if (newConfig.sameConnection(connection.getConfig())) {
+                connection.updateTopics(newConfig);
+            } else {
+                broadcastStatus("[" + name + "] 连接配置已变化，重新连接");
+                connection.stop();
+                startConnection(name, newConfig, System.nanoTime());
+            }
+        }
+    }
 
-                @Override
-                public void messageArrived(String receivedTopic, MqttMessage message) {
-                    // Step 1: Decode payload using UTF-8 to prevent garbled text
-                    String payload = new String(message.getPayload(), StandardCharsets.UTF_8);
-                    Log.d(TAG, "收到消息 [" + receivedTopic + "]: " + payload);
-
-                    // Step 2: Try to parse as JSON
-                    try {
-                        JSONObject json = new JSONObject(payload);
-                        // Check if it's the specific dynamic TTS format and has a "txt" field
-                        if (json.has("type") && "tts_dynamic".equals(json.getString("type")) && json.has("txt")) {
-                            String textToSpeak = json.getString("txt");
-                            // Only speak and log if the text is not empty
-                            if (textToSpeak != null && !textToSpeak.trim().isEmpty()) {
-                                Log.d(TAG, "解析到JSON指令，播报内容: " + textToSpeak);
-                                speakMessage(textToSpeak);
-                                broadcastMessage("JSON指令: " + textToSpeak);
-                            } else {
-                                Log.d(TAG, "收到空的JSON指令，已忽略");
-                                broadcastStatus("收到空的JSON指令，已忽略");
-                            }
-                        } else {
-                            // It's a valid JSON object, but not the format we are looking for. Treat as plain text.
-                            speakMessage(payload);
-                            broadcastMessage(payload);
-                        }
-                    } catch (JSONException e) {
-                        // It's not a valid JSON string, treat as plain text.
-                        Log.d(TAG, "消息不是JSON格式，按纯文本处理");
-                        speakMessage(payload);
-                        broadcastMessage(payload);
-                    }
-                }
+    /** A copy, so callers can query connections without holding the map's lock. */
+    private Map<String, BrokerConnection> snapshotConnections() {
+        synchronized (connections) {
+            return new LinkedHashMap<>(connections);
+        }
+    }
 
-                @Override
-                public void deliveryComplete(IMqttDeliveryToken token) {
-                    // Not used
-                }
-            });
+    private int connectionCount() {
+        synchronized (connections) {
+            return connections.size();
+        }
+    }
+
+    /**
+     * What each MQTT 5 connection advertises as Receive Maximum: the pipeline
+     * is shared, so its free capacity is split between the connections.
+     */
+    private int freeCapacityPerConnection() {
+        return messagePipeline.getFreeCapacity() / Math.max(1, connectionCount());
+    }
+
+    /** One line per broker: whether it is connected, its message rate and its connect statistics. */
+    public String describeConnections() {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, BrokerConnection> entry : snapshotConnections().entrySet()) {
+            BrokerConnection connection = entry.getValue();
+            if (builder.length() > 0) {
+                builder.append('\n');
+            }
+            builder.append(entry.getKey()).append(" (").append(connection.getConfig().getBrokerUrl()).append("): ")
+                .append(connection.isConnected() ? "已连接" : "未连接").append("，")
+                .append(connection.getMetrics().summary());
+        }
+        return builder.length() == 0 ? "没有连接" : builder.toString();
+    }
+
+    /**
+     * Callbacks of one connection. Each connection has its own, so failures,
+     * retries and status messages stay with the broker they came from; their
+     * messages all go into the one shared pipeline, in arrival order. The
+     * duplicate filter there matches redeliveries by packet id, which is per
+     * connection, so a message that arrives through two bridged brokers is
+     * spoken twice unless the content window ("dedup_window_ms") is turned on.
+     */
+    private class ConnectionListener implements BrokerConnection.Listener {
+        private final String name;
+        // Set when a settings change needed a new connection; reported once it is up
+        private volatile long reconfigureStartNanos;
+        volatile BrokerConnection connection;
+
+        ConnectionListener(String name, long reconfigureStartNanos) {
+            this.name = name;
+            this.reconfigureStartNanos = reconfigureStartNanos;
+        }
+
+        /** Status prefix naming the broker, once there is more than one. */
+        private String label() {
+            return connectionCount() > 1 ? "[" + name + "] " : "";
+        }
+
+        @Override
+        public void onConnecting(String brokerUrl, int attempt) {
+            Log.d(TAG, "[" + name + "] 连接MQTT服务器: " + brokerUrl + "，第 " + attempt + " 次尝试");
+            broadcastStatus(label() + "正在连接: " + brokerUrl);
+            updateConnectionNotification(name, "正在连接: " + brokerUrl);
+        }
+
+        @Override
+        public void onConnected(boolean reconnect) {
+            BrokerConfig config = connection.getConfig();
+            String status = (reconnect ? "重连" : "连接") + "成功";
+            Log.d(TAG, "[" + name + "] " + status + "，订阅主题: " + config.topic);
+            broadcastStatus(label() + status + "，" + connection.getMetrics().summary());
+            long reconfigureStart = reconfigureStartNanos;
+            if (reconfigureStart != 0) {
+                reconfigureStartNanos = 0;
+                broadcastStatus(label() + "新配置已生效，耗时 "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - reconfigureStart) + " ms");
+            }
+            if (!firstConnectReported) {
+                firstConnectReported = true;
+                broadcastStatus("MQTT就绪，启动后 " + elapsedSinceCreateMs() + " ms");
+            }
+            updateConnectionNotification(name, "已连接，监听主题: " + config.topic);
+        }
+
+        @Override
+        public void onConnectFailed(Throwable cause, long retryDelayMs) {
+            Log.e(TAG, "[" + name + "] MQTT连接失败", cause);
+            broadcastStatus(label() + "MQTT连接失败: " + ConnectionMetrics.describe(cause)
+                + "，" + formatDelay(retryDelayMs) + "后重试");
+        }
+
+        @Override
+        public void onConnectionLost(Throwable cause, long retryDelayMs) {
+            Log.w(TAG, "[" + name + "] 连接断开", cause);
+            broadcastStatus(label() + "连接已断开，" + formatDelay(retryDelayMs) + "后重连");
+            updateConnectionNotification(name, "连接已断开");
+        }
+
+        @Override
+        public void onSubscribeFailed(Throwable cause) {
+            Log.e(TAG, "[" + name + "] 订阅主题失败", cause);
+            broadcastStatus(label() + "订阅主题失败");
+        }
+
+        @Override
+        public void onTopicsUpdated(int added, int removed, long elapsedMs, boolean live) {
+            if (added == 0 && removed == 0) {
+                broadcastStatus(label() + "订阅主题未变化");
+            } else if (live) {
+                String topic = connection.getConfig().topic;
+                Log.d(TAG, "[" + name + "] 订阅主题已更新: " + topic);
+                broadcastStatus(label() + "订阅已更新: 新增 " + added + " 个，取消 " + removed + " 个，耗时 "
+                    + elapsedMs + " ms");
+                updateConnectionNotification(name, "已连接，监听主题: " + topic);
+            } else {
+                broadcastStatus(label() + "订阅已更新: 新增 " + added + " 个，取消 " + removed + " 个，连接后生效");
+            }
+        }
 
-            mqttClient.connect(options);
+        @Override
+        public void onMessage(String receivedTopic, byte[] payload, int messageId, int qos, boolean duplicate,
+                              long expiresAtNanos, MessageSource source) {
+            // Only enqueue here; decoding and speech run on the pipeline worker
+            long now = System.nanoTime();
+            messagePipeline.submit(new InboundMessage(receivedTopic, payload, messageId, qos, duplicate,
+                now, latencyTracker.onArrival(now), expiresAtNanos, source));
+        }
+    }
 
-        } catch (Exception e) {
-            Log.e(TAG, "MQTT连接失败", e);
-            broadcastStatus("MQTT连接失败: " + e.getMessage());
-            scheduleReconnect();
+    private static String formatDelay(long delayMs) {
+        return String.format(Locale.ROOT, "%.1f 秒", delayMs / 1000.0);
+    }
+
+    private void handleMessage(InboundMessage message) {
+        String receivedTopic = message.topic;
+        // Redelivered QoS 1 messages are only spoken once; repeated content only if configured
+        if (duplicateFilter.isDuplicate(message, System.currentTimeMillis())) {
+            Log.d(TAG, "重复消息已忽略 [" + receivedTopic + "]" + (message.duplicate ? " (DUP)" : ""));
+            reportDroppedMessages();
+            return;
+        }
+        if (message.isExpired(System.nanoTime())) {
+            Log.d(TAG, "消息已过期，未播报 [" + receivedTopic + "]");
+            return;
+        }
+        RouteProfile route = topicRouter.resolve(receivedTopic);
+        // A CBOR or MessagePack array is a batch; everything else decodes to one record
+        List<PayloadRecord> records = decodedRecords;
+        payloadDecoder.decode(message.payload, records);
+        latencyTracker.onDecoded(message.traceId, System.nanoTime());
+        try {
+            for (int i = 0; i < records.size(); i++) {
+                handleRecord(records.get(i), i, records.size(), message, route);
+            }
+        } finally {
+            for (int i = 0; i < records.size(); i++) {
+                records.get(i).recycle();
+            }
+            records.clear();
         }
+        reportDroppedMessages();
     }
 
-    private void scheduleReconnect() {
-        if (scheduler == null || scheduler.isShutdown()) {
-            scheduler = Executors.newSingleThreadScheduledExecutor();
+    private void handleRecord(PayloadRecord record, int part, int batchSize, InboundMessage message,
+                              RouteProfile route) {
+        String receivedTopic = message.topic;
+        switch (record.kind) {
+            case TTS_DYNAMIC: {
+                String textToSpeak = record.text();
+                Log.d(TAG, "收到消息 [" + receivedTopic + "]，解析到JSON指令，播报内容: " + textToSpeak);
+                history.append(System.currentTimeMillis(), receivedTopic, textToSpeak);
+                // Optional "priority" and "key" fields sit next to "type" and "txt"
+                int priority = route.resolvePriority(record.field(PayloadClassifier.FIELD_PRIORITY));
+                String key = record.field(PayloadClassifier.FIELD_KEY);
+                if (route.speak) {
+                    speakMessage(SpeechScheduler.batchKey(key != null ? key : receivedTopic, part, batchSize),
+                        textToSpeak, SpeechScheduler.batchPriority(priority, part), message, part, route);
+                }
+                if (route.display) {
+                    broadcastMessage("JSON指令: " + textToSpeak);
+                }
+                break;
+            }
+            case TTS_EMPTY:
+                Log.d(TAG, "收到空的JSON指令，已忽略");
+                broadcastStatus("收到空的JSON指令，已忽略");
+                break;
+            case OTHER_BINARY:
+                // Binary payloads have no text form worth reading out
+                Log.d(TAG, "收到非播报指令的二进制消息 [" + receivedTopic + "]，已忽略");
+                break;
+            case OTHER_JSON:
+            case PLAIN_TEXT:
+            default: {
+                // Plain text, or a JSON object that is not in the format we are looking for
+                String payload = record.payloadText();
+                Log.d(TAG, "收到消息 [" + receivedTopic + "]: " + payload);
+                history.append(System.currentTimeMillis(), receivedTopic, payload);
+                if (route.speak) {
+                    speakMessage(SpeechScheduler.batchKey(receivedTopic, part, batchSize), payload,
+                        SpeechScheduler.batchPriority(route.resolvePriority(null), part), message, part, route);
+                }
+                if (route.display) {
+                    broadcastMessage(payload);
+                }
+                break;
+            }
         }
-        scheduler.schedule(this::startMQTTConnection, 10, TimeUnit.SECONDS);
     }
 
-    private void speakMessage(String message) {
-        if (isTtsInitialized && textToSpeech != null) {
-            textToSpeech.speak(message, TextToSpeech.QUEUE_ADD, null, "mqtt_message");
+    private void reportDroppedMessages() {
+        long drops = messagePipeline.getDroppedCount();
+        long duplicates = duplicateFilter.getSuppressedCount();
+        long now = System.currentTimeMillis();
+        if (now - lastDropReportTime < DROP_REPORT_INTERVAL_MS) {
+            return;
+        }
+        if (drops > lastReportedDrops) {
+            Log.w(TAG, "消息队列溢出，累计丢弃: " + drops);
+            broadcastStatus("消息队列溢出，累计丢弃 " + drops + " 条，当前队列深度 "
+                + messagePipeline.getQueueDepth() + "/" + messagePipeline.getCapacity());
+            lastReportedDrops = drops;
+            lastDropReportTime = now;
+        }
+        if (duplicates > lastReportedDuplicates) {
+            broadcastStatus("已忽略重复消息，累计 " + duplicates + " 条");
+            lastReportedDuplicates = duplicates;
+            lastDropReportTime = now;
+        }
+    }
+
+    public long getSuppressedDuplicateCount() {
+        return duplicateFilter.getSuppressedCount();
+    }
+
+    private void speakMessage(String key, String text, int priority, InboundMessage message, int part,
+                              RouteProfile voice) {
+        latencyTracker.onEnqueued(message.traceId, System.nanoTime());
+        SpeechRequest request = new SpeechRequest(key, text, priority, message.arrivalNanos,
+            message.expiresAtNanos, LatencyTracker.utteranceId(message.traceId, part), voice);
+        synchronized (pendingSpeech) {
+            if (isTtsInitialized) {
+                speechScheduler.submit(request);
+            } else if (!isTtsFailed) {
+                // Hold on until the engine is ready; the oldest entry goes first when full
+                if (pendingSpeech.size() >= pendingSpeechCapacity) {
+                    pendingSpeech.pollFirst();
+                    pendingSpeechDropped++;
+                }
+                pendingSpeech.addLast(request);
+            }
         }
     }
 
     private void broadcastMessage(String message) {
-        Intent intent = new Intent(ACTION_MQTT_MESSAGE_RECEIVED);
-        intent.putExtra(EXTRA_MQTT_MESSAGE, message);
-        intent.setPackage(getPackageName()); // Make broadcast explicit
-        sendBroadcast(intent);
+        eventChannel.postMessage(message);
     }
 
     private void broadcastStatus(String status) {
-        Intent intent = new Intent(ACTION_MQTT_STATUS_UPDATE);
-        intent.putExtra(EXTRA_MQTT_STATUS, status);
-        intent.setPackage(getPackageName()); // Make broadcast explicit
-        sendBroadcast(intent);
+        eventChannel.postStatus(status);
     }
 
     private void disconnectMQTT() {
-        try {
-            if (mqttClient != null) {
-                if (mqttClient.isConnected()) {
-                    mqttClient.disconnect();
+        List<BrokerConnection> all;
+        synchronized (connections) {
+            all = new ArrayList<>(connections.values());
+            connections.clear();
+        }
+        for (BrokerConnection connection : all) {
+            connection.stop();
+        }
+    }
+
+    /**
+     * Shows the latest event of a connection. With several brokers the text
+     * also says how many are connected; counting asks every connection for its
+     * state, so it runs on the scheduler rather than inside a connection's callback.
+     */
+    private void updateConnectionNotification(String name, String contentText) {
+        scheduler.execute(() -> {
+            Map<String, BrokerConnection> all = snapshotConnections();
+            if (all.size() <= 1) {
+                notifier.setContentText(contentText);
+                return;
+            }
+            int connected = 0;
+            for (BrokerConnection connection : all.values()) {
+                if (connection.isConnected()) {
+                    connected++;
                 }
-                mqttClient.close();
-                mqttClient = null;
             }
-        } catch (MqttException e) {
-            Log.e(TAG, "断开MQTT连接失败", e);
-        }
-    }
-    
-    private void updateNotification(String contentText) {
-        Notification notification = createNotification(contentText);
-        NotificationManager manager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
-        manager.notify(NOTIFICATION_ID, notification);
-    }
-
-    private Notification createNotification(String contentText) {
-        Intent notificationIntent = new Intent(this, MainActivity.class);
-        PendingIntent pendingIntent = PendingIntent.getActivity(
-            this, 0, notificationIntent, PendingIntent.FLAG_IMMUTABLE
-        );
-
-        return new NotificationCompat.Builder(this, CHANNEL_ID)
-            .setContentTitle("MQTT语音播报服务")
-            .setContentText(contentText)
-            .setSmallIcon(android.R.drawable.ic_dialog_info)
-            .setContentIntent(pendingIntent)
-            .setOngoing(true)
-            .build();
+            notifier.setContentText("已连接 " + connected + "/" + all.size() + " · " + name + ": " + contentText);
+        });
+    }
+
+    // Runs on the scheduler; only reaches the notification manager when the numbers changed
+    private void updateNotificationStats() {
+        long now = System.nanoTime();
+        for (BrokerConnection connection : snapshotConnections().values()) {
+            connection.getMetrics().sampleRate(now);
+        }
+        long processed = messagePipeline.getProcessedCount();
+        long delta = processed - lastProcessedCount;
+        lastProcessedCount = processed;
+        int depth = messagePipeline.getQueueDepth();
+        int speechQueued = speechScheduler.getQueuedCount();
+        if (delta == 0 && depth == 0 && speechQueued == 0) {
+            notifier.setDetailText(null);
+            return;
+        }
+        notifier.setDetailText(String.format(Locale.ROOT, "%.1f 条/秒 · 队列 %d · 待播 %d",
+            delta * 1000.0 / NOTIFICATION_STATS_INTERVAL_MS, depth, speechQueued));
     }
 }
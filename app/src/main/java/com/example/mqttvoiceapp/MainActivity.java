@@ -1,34 +1,68 @@
 package com.example.mqttvoiceapp;
 
-import android.content.BroadcastReceiver;
-import android.content.Context;
+import android.content.ComponentName;
 import android.content.Intent;
-import android.content.IntentFilter;
+import android.content.ServiceConnection;
 import android.content.SharedPreferences;
 import android.os.Bundle;
-import android.text.method.ScrollingMovementMethod;
+import android.os.IBinder;
+import android.view.Choreographer;
 import android.view.View;
 import android.view.WindowManager;
 import android.widget.Button;
 import android.widget.CheckBox;
 import android.widget.EditText;
-import android.widget.ScrollView;
 import android.widget.TextView;
 import android.widget.Toast;
+import androidx.annotation.NonNull;
 import androidx.appcompat.app.AppCompatActivity;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
 
+import org.json.JSONArray;
+import org.json.JSONException;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.ParseException;
 import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class MainActivity extends AppCompatActivity {
     private EditText etBrokerIp, etBrokerPort, etProtocol, etTopic, etClientId, etUsername, etPassword;
-    private Button btnStart, btnStop, btnTestConnection;
-    private TextView tvStatus, tvMessageLog;
-    private ScrollView svLogContainer;
-    private CheckBox cbKeepScreenOn;
+    private EditText etWarmupPhrases, etRouteConfig, etExtraBrokers, etHistoryTopic, etHistoryBefore;
+    private Button btnStart, btnStop, btnTestConnection, btnRefreshLatency, btnExportLatency, btnLoadHistory;
+    private Button btnRefreshConnections;
+    private static final int DEFAULT_LOG_CAPACITY = 500;
+    private static final int HISTORY_PAGE_SIZE = 50;
+    // Rows left below the visible ones when the next history page is fetched
+    private static final int HISTORY_PREFETCH = 10;
+
+    private TextView tvStatus, tvLogEmpty, tvLatencyStats, tvHistoryEmpty, tvConnectionStats;
+    private RecyclerView rvMessageLog, rvHistory;
+    private CheckBox cbKeepScreenOn, cbPersistentSession, cbMqtt5;
     private SharedPreferences sharedPreferences;
-    private MessageReceiver messageReceiver;
+    private MQTTService boundService;
+    private boolean isBound;
+    // Last service event shown, so re-attaching to the same service only replays newer ones
+    private ServiceEventChannel lastEventChannel;
+    private long lastEventSequence;
+    private MessageLog messageLog;
+    private MessageLogAdapter messageLogAdapter;
+    // Changes since the last frame; the log view is refreshed at most once per frame
+    private int pendingInserted, pendingEvicted;
+    private boolean renderScheduled;
+    private final Choreographer.FrameCallback renderCallback = frameTimeNanos -> renderLog();
+    private HistoryAdapter historyAdapter;
+    private ExecutorService historyExecutor;
+    // Current history query; pages of an older query are discarded when they arrive
+    private int historyQuery;
+    private String historyTopic;
+    private long historyUntilMillis = Long.MAX_VALUE;
+    private boolean historyLoading, historyExhausted;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -38,15 +72,34 @@ public class MainActivity extends AppCompatActivity {
         initViews();
         loadSavedConfig();
         setClickListeners();
-        setupReceiver();
+        loadHistoryPage();
+    }
+
+    @Override
+    protected void onStart() {
+        super.onStart();
+        // Flag 0: attach if the service is running, but never create it just for the UI
+        isBound = bindService(new Intent(this, MQTTService.class), serviceConnection, 0);
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        if (boundService != null) {
+            boundService.getEventChannel().detach(eventListener);
+            boundService = null;
+        }
+        if (isBound) {
+            unbindService(serviceConnection);
+            isBound = false;
+        }
     }
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
-        if (messageReceiver != null) {
-            unregisterReceiver(messageReceiver);
-        }
+        Choreographer.getInstance().removeFrameCallback(renderCallback);
+        historyExecutor.shutdownNow();
     }
 
     private void initViews() {
@@ -57,17 +110,53 @@ public class MainActivity extends AppCompatActivity {
         etClientId = findViewById(R.id.et_client_id);
         etUsername = findViewById(R.id.et_username);
         etPassword = findViewById(R.id.et_password);
+        etWarmupPhrases = findViewById(R.id.et_warmup_phrases);
+        etRouteConfig = findViewById(R.id.et_route_config);
+        etExtraBrokers = findViewById(R.id.et_extra_brokers);
         btnStart = findViewById(R.id.btn_start);
         btnStop = findViewById(R.id.btn_stop);
         btnTestConnection = findViewById(R.id.btn_test_connection);
+        btnRefreshLatency = findViewById(R.id.btn_refresh_latency);
+        btnExportLatency = findViewById(R.id.btn_export_latency);
+        tvLatencyStats = findViewById(R.id.tv_latency_stats);
+        btnRefreshConnections = findViewById(R.id.btn_refresh_connections);
+        tvConnectionStats = findViewById(R.id.tv_connection_stats);
         tvStatus = findViewById(R.id.tv_status);
-        tvMessageLog = findViewById(R.id.tv_message_log);
-        svLogContainer = findViewById(R.id.sv_log_container);
+        tvLogEmpty = findViewById(R.id.tv_log_empty);
+        rvMessageLog = findViewById(R.id.rv_message_log);
         cbKeepScreenOn = findViewById(R.id.cb_keep_screen_on);
-
-        tvMessageLog.setMovementMethod(new ScrollingMovementMethod());
+        cbPersistentSession = findViewById(R.id.cb_persistent_session);
+        cbMqtt5 = findViewById(R.id.cb_mqtt5);
+        etHistoryTopic = findViewById(R.id.et_history_topic);
+        etHistoryBefore = findViewById(R.id.et_history_before);
+        btnLoadHistory = findViewById(R.id.btn_load_history);
+        rvHistory = findViewById(R.id.rv_history);
+        tvHistoryEmpty = findViewById(R.id.tv_history_empty);
 
         sharedPreferences = getSharedPreferences("mqtt_config", MODE_PRIVATE);
+
+        messageLog = new MessageLog(sharedPreferences.getInt("log_capacity", DEFAULT_LOG_CAPACITY));
+        messageLogAdapter = new MessageLogAdapter(messageLog);
+        LinearLayoutManager layoutManager = new LinearLayoutManager(this);
+        layoutManager.setStackFromEnd(true);
+        rvMessageLog.setLayoutManager(layoutManager);
+        rvMessageLog.setAdapter(messageLogAdapter);
+
+        historyExecutor = Executors.newSingleThreadExecutor();
+        historyAdapter = new HistoryAdapter();
+        LinearLayoutManager historyLayoutManager = new LinearLayoutManager(this);
+        rvHistory.setLayoutManager(historyLayoutManager);
+        rvHistory.setAdapter(historyAdapter);
+        rvHistory.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
+                // Pages are only read as the list is scrolled towards older entries
+                if (dy > 0 && historyLayoutManager.findLastVisibleItemPosition()
+                    >= historyAdapter.getItemCount() - HISTORY_PREFETCH) {
+                    loadHistoryPage();
+                }
+            }
+        });
     }
 
     private void loadSavedConfig() {
@@ -78,6 +167,12 @@ public class MainActivity extends AppCompatActivity {
         etClientId.setText(sharedPreferences.getString("client_id", "android_client_" + System.currentTimeMillis()));
         etUsername.setText(sharedPreferences.getString("username", ""));
         etPassword.setText(sharedPreferences.getString("password", ""));
+        cbPersistentSession.setChecked(sharedPreferences.getBoolean("persistent_session", false));
+        cbMqtt5.setChecked(sharedPreferences.getInt("mqtt_version", BrokerConfig.MQTT_VERSION_3)
+            == BrokerConfig.MQTT_VERSION_5);
+        etWarmupPhrases.setText(sharedPreferences.getString("warmup_phrases", ""));
+        etRouteConfig.setText(sharedPreferences.getString("route_config", ""));
+        etExtraBrokers.setText(sharedPreferences.getString("extra_brokers", ""));
         
         // Load and apply keep screen on setting
         boolean keepScreenOn = sharedPreferences.getBoolean("keep_screen_on", false);
@@ -95,6 +190,11 @@ public class MainActivity extends AppCompatActivity {
         editor.putString("username", etUsername.getText().toString().trim());
         editor.putString("password", etPassword.getText().toString().trim());
         editor.putBoolean("keep_screen_on", cbKeepScreenOn.isChecked());
+        editor.putBoolean("persistent_session", cbPersistentSession.isChecked());
+        editor.putInt("mqtt_version", selectedMqttVersion());
+        editor.putString("warmup_phrases", etWarmupPhrases.getText().toString().trim());
+        editor.putString("route_config", etRouteConfig.getText().toString().trim());
+        editor.putString("extra_brokers", etExtraBrokers.getText().toString().trim());
         editor.apply();
     }
 
@@ -102,6 +202,10 @@ public class MainActivity extends AppCompatActivity {
         btnStart.setOnClickListener(v -> startMQTTService());
         btnStop.setOnClickListener(v -> stopMQTTService());
         btnTestConnection.setOnClickListener(v -> testConnection());
+        btnRefreshLatency.setOnClickListener(v -> refreshLatencyStats());
+        btnExportLatency.setOnClickListener(v -> exportLatencyStats());
+        btnRefreshConnections.setOnClickListener(v -> refreshConnectionStats());
+        btnLoadHistory.setOnClickListener(v -> queryHistory());
 
         cbKeepScreenOn.setOnCheckedChangeListener((buttonView, isChecked) -> {
             updateScreenOnFlag(isChecked);
@@ -118,20 +222,12 @@ public class MainActivity extends AppCompatActivity {
         }
     }
 
-    private void setupReceiver() {
-        messageReceiver = new MessageReceiver();
-        IntentFilter intentFilter = new IntentFilter();
-        intentFilter.addAction(MQTTService.ACTION_MQTT_MESSAGE_RECEIVED);
-        intentFilter.addAction(MQTTService.ACTION_MQTT_STATUS_UPDATE);
-        registerReceiver(messageReceiver, intentFilter, RECEIVER_NOT_EXPORTED);
-    }
-
     private void startMQTTService() {
         if (!validateInput()) {
             return;
         }
         // Clear log on new start
-        tvMessageLog.setText("等待消息...");
+        clearLog();
         saveConfig();
 
         Intent serviceIntent = new Intent(this, MQTTService.class);
@@ -142,12 +238,18 @@ public class MainActivity extends AppCompatActivity {
         serviceIntent.putExtra("CLIENT_ID", etClientId.getText().toString().trim());
         serviceIntent.putExtra("USERNAME", etUsername.getText().toString().trim());
         serviceIntent.putExtra("PASSWORD", etPassword.getText().toString().trim());
+        serviceIntent.putExtra("PERSISTENT_SESSION", cbPersistentSession.isChecked());
+        serviceIntent.putExtra("MQTT_VERSION", selectedMqttVersion());
 
         startForegroundService(serviceIntent);
         updateStatus("服务已启动");
         Toast.makeText(this, "MQTT服务已启动", Toast.LENGTH_SHORT).show();
     }
 
+    private int selectedMqttVersion() {
+        return cbMqtt5.isChecked() ? BrokerConfig.MQTT_VERSION_5 : BrokerConfig.MQTT_VERSION_3;
+    }
+
     private void stopMQTTService() {
         Intent serviceIntent = new Intent(this, MQTTService.class);
         stopService(serviceIntent);
@@ -163,6 +265,104 @@ public class MainActivity extends AppCompatActivity {
         Toast.makeText(this, "连接测试功能将在服务中实现", Toast.LENGTH_SHORT).show();
     }
 
+    private void refreshLatencyStats() {
+        if (boundService == null) {
+            tvLatencyStats.setText("服务未运行");
+            return;
+        }
+        tvLatencyStats.setText(boundService.getLatencyTracker().summary());
+    }
+
+    private void refreshConnectionStats() {
+        if (boundService == null) {
+            tvConnectionStats.setText("服务未运行");
+            return;
+        }
+        tvConnectionStats.setText(boundService.describeConnections());
+    }
+
+    private void exportLatencyStats() {
+        if (boundService == null) {
+            Toast.makeText(this, "服务未运行", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        LatencyTracker tracker = boundService.getLatencyTracker();
+        File file = new File(getExternalFilesDir(null), "latency_" + System.currentTimeMillis() + ".csv");
+        new Thread(() -> {
+            String result;
+            try {
+                tracker.exportCsv(file);
+                result = "已导出: " + file.getAbsolutePath();
+            } catch (IOException e) {
+                result = "导出失败: " + e.getMessage();
+            }
+            String message = result;
+            runOnUiThread(() -> Toast.makeText(this, message, Toast.LENGTH_LONG).show());
+        }, "latency-export").start();
+    }
+
+    private void queryHistory() {
+        String topic = etHistoryTopic.getText().toString().trim();
+        String before = etHistoryBefore.getText().toString().trim();
+        long untilMillis = Long.MAX_VALUE;
+        if (!before.isEmpty()) {
+            SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm", Locale.ROOT);
+            format.setLenient(false);
+            try {
+                untilMillis = format.parse(before).getTime() - 1;
+            } catch (ParseException e) {
+                Toast.makeText(this, "时间格式应为 yyyy-MM-dd HH:mm", Toast.LENGTH_SHORT).show();
+                return;
+            }
+        }
+        historyQuery++;
+        historyTopic = topic.isEmpty() ? null : topic;
+        historyUntilMillis = untilMillis;
+        historyLoading = false;
+        historyExhausted = false;
+        historyAdapter.clear();
+        loadHistoryPage();
+    }
+
+    private void loadHistoryPage() {
+        if (historyLoading || historyExhausted) {
+            return;
+        }
+        historyLoading = true;
+        MessageJournal journal = MessageHistory.get(this);
+        MessageJournal.Entry last = historyAdapter.last();
+        long beforeSequence = last == null ? Long.MAX_VALUE : last.sequence;
+        int query = historyQuery;
+        String topic = historyTopic;
+        long untilMillis = historyUntilMillis;
+        historyExecutor.execute(() -> {
+            List<MessageJournal.Entry> page = null;
+            String error = null;
+            try {
+                page = journal.readPage(beforeSequence, untilMillis, topic, HISTORY_PAGE_SIZE);
+            } catch (IOException e) {
+                error = e.getMessage();
+            }
+            List<MessageJournal.Entry> result = page;
+            String message = error;
+            runOnUiThread(() -> onHistoryPage(query, result, message));
+        });
+    }
+
+    private void onHistoryPage(int query, List<MessageJournal.Entry> page, String error) {
+        if (query != historyQuery || isDestroyed()) {
+            return;
+        }
+        historyLoading = false;
+        if (page == null) {
+            Toast.makeText(this, "读取历史记录失败: " + error, Toast.LENGTH_SHORT).show();
+            return;
+        }
+        historyExhausted = page.size() < HISTORY_PAGE_SIZE;
+        historyAdapter.addPage(page);
+        tvHistoryEmpty.setVisibility(historyAdapter.getItemCount() == 0 ? View.VISIBLE : View.GONE);
+    }
+
     private boolean validateInput() {
         String brokerIp = etBrokerIp.getText().toString().trim();
         String brokerPort = etBrokerPort.getText().toString().trim();
@@ -189,6 +389,22 @@ public class MainActivity extends AppCompatActivity {
             return false;
         }
 
+        String extraBrokers = etExtraBrokers.getText().toString().trim();
+        if (!extraBrokers.isEmpty()) {
+            int count;
+            try {
+                count = new JSONArray(extraBrokers).length();
+            } catch (JSONException e) {
+                Toast.makeText(this, "附加服务器必须是JSON数组", Toast.LENGTH_SHORT).show();
+                return false;
+            }
+            if (count + 1 > MQTTService.MAX_BROKERS) {
+                Toast.makeText(this, "最多连接 " + MQTTService.MAX_BROKERS + " 个服务器（含主服务器），"
+                    + "附加服务器最多 " + (MQTTService.MAX_BROKERS - 1) + " 个", Toast.LENGTH_LONG).show();
+                return false;
+            }
+        }
+
         return true;
     }
 
@@ -196,44 +412,81 @@ public class MainActivity extends AppCompatActivity {
         tvStatus.setText("状态: " + status);
     }
 
-    private void appendToLog(String text, boolean isStatus) {
-        String timestamp = new SimpleDateFormat("HH:mm:ss", Locale.getDefault()).format(new Date());
-        String currentLog = tvMessageLog.getText().toString();
-        String newLog;
-        
-        String formattedText = isStatus ? "[状态] " + text : text;
+    /** @param timestampMillis when the service produced the event, which may be well before a replay */
+    private void appendToLog(long timestampMillis, String text, boolean isStatus) {
+        if (messageLog.add(timestampMillis, text, isStatus)) {
+            pendingEvicted++;
+        } else {
+            pendingInserted++;
+        }
+        scheduleRender();
+    }
+
+    private void clearLog() {
+        messageLog.clear();
+        pendingInserted = 0;
+        pendingEvicted = 0;
+        messageLogAdapter.notifyDataSetChanged();
+        tvLogEmpty.setVisibility(View.VISIBLE);
+    }
 
-        if (currentLog.equals("等待消息...")) {
-            newLog = timestamp + ": " + formattedText;
+    private void scheduleRender() {
+        if (!renderScheduled) {
+            renderScheduled = true;
+            Choreographer.getInstance().postFrameCallback(renderCallback);
+        }
+    }
+
+    private void renderLog() {
+        renderScheduled = false;
+        int size = messageLog.size();
+        if (pendingEvicted + pendingInserted >= size) {
+            // Everything visible changed anyway
+            messageLogAdapter.notifyDataSetChanged();
         } else {
-            newLog = currentLog + "\n" + timestamp + ": " + formattedText;
+            // Each eviction drops the first row and appends a new one at the end
+            if (pendingEvicted > 0) {
+                messageLogAdapter.notifyItemRangeRemoved(0, pendingEvicted);
+            }
+            int added = pendingEvicted + pendingInserted;
+            messageLogAdapter.notifyItemRangeInserted(size - added, added);
         }
-        tvMessageLog.setText(newLog);
+        pendingInserted = 0;
+        pendingEvicted = 0;
+        tvLogEmpty.setVisibility(size == 0 ? View.VISIBLE : View.GONE);
 
         // Auto-scroll to the bottom
-        svLogContainer.post(() -> svLogContainer.fullScroll(View.FOCUS_DOWN));
+        if (size > 0) {
+            rvMessageLog.scrollToPosition(size - 1);
+        }
     }
 
-    // Inner class for receiving messages from MQTTService
-    private class MessageReceiver extends BroadcastReceiver {
+    private final ServiceEventChannel.Listener eventListener = events -> {
+        for (int i = 0; i < events.size(); i++) {
+            ServiceEvent event = events.get(i);
+            appendToLog(event.timestampMillis, event.text, event.isStatus);
+            lastEventSequence = event.sequence;
+        }
+    };
+
+    private final ServiceConnection serviceConnection = new ServiceConnection() {
         @Override
-        public void onReceive(Context context, Intent intent) {
-            if (intent == null || intent.getAction() == null) {
-                return;
-            }
-            
-            String action = intent.getAction();
-            if (MQTTService.ACTION_MQTT_MESSAGE_RECEIVED.equals(action)) {
-                String message = intent.getStringExtra(MQTTService.EXTRA_MQTT_MESSAGE);
-                if (message != null) {
-                    appendToLog(message, false);
-                }
-            } else if (MQTTService.ACTION_MQTT_STATUS_UPDATE.equals(action)) {
-                String status = intent.getStringExtra(MQTTService.EXTRA_MQTT_STATUS);
-                if (status != null) {
-                    appendToLog(status, true);
-                }
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            boundService = ((MQTTService.LocalBinder) service).getService();
+            ServiceEventChannel channel = boundService.getEventChannel();
+            if (channel != lastEventChannel) {
+                // A new service instance numbers its events from the start again
+                lastEventChannel = channel;
+                lastEventSequence = 0;
             }
+            channel.attach(eventListener, lastEventSequence);
+            refreshLatencyStats();
+            refreshConnectionStats();
         }
-    }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            boundService = null;
+        }
+    };
 }
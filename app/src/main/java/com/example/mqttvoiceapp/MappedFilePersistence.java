@@ -0,0 +1,450 @@
+package com.example.mqttvoiceapp;
+
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.MqttPersistable;
+import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
+import org.eclipse.paho.client.mqttv3.internal.MqttPersistentData;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Durable MQTT client persistence backed by an append-only, memory-mapped log.
+ *
+ * <p>Every put and remove is appended as a checksummed record. Because the
+ * file is memory-mapped, a record is in the kernel's page cache as soon as it
+ * is written and survives a process kill; the explicit sync to disk that
+ * protects against power loss is batched on a timer instead of paid per
+ * message. On open the log is replayed up to the first torn or corrupt record.
+ * When most of the log is superseded records it is compacted into a fresh file.
+ */
+public class MappedFilePersistence implements MqttClientPersistence {
+    private static final int INITIAL_MAP_SIZE = 256 * 1024;
+    private static final int COMPACT_MIN_GARBAGE = 64 * 1024;
+    private static final long DEFAULT_SYNC_INTERVAL_MS = 200;
+
+    private static final byte OP_PUT = 1;
+    private static final byte OP_REMOVE = 2;
+    // length(4) + crc(4) + op(1) + keyLength(2) + headerLength(4) + payloadLength(4)
+    private static final int RECORD_OVERHEAD = 19;
+
+    private static class Entry {
+        final byte[] header;
+        final byte[] payload;
+        final int recordSize;
+
+        Entry(byte[] header, byte[] payload, int recordSize) {
+            this.header = header;
+            this.payload = payload;
+            this.recordSize = recordSize;
+        }
+    }
+
+    private final File directory;
+    private final ScheduledExecutorService syncExecutor;
+    private final long syncIntervalMs;
+
+    private final Map<String, Entry> entries = new HashMap<>();
+    private final CRC32 crc = new CRC32();
+    private File logFile;
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private long liveBytes;
+    private long garbageBytes;
+    // After a failed compaction, how much garbage to wait for before trying again
+    private long compactRetryGarbage;
+    private boolean dirty;
+    private ScheduledFuture<?> syncTask;
+
+    public MappedFilePersistence(File directory, ScheduledExecutorService syncExecutor) {
+        this(directory, syncExecutor, DEFAULT_SYNC_INTERVAL_MS);
+    }
+
+    public MappedFilePersistence(File directory, ScheduledExecutorService syncExecutor, long syncIntervalMs) {
+        this.directory = directory;
+        this.syncExecutor = syncExecutor;
+        this.syncIntervalMs = syncIntervalMs;
+    }
+
+    @Override
+    public synchronized void open(String clientId, String serverURI) throws MqttPersistenceException {
+        if (channel != null) {
+            return;
+        }
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new MqttPersistenceException(new IOException("无法创建持久化目录: " + directory));
+        }
+        logFile = new File(directory, sanitize(clientId + "-" + serverURI) + ".log");
+        try {
+            openLog();
+            recover();
+            compactIfNeeded();
+        } catch (IOException e) {
+            closeQuietly();
+            throw new MqttPersistenceException(e);
+        }
+        syncTask = syncExecutor.scheduleWithFixedDelay(this::syncIfDirty,
+            syncIntervalMs, syncIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public synchronized void close() throws MqttPersistenceException {
+        if (syncTask != null) {
+            syncTask.cancel(false);
+            syncTask = null;
+        }
+        if (buffer != null && dirty) {
+            buffer.force();
+            dirty = false;
+        }
+        entries.clear();
+        closeQuietly();
+    }
+
+    @Override
+    public synchronized void put(String key, MqttPersistable persistable) throws MqttPersistenceException {
+        checkOpen();
+        byte[] header = copy(persistable.getHeaderBytes(), persistable.getHeaderOffset(), persistable.getHeaderLength());
+        byte[] payload = copy(persistable.getPayloadBytes(), persistable.getPayloadOffset(), persistable.getPayloadLength());
+        int recordSize = append(OP_PUT, key, header, payload);
+        Entry previous = entries.put(key, new Entry(header, payload, recordSize));
+        liveBytes += recordSize;
+        if (previous != null) {
+            liveBytes -= previous.recordSize;
+            garbageBytes += previous.recordSize;
+        }
+        compactIfNeeded();
+    }
+
+    @Override
+    public synchronized MqttPersistable get(String key) throws MqttPersistenceException {
+        checkOpen();
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        return new MqttPersistentData(key, entry.header, 0, entry.header == null ? 0 : entry.header.length,
+            entry.payload, 0, entry.payload == null ? 0 : entry.payload.length);
+    }
+
+    @Override
+    public synchronized void remove(String key) throws MqttPersistenceException {
+        checkOpen();
+        Entry previous = entries.remove(key);
+        if (previous == null) {
+            return;
+        }
+        int recordSize = append(OP_REMOVE, key, null, null);
+        liveBytes -= previous.recordSize;
+        // The remove record itself is garbage as soon as compaction runs
+        garbageBytes += previous.recordSize + recordSize;
+        compactIfNeeded();
+    }
+
+    // MqttClientPersistence declares the raw type
+    @SuppressWarnings("rawtypes")
+    @Override
+    public synchronized Enumeration keys() throws MqttPersistenceException {
+        checkOpen();
+        return Collections.enumeration(new ArrayList<>(entries.keySet()));
+    }
+
+    @Override
+    public synchronized void clear() throws MqttPersistenceException {
+        checkOpen();
+        Map<String, Entry> previous = new HashMap<>(entries);
+        long previousLiveBytes = liveBytes;
+        long previousGarbageBytes = garbageBytes;
+        entries.clear();
+        liveBytes = 0;
+        garbageBytes = 0;
+        try {
+            compact();
+        } catch (IOException e) {
+            // The old log is still in place and still holds these
+            entries.putAll(previous);
+            liveBytes = previousLiveBytes;
+            garbageBytes = previousGarbageBytes;
+            throw new MqttPersistenceException(e);
+        }
+    }
+
+    @Override
+    public synchronized boolean containsKey(String key) throws MqttPersistenceException {
+        checkOpen();
+        return entries.containsKey(key);
+    }
+
+    private void syncIfDirty() {
+        synchronized (this) {
+            if (buffer == null || !dirty) {
+                return;
+            }
+            dirty = false;
+            buffer.force();
+        }
+    }
+
+    private void openLog() throws IOException {
+        file = new RandomAccessFile(logFile, "rw");
+        channel = file.getChannel();
+        long size = Math.max(INITIAL_MAP_SIZE, channel.size());
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    /** Replays the log into memory and leaves the buffer positioned after the last good record. */
+    private void recover() {
+        entries.clear();
+        liveBytes = 0;
+        garbageBytes = 0;
+        buffer.position(0);
+        int end = 0;
+        while (buffer.remaining() >= RECORD_OVERHEAD) {
+            int start = buffer.position();
+            int length = buffer.getInt();
+            if (length < RECORD_OVERHEAD || length > buffer.capacity() - start) {
+                break;
+            }
+            int checksum = buffer.getInt();
+            crc.reset();
+            for (int i = start + 8; i < start + length; i++) {
+                crc.update(buffer.get(i));
+            }
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            byte op = buffer.get();
+            byte[] keyBytes = new byte[buffer.getShort() & 0xFFFF];
+            buffer.get(keyBytes);
+            String key = new String(keyBytes, StandardCharsets.UTF_8);
+            byte[] header = readBlock();
+            byte[] payload = readBlock();
+            Entry previous;
+            if (op == OP_PUT) {
+                previous = entries.put(key, new Entry(header, payload, length));
+                liveBytes += length;
+            } else {
+                previous = entries.remove(key);
+                garbageBytes += length;
+            }
+            if (previous != null) {
+                liveBytes -= previous.recordSize;
+                garbageBytes += previous.recordSize;
+            }
+            end = start + length;
+            buffer.position(end);
+        }
+        // Anything after the last good record is a torn write; zero it so it is never replayed.
+        // Appends continue from there, not from wherever the loop stopped reading.
+        if (end + 4 <= buffer.capacity()) {
+            buffer.putInt(end, 0);
+        }
+        buffer.position(end);
+    }
+
+    private byte[] readBlock() {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] block = new byte[length];
+        buffer.get(block);
+        return block;
+    }
+
+    private int append(byte op, String key, byte[] header, byte[] payload) throws MqttPersistenceException {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int length = RECORD_OVERHEAD + keyBytes.length
+            + (header == null ? 0 : header.length) + (payload == null ? 0 : payload.length);
+        try {
+            // Keep room for the zero terminator after the record
+            ensureCapacity(length + 4);
+        } catch (IOException e) {
+            throw new MqttPersistenceException(e);
+        }
+        int start = buffer.position();
+        buffer.putInt(0);
+        buffer.putInt(0);
+        buffer.put(op);
+        buffer.putShort((short) keyBytes.length);
+        buffer.put(keyBytes);
+        putBlock(header);
+        putBlock(payload);
+        crc.reset();
+        for (int i = start + 8; i < start + length; i++) {
+            crc.update(buffer.get(i));
+        }
+        buffer.putInt(start + 4, (int) crc.getValue());
+        buffer.putInt(buffer.position(), 0);
+        // The length is written last so a torn record never looks complete
+        buffer.putInt(start, length);
+        dirty = true;
+        return length;
+    }
+
+    private void putBlock(byte[] block) {
+        if (block == null) {
+            buffer.putInt(-1);
+        } else {
+            buffer.putInt(block.length);
+            buffer.put(block);
+        }
+    }
+
+    private void ensureCapacity(int needed) throws IOException {
+        if (buffer.remaining() >= needed) {
+            return;
+        }
+        if (garbageBytes > 0) {
+            compactIfNeeded(true);
+            if (buffer.remaining() >= needed) {
+                return;
+            }
+        }
+        int position = buffer.position();
+        long newSize = Math.max((long) buffer.capacity() * 2, position + (long) needed);
+        buffer.force();
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, newSize);
+        buffer.position(position);
+    }
+
+    private boolean shouldCompact() {
+        return garbageBytes >= Math.max(COMPACT_MIN_GARBAGE, compactRetryGarbage) && garbageBytes > liveBytes;
+    }
+
+    private void compactIfNeeded() {
+        compactIfNeeded(false);
+    }
+
+    /**
+     * Compacts when enough of the log is garbage, or whenever there is any if
+     * {@code force}. A failure leaves the old log in use; it stays correct,
+     * only larger, so the write that triggered compaction still succeeds.
+     */
+    private void compactIfNeeded(boolean force) {
+        if (!force && !shouldCompact()) {
+            return;
+        }
+        try {
+            compact();
+            compactRetryGarbage = 0;
+        } catch (IOException e) {
+            compactRetryGarbage = garbageBytes * 2;
+        }
+    }
+
+    /**
+     * Writes only the live entries into a new file and swaps it in. The old
+     * log stays open and mapped until the new one has replaced it, so a
+     * failure at any step leaves the persistence exactly as it was.
+     */
+    private void compact() throws IOException {
+        File tempFile = new File(logFile.getPath() + ".tmp");
+        long size = Math.max(INITIAL_MAP_SIZE, liveBytes * 2 + 4);
+        MappedByteBuffer oldBuffer = buffer;
+        Map<String, Entry> live = new HashMap<>(entries);
+        long oldLiveBytes = liveBytes;
+        long oldGarbageBytes = garbageBytes;
+        RandomAccessFile temp = new RandomAccessFile(tempFile, "rw");
+        boolean swapped = false;
+        try {
+            temp.setLength(0);
+            FileChannel tempChannel = temp.getChannel();
+            buffer = tempChannel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            entries.clear();
+            liveBytes = 0;
+            garbageBytes = 0;
+            for (Map.Entry<String, Entry> item : live.entrySet()) {
+                Entry entry = item.getValue();
+                int recordSize = append(OP_PUT, item.getKey(), entry.header, entry.payload);
+                entries.put(item.getKey(), new Entry(entry.header, entry.payload, recordSize));
+                liveBytes += recordSize;
+            }
+            buffer.force();
+            if (!replaceLog(tempFile, logFile)) {
+                throw new IOException("无法替换持久化日志: " + logFile);
+            }
+            // The renamed file is the log now; keep its mapping and let go of the old one
+            RandomAccessFile oldFile = file;
+            file = temp;
+            channel = tempChannel;
+            swapped = true;
+            dirty = false;
+            closeQuietly(oldFile);
+        } catch (MqttPersistenceException e) {
+            throw new IOException(e);
+        } finally {
+            if (!swapped) {
+                buffer = oldBuffer;
+                entries.clear();
+                entries.putAll(live);
+                liveBytes = oldLiveBytes;
+                garbageBytes = oldGarbageBytes;
+                closeQuietly(temp);
+                tempFile.delete();
+            }
+        }
+    }
+
+    /** Atomically replaces the log with the compacted file; separate so tests can make it fail. */
+    boolean replaceLog(File compacted, File log) {
+        return compacted.renameTo(log);
+    }
+
+    private void checkOpen() throws MqttPersistenceException {
+        if (channel == null) {
+            throw new MqttPersistenceException(MqttPersistenceException.REASON_CODE_CLIENT_CLOSED);
+        }
+    }
+
+    private void closeQuietly() {
+        buffer = null;
+        closeQuietly(file);
+        channel = null;
+        file = null;
+    }
+
+    private static void closeQuietly(RandomAccessFile file) {
+        if (file == null) {
+            return;
+        }
+        try {
+            // Also closes its channel
+            file.close();
+        } catch (IOException ignored) {
+            // Nothing useful to do; the log is replayed on the next open
+        }
+    }
+
+    private static byte[] copy(byte[] source, int offset, int length) {
+        if (source == null) {
+            return null;
+        }
+        byte[] copy = new byte[length];
+        System.arraycopy(source, offset, copy, 0, length);
+        return copy;
+    }
+
+    private static String sanitize(String name) {
+        StringBuilder builder = new StringBuilder(name.length());
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            builder.append(Character.isLetterOrDigit(c) || c == '-' || c == '_' ? c : '_');
+        }
+        return builder.toString();
+    }
+}
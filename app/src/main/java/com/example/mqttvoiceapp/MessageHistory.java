@@ -0,0 +1,42 @@
+package com.example.mqttvoiceapp;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.io.File;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The process-wide {@link MessageJournal}. The service writes to it and the
+ * activity pages through it, with or without the service running, so it
+ * belongs to neither of them. Its writer thread is a daemon and lives as long
+ * as the process.
+ */
+public final class MessageHistory {
+    private static final int DEFAULT_MAX_MB = 16;
+    private static final int DEFAULT_MAX_DAYS = 30;
+
+    private static MessageJournal journal;
+
+    private MessageHistory() {
+    }
+
+    public static synchronized MessageJournal get(Context context) {
+        if (journal == null) {
+            Context app = context.getApplicationContext();
+            SharedPreferences prefs = app.getSharedPreferences("mqtt_config", Context.MODE_PRIVATE);
+            ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "history-writer");
+                thread.setDaemon(true);
+                return thread;
+            });
+            journal = new MessageJournal(new File(app.getFilesDir(), "history"), writer,
+                MessageJournal.DEFAULT_SEGMENT_BYTES,
+                prefs.getInt("history_max_mb", DEFAULT_MAX_MB) * 1024L * 1024L,
+                TimeUnit.DAYS.toMillis(prefs.getInt("history_max_days", DEFAULT_MAX_DAYS)));
+        }
+        return journal;
+    }
+}
@@ -0,0 +1,74 @@
+package com.example.mqttvoiceapp;
+
+/**
+ * Fixed-capacity in-memory message log. Once full, each new entry overwrites
+ * the oldest one, so memory stays flat no matter how many messages arrive.
+ * Timestamps live in a primitive array; only the text references are stored.
+ * Not thread-safe; MainActivity only touches it on the main thread.
+ */
+public class MessageLog {
+    private final long[] timestamps;
+    private final String[] texts;
+    private final boolean[] statusFlags;
+    private int head;
+    private int size;
+
+    public MessageLog(int capacity) {
+        capacity = Math.max(1, capacity);
+        timestamps = new long[capacity];
+        texts = new String[capacity];
+        statusFlags = new boolean[capacity];
+    }
+
+    public int capacity() {
+        return texts.length;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /** Appends an entry; returns true if the oldest entry was evicted to make room. */
+    public boolean add(long timestampMillis, String text, boolean isStatus) {
+        int index = (head + size) % texts.length;
+        boolean evicted = size == texts.length;
+        if (evicted) {
+            head = (head + 1) % texts.length;
+        } else {
+            size++;
+        }
+        timestamps[index] = timestampMillis;
+        texts[index] = text;
+        statusFlags[index] = isStatus;
+        return evicted;
+    }
+
+    public void clear() {
+        for (int i = 0; i < texts.length; i++) {
+            texts[i] = null;
+        }
+        head = 0;
+        size = 0;
+    }
+
+    // Positions count from the oldest retained entry
+
+    public long getTimestamp(int position) {
+        return timestamps[indexOf(position)];
+    }
+
+    public String getText(int position) {
+        return texts[indexOf(position)];
+    }
+
+    public boolean isStatus(int position) {
+        return statusFlags[indexOf(position)];
+    }
+
+    private int indexOf(int position) {
+        if (position < 0 || position >= size) {
+            throw new IndexOutOfBoundsException("position " + position + ", size " + size);
+        }
+        return (head + position) % texts.length;
+    }
+}
@@ -0,0 +1,53 @@
+package com.example.mqttvoiceapp;
+
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.RecyclerView;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/** Binds {@link MessageLog} entries to recycled rows; only visible rows are formatted. */
+public class MessageLogAdapter extends RecyclerView.Adapter<MessageLogAdapter.ViewHolder> {
+    private final MessageLog messageLog;
+    // Adapters are only used on the main thread, so one formatter is enough
+    private final SimpleDateFormat timeFormat = new SimpleDateFormat("HH:mm:ss", Locale.getDefault());
+    private final Date date = new Date();
+
+    public MessageLogAdapter(MessageLog messageLog) {
+        this.messageLog = messageLog;
+    }
+
+    @NonNull
+    @Override
+    public ViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(parent.getContext()).inflate(R.layout.item_message_log, parent, false);
+        return new ViewHolder(view);
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull ViewHolder holder, int position) {
+        date.setTime(messageLog.getTimestamp(position));
+        String text = messageLog.getText(position);
+        String formattedText = messageLog.isStatus(position) ? "[状态] " + text : text;
+        holder.textView.setText(timeFormat.format(date) + ": " + formattedText);
+    }
+
+    @Override
+    public int getItemCount() {
+        return messageLog.size();
+    }
+
+    static class ViewHolder extends RecyclerView.ViewHolder {
+        final TextView textView;
+
+        ViewHolder(View itemView) {
+            super(itemView);
+            textView = (TextView) itemView;
+        }
+    }
+}
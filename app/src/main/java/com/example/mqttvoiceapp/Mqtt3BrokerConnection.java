@@ -0,0 +1,152 @@
+package com.example.mqttvoiceapp;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttCallbackExtended;
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.ScheduledExecutorPingSender;
+
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+
+/** MQTT 3.1.1 on Paho's mqttv3 {@link MqttAsyncClient}; messages are acknowledged by the client. */
+public class Mqtt3BrokerConnection extends BrokerConnection {
+    private final MqttClientPersistence persistence;
+    private MqttAsyncClient client;
+
+    public Mqtt3BrokerConnection(BrokerConfig config, MqttClientPersistence persistence,
+                                 ScheduledExecutorService scheduler, Listener listener) {
+        super(config, scheduler, listener);
+        this.persistence = persistence;
+    }
+
+    @Override
+    protected void connectClient(BrokerConfig config, ActionCallback callback) throws MqttException {
+        if (client == null) {
+            client = new MqttAsyncClient(config.getBrokerUrl(), config.clientId, persistence,
+                new ScheduledExecutorPingSender(scheduler), null);
+            client.setCallback(new Callback());
+        }
+        client.connect(buildOptions(config), null, adapt(callback));
+    }
+
+    private static MqttConnectOptions buildOptions(BrokerConfig config) {
+        MqttConnectOptions options = new MqttConnectOptions();
+        // A persistent session lets the broker queue messages for us while we are away
+        options.setCleanSession(!config.persistentSession);
+        options.setKeepAliveInterval(60);
+        options.setConnectionTimeout(30);
+        // Reconnects are driven by our own backoff, not Paho's fixed schedule
+        options.setAutomaticReconnect(false);
+        if (config.username != null && !config.username.isEmpty()) {
+            options.setUserName(config.username);
+        }
+        if (config.password != null && !config.password.isEmpty()) {
+            options.setPassword(config.password.toCharArray());
+        }
+        return options;
+    }
+
+    @Override
+    protected void subscribeClient(List<String> topicList, ActionCallback callback) {
+        MqttAsyncClient current;
+        synchronized (this) {
+            current = client;
+        }
+        if (current == null) {
+            return;
+        }
+        String[] topics = topicList.toArray(new String[0]);
+        int[] qos = new int[topics.length];
+        for (int i = 0; i < topics.length; i++) {
+            qos[i] = 1;
+        }
+        try {
+            current.subscribe(topics, qos, null, adapt(callback));
+        } catch (MqttException e) {
+            callback.onFailure(e);
+        }
+    }
+
+    @Override
+    protected void unsubscribeClient(List<String> topicList, ActionCallback callback) {
+        MqttAsyncClient current;
+        synchronized (this) {
+            current = client;
+        }
+        if (current == null) {
+            return;
+        }
+        try {
+            current.unsubscribe(topicList.toArray(new String[0]), null, adapt(callback));
+        } catch (MqttException e) {
+            callback.onFailure(e);
+        }
+    }
+
+    @Override
+    protected void closeClient() {
+        MqttAsyncClient toClose;
+        synchronized (this) {
+            toClose = client;
+            client = null;
+        }
+        if (toClose == null) {
+            return;
+        }
+        try {
+            if (toClose.isConnected()) {
+                toClose.disconnectForcibly(0, DISCONNECT_TIMEOUT_MS, true);
+            }
+        } catch (MqttException ignored) {
+            // Closing below releases the client either way
+        }
+        try {
+            toClose.close(true);
+        } catch (MqttException ignored) {
+            // Already closed
+        }
+    }
+
+    private static IMqttActionListener adapt(ActionCallback callback) {
+        return new IMqttActionListener() {
+            @Override
+            public void onSuccess(IMqttToken asyncActionToken) {
+                callback.onSuccess();
+            }
+
+            @Override
+            public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                callback.onFailure(exception);
+            }
+        };
+    }
+
+    private class Callback implements MqttCallbackExtended {
+        @Override
+        public void connectComplete(boolean reconnect, String serverURI) {
+            // Handled by the connect action listener
+        }
+
+        @Override
+        public void connectionLost(Throwable cause) {
+            Mqtt3BrokerConnection.this.connectionLost(cause);
+        }
+
+        @Override
+        public void messageArrived(String topic, MqttMessage message) {
+            deliver(topic, message.getPayload(), message.getId(), message.getQos(),
+                message.isDuplicate(), 0, null);
+        }
+
+        @Override
+        public void deliveryComplete(IMqttDeliveryToken token) {
+            // Not used
+        }
+    }
+}
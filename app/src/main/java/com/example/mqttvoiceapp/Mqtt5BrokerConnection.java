@@ -0,0 +1,232 @@
+package com.example.mqttvoiceapp;
+
+import org.eclipse.paho.mqttv5.client.IMqttToken;
+import org.eclipse.paho.mqttv5.client.MqttActionListener;
+import org.eclipse.paho.mqttv5.client.MqttAsyncClient;
+import org.eclipse.paho.mqttv5.client.MqttCallback;
+import org.eclipse.paho.mqttv5.client.MqttClientPersistence;
+import org.eclipse.paho.mqttv5.client.MqttConnectionOptions;
+import org.eclipse.paho.mqttv5.client.MqttDisconnectResponse;
+import org.eclipse.paho.mqttv5.client.TimerPingSender;
+import org.eclipse.paho.mqttv5.common.MqttException;
+import org.eclipse.paho.mqttv5.common.MqttMessage;
+import org.eclipse.paho.mqttv5.common.packet.MqttProperties;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MQTT 5 on Paho's mqttv5 {@link MqttAsyncClient}, with broker-side flow control.
+ *
+ * <p>Each connect advertises the pipeline's free capacity as Receive Maximum
+ * and acknowledges QoS 1/2 messages manually, only once the pipeline is done
+ * with them. The broker therefore never has more unacknowledged messages out
+ * than we have room for, and slows down instead of making us drop. Inbound
+ * topic aliases are accepted, and the publisher's message expiry is passed on
+ * so stale announcements are not spoken.
+ */
+public class Mqtt5BrokerConnection extends BrokerConnection {
+    /** How many more messages we can take right now. */
+    public interface CapacitySource {
+        int freeCapacity();
+    }
+
+    private static final int MAX_RECEIVE_MAXIMUM = 65535;
+    private static final int TOPIC_ALIAS_MAXIMUM = 64;
+    // How long the broker keeps a persistent session after we go away
+    private static final long SESSION_EXPIRY_SECONDS = TimeUnit.DAYS.toSeconds(7);
+
+    private final MqttClientPersistence persistence;
+    private final CapacitySource freeCapacity;
+    private MqttAsyncClient client;
+    // One per connect, so acknowledgements never reach a later connection
+    private volatile Acknowledger acknowledger;
+
+    /**
+     * @param persistence mqttv5 persistence for in-flight messages; see {@link Mqtt5Persistence}
+     *                    for keeping them in a {@link MappedFilePersistence}
+     */
+    public Mqtt5BrokerConnection(BrokerConfig config, MqttClientPersistence persistence,
+                                 ScheduledExecutorService scheduler, Listener listener,
+                                 CapacitySource freeCapacity) {
+        super(config, scheduler, listener);
+        this.persistence = persistence;
+        this.freeCapacity = freeCapacity;
+    }
+
+    @Override
+    protected void connectClient(BrokerConfig config, ActionCallback callback) throws MqttException {
+        if (client == null) {
+            // No executor: Paho then runs its comms on its own threads
+            client = new MqttAsyncClient(config.getBrokerUrl(), config.clientId, persistence,
+                new TimerPingSender(scheduler), null);
+            client.setManualAcks(true);
+            client.setCallback(new Callback());
+        }
+        acknowledger = new Acknowledger(client);
+        client.connect(buildOptions(config), null, adapt(callback));
+    }
+
+    private MqttConnectionOptions buildOptions(BrokerConfig config) {
+        MqttConnectionOptions options = new MqttConnectionOptions();
+        options.setCleanStart(!config.persistentSession);
+        // A persistent session only outlives the connection if it has an expiry
+        options.setSessionExpiryInterval(config.persistentSession ? SESSION_EXPIRY_SECONDS : 0L);
+        options.setKeepAliveInterval(60);
+        options.setConnectionTimeout(30);
+        // Reconnects are driven by our own backoff, not Paho's fixed schedule
+        options.setAutomaticReconnect(false);
+        options.setReceiveMaximum(Math.max(1, Math.min(MAX_RECEIVE_MAXIMUM, freeCapacity.freeCapacity())));
+        options.setTopicAliasMaximum(TOPIC_ALIAS_MAXIMUM);
+        if (config.username != null && !config.username.isEmpty()) {
+            options.setUserName(config.username);
+        }
+        if (config.password != null && !config.password.isEmpty()) {
+            options.setPassword(config.password.getBytes(StandardCharsets.UTF_8));
+        }
+        return options;
+    }
+
+    @Override
+    protected void subscribeClient(List<String> topicList, ActionCallback callback) {
+        MqttAsyncClient current;
+        synchronized (this) {
+            current = client;
+        }
+        if (current == null) {
+            return;
+        }
+        String[] topics = topicList.toArray(new String[0]);
+        int[] qos = new int[topics.length];
+        for (int i = 0; i < topics.length; i++) {
+            qos[i] = 1;
+        }
+        try {
+            current.subscribe(topics, qos, null, adapt(callback));
+        } catch (MqttException e) {
+            callback.onFailure(e);
+        }
+    }
+
+    @Override
+    protected void unsubscribeClient(List<String> topicList, ActionCallback callback) {
+        MqttAsyncClient current;
+        synchronized (this) {
+            current = client;
+        }
+        if (current == null) {
+            return;
+        }
+        try {
+            current.unsubscribe(topicList.toArray(new String[0]), null, adapt(callback), new MqttProperties());
+        } catch (MqttException e) {
+            callback.onFailure(e);
+        }
+    }
+
+    @Override
+    protected void closeClient() {
+        MqttAsyncClient toClose;
+        synchronized (this) {
+            toClose = client;
+            client = null;
+            acknowledger = null;
+        }
+        if (toClose == null) {
+            return;
+        }
+        try {
+            if (toClose.isConnected()) {
+                toClose.disconnectForcibly(0, DISCONNECT_TIMEOUT_MS, true);
+            }
+        } catch (MqttException ignored) {
+            // Closing below releases the client either way
+        }
+        try {
+            toClose.close(true);
+        } catch (MqttException ignored) {
+            // Already closed
+        }
+    }
+
+    private static MqttActionListener adapt(ActionCallback callback) {
+        return new MqttActionListener() {
+            @Override
+            public void onSuccess(IMqttToken asyncActionToken) {
+                callback.onSuccess();
+            }
+
+            @Override
+            public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                callback.onFailure(exception);
+            }
+        };
+    }
+
+    /** Sends the PUBACK/PUBCOMP for a message once the pipeline is done with it. */
+    private class Acknowledger implements MessageSource {
+        private final MqttAsyncClient owner;
+
+        Acknowledger(MqttAsyncClient owner) {
+            this.owner = owner;
+        }
+
+        @Override
+        public void onMessageDone(InboundMessage message) {
+            if (message.qos == 0 || acknowledger != this) {
+                // Unacknowledged messages of an earlier connection are redelivered by the broker
+                return;
+            }
+            try {
+                owner.messageArrivedComplete(message.messageId, message.qos);
+            } catch (MqttException ignored) {
+                // Connection gone; the broker redelivers on the next session
+            }
+        }
+    }
+
+    private class Callback implements MqttCallback {
+        @Override
+        public void disconnected(MqttDisconnectResponse response) {
+            MqttException cause = response.getException();
+            connectionLost(cause != null ? cause : new MqttException(response.getReturnCode()));
+        }
+
+        @Override
+        public void mqttErrorOccurred(MqttException exception) {
+            // Protocol errors end in disconnected(), which drives the retry
+        }
+
+        @Override
+        public void messageArrived(String topic, MqttMessage message) {
+            long expiresAtNanos = 0;
+            MqttProperties properties = message.getProperties();
+            Long expirySeconds = properties != null ? properties.getMessageExpiryInterval() : null;
+            if (expirySeconds != null) {
+                expiresAtNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(expirySeconds);
+                if (expiresAtNanos == 0) {
+                    expiresAtNanos = 1;
+                }
+            }
+            deliver(topic, message.getPayload(), message.getId(), message.getQos(),
+                message.isDuplicate(), expiresAtNanos, acknowledger);
+        }
+
+        @Override
+        public void deliveryComplete(IMqttToken token) {
+            // Not used
+        }
+
+        @Override
+        public void connectComplete(boolean reconnect, String serverURI) {
+            // Handled by the connect action listener
+        }
+
+        @Override
+        public void authPacketArrived(int reasonCode, MqttProperties properties) {
+            // Enhanced authentication is not used
+        }
+    }
+}
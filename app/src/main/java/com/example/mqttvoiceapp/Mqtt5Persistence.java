@@ -0,0 +1,113 @@
+package com.example.mqttvoiceapp;
+
+import org.eclipse.paho.mqttv5.client.MqttClientPersistence;
+import org.eclipse.paho.mqttv5.client.internal.MqttPersistentData;
+import org.eclipse.paho.mqttv5.common.MqttPersistable;
+import org.eclipse.paho.mqttv5.common.MqttPersistenceException;
+
+import java.util.Enumeration;
+
+/**
+ * Exposes an mqttv3 persistence such as {@link MappedFilePersistence} through
+ * Paho's mqttv5 persistence interface. The log only stores header and payload bytes, so the two client
+ * generations share the storage code; they must not share a directory, as the
+ * packets they persist are encoded differently.
+ *
+ * <p>mqttv5 does not pass the server URI to {@link #open(String)}, so it is
+ * given here instead; connections to different brokers then get separate logs
+ * in the same directory, as they do with mqttv3.
+ */
+public class Mqtt5Persistence implements MqttClientPersistence {
+    private final org.eclipse.paho.client.mqttv3.MqttClientPersistence delegate;
+    private final String serverUri;
+
+    public Mqtt5Persistence(org.eclipse.paho.client.mqttv3.MqttClientPersistence delegate, String serverUri) {
+        this.delegate = delegate;
+        this.serverUri = serverUri;
+    }
+
+    @Override
+    public void open(String clientId) throws MqttPersistenceException {
+        try {
+            delegate.open(clientId, serverUri);
+        } catch (org.eclipse.paho.client.mqttv3.MqttPersistenceException e) {
+            throw wrap(e);
+        }
+    }
+
+    @Override
+    public void close() throws MqttPersistenceException {
+        try {
+            delegate.close();
+        } catch (org.eclipse.paho.client.mqttv3.MqttPersistenceException e) {
+            throw wrap(e);
+        }
+    }
+
+    @Override
+    public void put(String key, MqttPersistable persistable) throws MqttPersistenceException {
+        try {
+            delegate.put(key, new org.eclipse.paho.client.mqttv3.internal.MqttPersistentData(key,
+                persistable.getHeaderBytes(), persistable.getHeaderOffset(), persistable.getHeaderLength(),
+                persistable.getPayloadBytes(), persistable.getPayloadOffset(), persistable.getPayloadLength()));
+        } catch (org.eclipse.paho.client.mqttv3.MqttPersistenceException e) {
+            throw wrap(e);
+        }
+    }
+
+    @Override
+    public MqttPersistable get(String key) throws MqttPersistenceException {
+        try {
+            org.eclipse.paho.client.mqttv3.MqttPersistable data = delegate.get(key);
+            if (data == null) {
+                return null;
+            }
+            return new MqttPersistentData(key,
+                data.getHeaderBytes(), data.getHeaderOffset(), data.getHeaderLength(),
+                data.getPayloadBytes(), data.getPayloadOffset(), data.getPayloadLength());
+        } catch (org.eclipse.paho.client.mqttv3.MqttPersistenceException e) {
+            throw wrap(e);
+        }
+    }
+
+    @Override
+    public void remove(String key) throws MqttPersistenceException {
+        try {
+            delegate.remove(key);
+        } catch (org.eclipse.paho.client.mqttv3.MqttPersistenceException e) {
+            throw wrap(e);
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Enumeration<String> keys() throws MqttPersistenceException {
+        try {
+            return (Enumeration<String>) delegate.keys();
+        } catch (org.eclipse.paho.client.mqttv3.MqttPersistenceException e) {
+            throw wrap(e);
+        }
+    }
+
+    @Override
+    public void clear() throws MqttPersistenceException {
+        try {
+            delegate.clear();
+        } catch (org.eclipse.paho.client.mqttv3.MqttPersistenceException e) {
+            throw wrap(e);
+        }
+    }
+
+    @Override
+    public boolean containsKey(String key) throws MqttPersistenceException {
+        try {
+            return delegate.containsKey(key);
+        } catch (org.eclipse.paho.client.mqttv3.MqttPersistenceException e) {
+            throw wrap(e);
+        }
+    }
+
+    private static MqttPersistenceException wrap(org.eclipse.paho.client.mqttv3.MqttPersistenceException e) {
+        return new MqttPersistenceException(e.getReasonCode(), e.getCause() != null ? e.getCause() : e);
+    }
+}
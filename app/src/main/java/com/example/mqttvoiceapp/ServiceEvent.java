@@ -0,0 +1,16 @@
+package com.example.mqttvoiceapp;
+
+/** A message or status update published by {@link MQTTService}. */
+public class ServiceEvent {
+    public final long sequence;
+    public final long timestampMillis;
+    public final String text;
+    public final boolean isStatus;
+
+    public ServiceEvent(long sequence, long timestampMillis, String text, boolean isStatus) {
+        this.sequence = sequence;
+        this.timestampMillis = timestampMillis;
+        this.text = text;
+        this.isStatus = isStatus;
+    }
+}
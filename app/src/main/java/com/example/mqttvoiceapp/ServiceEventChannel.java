@@ -0,0 +1,127 @@
+package com.example.mqttvoiceapp;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * In-process replacement for per-event broadcasts between MQTTService and
+ * MainActivity. Events are delivered in batches on the main thread, repeated
+ * status updates are collapsed, and the last few events are kept so an
+ * activity that attaches later can catch up.
+ *
+ * <p>While nobody is attached, posting an event only writes it into the
+ * replay ring; nothing is allocated or scheduled.
+ */
+public class ServiceEventChannel {
+    public interface Listener {
+        /**
+         * Called on the main thread with events in the order they were posted.
+         * The list is reused after the call returns and must not be kept.
+         */
+        void onEvents(List<ServiceEvent> events);
+    }
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final MessageLog replay;
+    private final Runnable flushRunnable = this::flush;
+
+    private Listener listener;
+    private ArrayList<ServiceEvent> pending = new ArrayList<>();
+    private ArrayList<ServiceEvent> delivering = new ArrayList<>();
+    private boolean flushScheduled;
+    private long sequence;
+    private String lastStatus;
+
+    public ServiceEventChannel(int replayCapacity) {
+        replay = new MessageLog(replayCapacity);
+    }
+
+    public void postMessage(String message) {
+        post(message, false);
+    }
+
+    public void postStatus(String status) {
+        post(status, true);
+    }
+
+    private synchronized void post(String text, boolean isStatus) {
+        if (isStatus) {
+            if (text.equals(lastStatus)) {
+                return;
+            }
+            lastStatus = text;
+        } else {
+            lastStatus = null;
+        }
+        long timestamp = System.currentTimeMillis();
+        sequence++;
+        replay.add(timestamp, text, isStatus);
+        if (listener == null) {
+            return;
+        }
+        pending.add(new ServiceEvent(sequence, timestamp, text, isStatus));
+        scheduleFlush();
+    }
+
+    /**
+     * Attaches the UI. Retained events newer than {@code afterSequence} are
+     * replayed as the first batch; pass 0 to get everything retained.
+     */
+    public synchronized void attach(Listener listener, long afterSequence) {
+        this.listener = listener;
+        pending.clear();
+        int size = replay.size();
+        long firstSequence = sequence - size + 1;
+        for (int position = 0; position < size; position++) {
+            long eventSequence = firstSequence + position;
+            if (eventSequence > afterSequence) {
+                pending.add(new ServiceEvent(eventSequence, replay.getTimestamp(position),
+                    replay.getText(position), replay.isStatus(position)));
+            }
+        }
+        if (!pending.isEmpty()) {
+            scheduleFlush();
+        }
+    }
+
+    public synchronized void detach(Listener listener) {
+        if (this.listener == listener) {
+            this.listener = null;
+            pending.clear();
+            mainHandler.removeCallbacks(flushRunnable);
+            flushScheduled = false;
+        }
+    }
+
+    // Must hold the lock
+    private void scheduleFlush() {
+        if (!flushScheduled) {
+            flushScheduled = true;
+            mainHandler.post(flushRunnable);
+        }
+    }
+
+    private void flush() {
+        Listener target;
+        ArrayList<ServiceEvent> batch;
+        synchronized (this) {
+            flushScheduled = false;
+            target = listener;
+            if (target == null || pending.isEmpty()) {
+                return;
+            }
+            // Swap buffers so posting can continue while the batch is delivered
+            batch = pending;
+            pending = delivering;
+            delivering = batch;
+        }
+        try {
+            target.onEvents(batch);
+        } finally {
+            batch.clear();
+        }
+    }
+}
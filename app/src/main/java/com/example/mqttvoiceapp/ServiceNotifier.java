@@ -0,0 +1,135 @@
+package com.example.mqttvoiceapp;
+
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import androidx.core.app.NotificationCompat;
+
+/**
+ * Keeps the foreground notification up to date without flooding the system.
+ * One builder and one PendingIntent are created up front and reused; an
+ * update whose text matches what is shown is dropped, and notifications are
+ * posted at most once per {@code minIntervalMs}. Updates arriving faster are
+ * folded together so the latest state is always what ends up on screen.
+ *
+ * <p>May be called from any thread; the builder is only touched on the main
+ * thread.
+ */
+public class ServiceNotifier {
+    private final NotificationManager manager;
+    private final NotificationCompat.Builder builder;
+    private final int notificationId;
+    private final long minIntervalMs;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Runnable publishRunnable = this::publish;
+
+    // Latest requested state, guarded by this
+    private String contentText;
+    private String detailText;
+    private boolean publishScheduled;
+    // Main thread only
+    private String shownContentText;
+    private String shownDetailText;
+    private long lastPublishUptime = -1;
+
+    public ServiceNotifier(Context context, String channelId, int notificationId, long minIntervalMs) {
+        this.manager = (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
+        this.notificationId = notificationId;
+        this.minIntervalMs = minIntervalMs;
+        PendingIntent pendingIntent = PendingIntent.getActivity(
+            context, 0, new Intent(context, MainActivity.class), PendingIntent.FLAG_IMMUTABLE);
+        this.builder = new NotificationCompat.Builder(context, channelId)
+            .setContentTitle("MQTT语音播报服务")
+            .setSmallIcon(android.R.drawable.ic_dialog_info)
+            .setContentIntent(pendingIntent)
+            .setOngoing(true)
+            .setOnlyAlertOnce(true)
+            .setShowWhen(false);
+    }
+
+    /** Builds the notification for startForeground. Must be called on the main thread. */
+    public Notification buildInitial(String text) {
+        synchronized (this) {
+            contentText = text;
+        }
+        shownContentText = text;
+        lastPublishUptime = SystemClock.uptimeMillis();
+        return builder.setContentText(text).build();
+    }
+
+    /** The main line: connection state. */
+    public void setContentText(String text) {
+        synchronized (this) {
+            if (text.equals(contentText)) {
+                return;
+            }
+            contentText = text;
+        }
+        schedulePublish();
+    }
+
+    /** The secondary line, e.g. throughput and queue depth; null hides it. */
+    public void setDetailText(String text) {
+        synchronized (this) {
+            if (text == null ? detailText == null : text.equals(detailText)) {
+                return;
+            }
+            detailText = text;
+        }
+        schedulePublish();
+    }
+
+    public void cancelPending() {
+        synchronized (this) {
+            publishScheduled = false;
+        }
+        mainHandler.removeCallbacks(publishRunnable);
+    }
+
+    private void schedulePublish() {
+        synchronized (this) {
+            if (publishScheduled) {
+                // The scheduled publish will pick up the latest state
+                return;
+            }
+            publishScheduled = true;
+        }
+        mainHandler.post(() -> {
+            long wait = lastPublishUptime < 0 ? 0 : lastPublishUptime + minIntervalMs - SystemClock.uptimeMillis();
+            if (wait > 0) {
+                mainHandler.postDelayed(publishRunnable, wait);
+            } else {
+                publish();
+            }
+        });
+    }
+
+    private void publish() {
+        String text;
+        String detail;
+        synchronized (this) {
+            if (!publishScheduled) {
+                return;
+            }
+            publishScheduled = false;
+            text = contentText;
+            detail = detailText;
+        }
+        boolean textChanged = text != null && !text.equals(shownContentText);
+        boolean detailChanged = detail == null ? shownDetailText != null : !detail.equals(shownDetailText);
+        if (!textChanged && !detailChanged) {
+            // Changed and changed back before it was shown
+            return;
+        }
+        shownContentText = text;
+        shownDetailText = detail;
+        lastPublishUptime = SystemClock.uptimeMillis();
+        builder.setContentText(text).setSubText(detail);
+        manager.notify(notificationId, builder.build());
+    }
+}
@@ -0,0 +1,174 @@
+package com.example.mqttvoiceapp;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * LRU cache of synthesized speech, bounded by the total size of the decoded
+ * PCM it holds. Keys combine the text with everything that changes how it
+ * sounds (locale, rate, pitch), so a clip is only reused when it would be
+ * synthesized identically.
+ */
+public class SpeechCache {
+    /** Decoded 16-bit PCM ready to hand to an AudioTrack. */
+    public static class Clip {
+        public final byte[] pcm;
+        public final int sampleRate;
+        public final int channels;
+
+        Clip(byte[] pcm, int sampleRate, int channels) {
+            this.pcm = pcm;
+            this.sampleRate = sampleRate;
+            this.channels = channels;
+        }
+
+        public int frameCount() {
+            return pcm.length / (2 * channels);
+        }
+    }
+
+    private final long maxBytes;
+    private final LinkedHashMap<String, Clip> clips = new LinkedHashMap<>(64, 0.75f, true);
+    private long currentBytes;
+
+    private long hits;
+    private long misses;
+    private long hitFirstAudioNanos;
+    private long hitFirstAudioSamples;
+    private long missFirstAudioNanos;
+    private long missFirstAudioSamples;
+
+    public SpeechCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public static String key(String text, String locale, float rate, float pitch) {
+        return locale + '|' + rate + '|' + pitch + '|' + text;
+    }
+
+    public synchronized Clip get(String key) {
+        Clip clip = clips.get(key);
+        if (clip != null) {
+            hits++;
+        } else {
+            misses++;
+        }
+        return clip;
+    }
+
+    public synchronized boolean contains(String key) {
+        return clips.containsKey(key);
+    }
+
+    public synchronized void put(String key, Clip clip) {
+        if (clip.pcm.length > maxBytes) {
+            return;
+        }
+        Clip previous = clips.put(key, clip);
+        currentBytes += clip.pcm.length;
+        if (previous != null) {
+            currentBytes -= previous.pcm.length;
+        }
+        Iterator<Map.Entry<String, Clip>> iterator = clips.entrySet().iterator();
+        while (currentBytes > maxBytes && iterator.hasNext()) {
+            currentBytes -= iterator.next().getValue().pcm.length;
+            iterator.remove();
+        }
+    }
+
+    public synchronized void recordHitFirstAudio(long nanos) {
+        hitFirstAudioNanos += nanos;
+        hitFirstAudioSamples++;
+    }
+
+    public synchronized void recordMissFirstAudio(long nanos) {
+        missFirstAudioNanos += nanos;
+        missFirstAudioSamples++;
+    }
+
+    public synchronized String summary() {
+        long lookups = hits + misses;
+        StringBuilder builder = new StringBuilder()
+            .append("语音缓存 ").append(clips.size()).append(" 条/")
+            .append(currentBytes / 1024).append(" KB，命中率 ")
+            .append(lookups == 0 ? 0 : hits * 100 / lookups).append("%");
+        if (hitFirstAudioSamples > 0) {
+            builder.append("，命中首音 ")
+                .append(hitFirstAudioNanos / hitFirstAudioSamples / 1000000).append(" ms");
+        }
+        if (missFirstAudioSamples > 0) {
+            builder.append("，未命中首音 ")
+                .append(missFirstAudioNanos / missFirstAudioSamples / 1000000).append(" ms");
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Reads a PCM WAV file as written by TextToSpeech.synthesizeToFile.
+     * Returns null for anything other than 16-bit PCM.
+     */
+    public static Clip readWav(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            byte[] tag = new byte[4];
+            in.readFully(tag);
+            if (!"RIFF".equals(new String(tag, StandardCharsets.US_ASCII))) {
+                return null;
+            }
+            in.skipBytes(4);
+            in.readFully(tag);
+            if (!"WAVE".equals(new String(tag, StandardCharsets.US_ASCII))) {
+                return null;
+            }
+            int sampleRate = 0;
+            int channels = 0;
+            int bitsPerSample = 0;
+            while (true) {
+                in.readFully(tag);
+                int chunkSize = Integer.reverseBytes(in.readInt());
+                String chunk = new String(tag, StandardCharsets.US_ASCII);
+                if ("fmt ".equals(chunk)) {
+                    int format = Short.reverseBytes(in.readShort());
+                    channels = Short.reverseBytes(in.readShort());
+                    sampleRate = Integer.reverseBytes(in.readInt());
+                    in.skipBytes(6);
+                    bitsPerSample = Short.reverseBytes(in.readShort());
+                    in.skipBytes(chunkSize - 16);
+                    if (format != 1 || bitsPerSample != 16) {
+                        return null;
+                    }
+                } else if ("data".equals(chunk)) {
+                    if (channels <= 0 || sampleRate <= 0) {
+                        return null;
+                    }
+                    // Some engines leave the size at 0 or -1 while streaming; fall back to the file size
+                    long available = file.length() - 44;
+                    int size = chunkSize > 0 && chunkSize <= available ? chunkSize : (int) Math.max(0, available);
+                    byte[] pcm = new byte[size];
+                    int read = 0;
+                    while (read < size) {
+                        int count = in.read(pcm, read, size - read);
+                        if (count < 0) {
+                            break;
+                        }
+                        read += count;
+                    }
+                    if (read < size) {
+                        byte[] trimmed = new byte[read];
+                        System.arraycopy(pcm, 0, trimmed, 0, read);
+                        pcm = trimmed;
+                    }
+                    return new Clip(pcm, sampleRate, channels);
+                } else {
+                    in.skipBytes(chunkSize + (chunkSize & 1));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,577 @@
+package com.example.mqttvoiceapp;
+
+import android.media.AudioAttributes;
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.os.Handler;
+import android.os.Looper;
+import android.speech.tts.TextToSpeech;
+import android.speech.tts.UtteranceProgressListener;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The engine side of {@link SpeechScheduler}. Short phrases that have been
+ * synthesized before are played straight from {@link SpeechCache} through an
+ * AudioTrack; everything else goes to TextToSpeech. Cacheable phrases that
+ * missed are queued for synthesis to a file so a later occurrence is a hit.
+ * Synthesis shares the engine with live speech, so it runs one phrase at a
+ * time and only while no message is being spoken; a message that needs the
+ * engine cancels it and the phrase is queued again.
+ *
+ * <p>Longer texts are split by {@link SpeechSegmenter}. The first segment is
+ * handed to the engine at once and each following one is queued when its
+ * predecessor starts playing, so the engine synthesizes ahead by exactly one
+ * segment. The listener still sees one start and one finish per message, and
+ * a flushing request drops whatever segments of the current message are left.
+ */
+public class SpeechOutput implements SpeechScheduler.Speaker {
+    public interface ProgressListener {
+        /** Audio for the utterance has started, from the cache or the engine. */
+        void onUtteranceStart(String utteranceId);
+
+        void onUtteranceFinished(String utteranceId);
+    }
+
+    private static final String TAG = "SpeechOutput";
+    // Longer texts are rarely repeated verbatim and would crowd out the short ones
+    private static final int MAX_CACHEABLE_LENGTH = 64;
+    private static final String SYNTHESIS_PREFIX = "synth_";
+    private static final int MAX_WARM_UP = 32;
+    // Oldest phrases are dropped first; a phrase that keeps recurring is queued again
+    private static final int MAX_SYNTHESIS_BACKLOG = 64;
+    private static final int FIRST_SEGMENT_MAX = 40;
+    private static final int SEGMENT_MAX = 200;
+    // A cache hit counts as started once 5 ms of it have played
+    private static final int FIRST_AUDIO_PERIODS_PER_SECOND = 200;
+
+    private static class Synthesis {
+        final String key;
+        final String text;
+        final RouteProfile voice;
+        // Set once the phrase is handed to the engine
+        String utteranceId;
+        File file;
+
+        Synthesis(String key, String text, RouteProfile voice) {
+            this.key = key;
+            this.text = text;
+            this.voice = voice;
+        }
+    }
+
+    /** A long message being spoken segment by segment. */
+    private static class Segmented {
+        final String utteranceId;
+        final List<String> segments;
+        final String[] segmentIds;
+        int queued;
+
+        Segmented(String utteranceId, List<String> segments) {
+            this.utteranceId = utteranceId;
+            this.segments = segments;
+            this.segmentIds = new String[segments.size()];
+            for (int i = 0; i < segmentIds.length; i++) {
+                segmentIds[i] = utteranceId + '#' + i;
+            }
+        }
+
+        int indexOf(String segmentId) {
+            for (int i = 0; i < queued; i++) {
+                if (segmentIds[i].equals(segmentId)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    private final File workDir;
+    private final SpeechCache cache;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final ArrayDeque<Synthesis> synthesisBacklog = new ArrayDeque<>();
+    private final Map<String, Long> missStartNanos = new HashMap<>();
+    private final SpeechSegmenter segmenter = new SpeechSegmenter(FIRST_SEGMENT_MAX,
+        Math.min(SEGMENT_MAX, TextToSpeech.getMaxSpeechInputLength()));
+
+    private ProgressListener progressListener;
+    private TextToSpeech textToSpeech;
+    // Voice settings currently applied to the engine
+    private Locale locale = Locale.CHINESE;
+    private float speechRate = 1.0f;
+    private float pitch = 1.0f;
+    private long synthesisSequence;
+    private AudioTrack playingTrack;
+    private String playingUtteranceId;
+    private Segmented segmented;
+    // The message handed over last, until it finishes; cache synthesis waits while it is set
+    private String activeUtteranceId;
+    private Synthesis synthesis;
+
+    public SpeechOutput(File workDir, long cacheBytes) {
+        this.workDir = workDir;
+        this.cache = new SpeechCache(cacheBytes);
+    }
+
+    public void setProgressListener(ProgressListener progressListener) {
+        this.progressListener = progressListener;
+    }
+
+    public SpeechCache getCache() {
+        return cache;
+    }
+
+    /** Called once the engine is initialised and its language is set. */
+    public synchronized void attach(TextToSpeech textToSpeech, Locale locale) {
+        this.textToSpeech = textToSpeech;
+        this.locale = locale;
+        if (!workDir.exists() && !workDir.mkdirs()) {
+            Log.w(TAG, "无法创建语音缓存目录: " + workDir);
+        }
+        textToSpeech.setOnUtteranceProgressListener(engineListener);
+    }
+
+    /**
+     * Queues phrases that are expected to be announced often for synthesis,
+     * at most {@value #MAX_WARM_UP} of them. They are synthesized while
+     * nothing is being spoken. Returns how many phrases were taken.
+     */
+    public synchronized int warmUp(List<String> phrases) {
+        int taken = 0;
+        for (String phrase : phrases) {
+            if (taken >= MAX_WARM_UP) {
+                break;
+            }
+            String text = phrase.trim();
+            if (!text.isEmpty() && text.length() <= MAX_CACHEABLE_LENGTH) {
+                queueSynthesis(text, cacheKey(text, RouteProfile.DEFAULT), RouteProfile.DEFAULT);
+                taken++;
+            }
+        }
+        synthesizeIfIdle();
+        return taken;
+    }
+
+    /**
+     * Starts a message. If neither the cache nor the engine can take it, it is
+     * reported finished at once; the engine would never call back for it, and
+     * the scheduler would wait for it forever.
+     */
+    @Override
+    public void speak(String text, boolean flush, String utteranceId, RouteProfile voice) {
+        if (!start(text, flush, utteranceId, voice)) {
+            notifyFinished(utteranceId);
+        }
+    }
+
+    /** Returns false if the message could not be started. */
+    private synchronized boolean start(String text, boolean flush, String utteranceId, RouteProfile voice) {
+        activeUtteranceId = utteranceId;
+        applyVoice(voice);
+        boolean cacheable = text.length() <= MAX_CACHEABLE_LENGTH;
+        String key = cacheable ? cacheKey(text, voice) : null;
+        SpeechCache.Clip clip = cacheable ? cache.get(key) : null;
+        // The scheduler hands over one message at a time, so a new one always ends the previous
+        segmented = null;
+        if (flush) {
+            stopPlayback();
+            // The engine may drop flushed utterances without calling onStart or onStop
+            missStartNanos.clear();
+        }
+        if (!cacheable) {
+            if (!speakSegmented(text, cancelSynthesis() || flush, utteranceId)) {
+                return failed(utteranceId);
+            }
+            return true;
+        }
+        if (clip != null) {
+            long start = System.nanoTime();
+            if (flush) {
+                cancelSynthesis();
+                textToSpeech.stop();
+            }
+            if (play(clip, utteranceId, start)) {
+                return true;
+            }
+            // The clip cannot be played; let the engine say it instead
+        }
+        missStartNanos.put(utteranceId, System.nanoTime());
+        boolean engineFlush = cancelSynthesis() || flush;
+        if (textToSpeech.speak(text, engineFlush ? TextToSpeech.QUEUE_FLUSH : TextToSpeech.QUEUE_ADD,
+                null, utteranceId) != TextToSpeech.SUCCESS) {
+            missStartNanos.remove(utteranceId);
+            return failed(utteranceId);
+        }
+        // Synthesized once the engine is idle, never alongside this utterance
+        queueSynthesis(text, key, voice);
+        return true;
+    }
+
+    // Must hold the lock
+    private boolean failed(String utteranceId) {
+        Log.w(TAG, "无法播报: " + utteranceId);
+        if (utteranceId.equals(activeUtteranceId)) {
+            activeUtteranceId = null;
+        }
+        return false;
+    }
+
+    public synchronized void release() {
+        segmented = null;
+        activeUtteranceId = null;
+        missStartNanos.clear();
+        stopPlayback();
+        synthesisBacklog.clear();
+        if (synthesis != null) {
+            synthesis.file.delete();
+            synthesis = null;
+        }
+    }
+
+    // Must hold the lock. The engine copies these settings into each request when it is queued.
+    private void applyVoice(RouteProfile voice) {
+        if (!voice.locale.equals(locale)) {
+            textToSpeech.setLanguage(voice.locale);
+            locale = voice.locale;
+        }
+        if (voice.speechRate != speechRate) {
+            textToSpeech.setSpeechRate(voice.speechRate);
+            speechRate = voice.speechRate;
+        }
+        if (voice.pitch != pitch) {
+            textToSpeech.setPitch(voice.pitch);
+            pitch = voice.pitch;
+        }
+    }
+
+    private static String cacheKey(String text, RouteProfile voice) {
+        return SpeechCache.key(text, voice.locale.toString(), voice.speechRate, voice.pitch);
+    }
+
+    // Must hold the lock
+    private void queueSynthesis(String text, String key, RouteProfile voice) {
+        if (cache.contains(key) || (synthesis != null && synthesis.key.equals(key))) {
+            return;
+        }
+        for (Synthesis queued : synthesisBacklog) {
+            if (queued.key.equals(key)) {
+                return;
+            }
+        }
+        if (synthesisBacklog.size() >= MAX_SYNTHESIS_BACKLOG) {
+            synthesisBacklog.pollFirst();
+        }
+        synthesisBacklog.addLast(new Synthesis(key, text, voice));
+    }
+
+    /**
+     * Must hold the lock. Hands the next queued phrase to the engine when no
+     * message is active. The scheduler hands over its next message from the
+     * finish callback, so a message that finishes with nothing active
+     * afterwards means both this and the scheduler are idle.
+     */
+    private void synthesizeIfIdle() {
+        while (textToSpeech != null && activeUtteranceId == null && synthesis == null
+                && !synthesisBacklog.isEmpty()) {
+            Synthesis next = synthesisBacklog.pollFirst();
+            if (cache.contains(next.key)) {
+                continue;
+            }
+            applyVoice(next.voice);
+            next.utteranceId = SYNTHESIS_PREFIX + (++synthesisSequence);
+            next.file = new File(workDir, next.utteranceId + ".wav");
+            synthesis = next;
+            if (textToSpeech.synthesizeToFile(next.text, null, next.file, next.utteranceId) != TextToSpeech.SUCCESS) {
+                synthesis = null;
+            }
+        }
+    }
+
+    /**
+     * Must hold the lock. Takes a running synthesis off the engine so live
+     * speech does not wait behind it; the phrase goes back to the front of
+     * the backlog. Returns true when the engine queue has to be flushed.
+     */
+    private boolean cancelSynthesis() {
+        if (synthesis == null) {
+            return false;
+        }
+        if (synthesisBacklog.size() >= MAX_SYNTHESIS_BACKLOG) {
+            synthesisBacklog.pollLast();
+        }
+        synthesisBacklog.addFirst(new Synthesis(synthesis.key, synthesis.text, synthesis.voice));
+        synthesis = null;
+        return true;
+    }
+
+    // Must hold the lock. Returns false if the engine rejected the first segment.
+    private boolean speakSegmented(String text, boolean flush, String utteranceId) {
+        List<String> segments = segmenter.split(text);
+        if (segments.isEmpty()) {
+            segments.add(text);
+        }
+        segmented = new Segmented(utteranceId, segments);
+        missStartNanos.put(segmented.segmentIds[0], System.nanoTime());
+        if (!queueNextSegment(segmented, flush)) {
+            missStartNanos.remove(segmented.segmentIds[0]);
+            segmented = null;
+            return false;
+        }
+        return true;
+    }
+
+    // Must hold the lock. Returns false if the engine rejected the segment; it can be queued again.
+    private boolean queueNextSegment(Segmented message, boolean flush) {
+        if (message.queued >= message.segments.size()) {
+            return true;
+        }
+        int index = message.queued;
+        if (textToSpeech.speak(message.segments.get(index),
+                flush ? TextToSpeech.QUEUE_FLUSH : TextToSpeech.QUEUE_ADD, null,
+                message.segmentIds[index]) != TextToSpeech.SUCCESS) {
+            return false;
+        }
+        message.queued++;
+        return true;
+    }
+
+    // Must hold the lock. Returns false if the clip could not be played; nothing is left behind then.
+    private boolean play(SpeechCache.Clip clip, String utteranceId, long startNanos) {
+        int channelMask = clip.channels == 1 ? AudioFormat.CHANNEL_OUT_MONO : AudioFormat.CHANNEL_OUT_STEREO;
+        AudioTrack track;
+        try {
+            track = new AudioTrack(
+                new AudioAttributes.Builder()
+                    .setUsage(AudioAttributes.USAGE_MEDIA)
+                    .setContentType(AudioAttributes.CONTENT_TYPE_SPEECH)
+                    .build(),
+                new AudioFormat.Builder()
+                    .setEncoding(AudioFormat.ENCODING_PCM_16BIT)
+                    .setSampleRate(clip.sampleRate)
+                    .setChannelMask(channelMask)
+                    .build(),
+                clip.pcm.length,
+                AudioTrack.MODE_STATIC,
+                AudioManager.AUDIO_SESSION_ID_GENERATE);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "无法创建音频输出", e);
+            return false;
+        }
+        try {
+            if (track.getState() != AudioTrack.STATE_INITIALIZED
+                    || track.write(clip.pcm, 0, clip.pcm.length) < 0) {
+                track.release();
+                return false;
+            }
+            startTrack(track, clip, utteranceId, startNanos);
+            return true;
+        } catch (IllegalStateException | IllegalArgumentException e) {
+            Log.w(TAG, "缓存语音播放失败", e);
+            if (playingTrack == track) {
+                playingTrack = null;
+                playingUtteranceId = null;
+            }
+            track.release();
+            return false;
+        }
+    }
+
+    /**
+     * Must hold the lock. play() returns before any audio is out, so the start
+     * is reported when the playback head first passes a short period, the same
+     * moment the engine's onStart stands for on a miss. The end marker reports
+     * the finish.
+     */
+    private void startTrack(AudioTrack track, SpeechCache.Clip clip, String utteranceId, long startNanos) {
+        int frames = Math.max(1, clip.frameCount());
+        track.setNotificationMarkerPosition(frames);
+        track.setPositionNotificationPeriod(
+            Math.max(1, Math.min(frames, clip.sampleRate / FIRST_AUDIO_PERIODS_PER_SECOND)));
+        track.setPlaybackPositionUpdateListener(new AudioTrack.OnPlaybackPositionUpdateListener() {
+            @Override
+            public void onMarkerReached(AudioTrack finished) {
+                onPlaybackFinished(finished, utteranceId);
+            }
+
+            @Override
+            public void onPeriodicNotification(AudioTrack playing) {
+                onPlaybackStarted(playing, utteranceId, startNanos);
+            }
+        }, mainHandler);
+        playingTrack = track;
+        playingUtteranceId = utteranceId;
+        track.play();
+    }
+
+    private void onPlaybackStarted(AudioTrack track, String utteranceId, long startNanos) {
+        synchronized (this) {
+            if (playingTrack != track) {
+                return;
+            }
+            // Only the first period matters
+            track.setPositionNotificationPeriod(0);
+        }
+        cache.recordHitFirstAudio(System.nanoTime() - startNanos);
+        notifyStarted(utteranceId);
+    }
+
+    private void onPlaybackFinished(AudioTrack track, String utteranceId) {
+        synchronized (this) {
+            if (playingTrack != track) {
+                return;
+            }
+            playingTrack = null;
+            playingUtteranceId = null;
+            track.release();
+            if (utteranceId.equals(activeUtteranceId)) {
+                activeUtteranceId = null;
+            }
+        }
+        notifyFinished(utteranceId);
+        synchronized (this) {
+            synthesizeIfIdle();
+        }
+    }
+
+    // Must hold the lock
+    private void stopPlayback() {
+        if (playingTrack == null) {
+            return;
+        }
+        AudioTrack track = playingTrack;
+        playingTrack = null;
+        playingUtteranceId = null;
+        track.stop();
+        track.release();
+    }
+
+    private void notifyStarted(String utteranceId) {
+        ProgressListener listener = progressListener;
+        if (listener != null) {
+            listener.onUtteranceStart(utteranceId);
+        }
+    }
+
+    private void notifyFinished(String utteranceId) {
+        ProgressListener listener = progressListener;
+        if (listener != null) {
+            listener.onUtteranceFinished(utteranceId);
+        }
+    }
+
+    private void onSynthesisFinished(String utteranceId, boolean success) {
+        Synthesis finished;
+        synchronized (this) {
+            if (synthesis == null || !synthesis.utteranceId.equals(utteranceId)) {
+                // Cancelled for live speech or released; drop whatever the engine wrote
+                new File(workDir, utteranceId + ".wav").delete();
+                return;
+            }
+            finished = synthesis;
+            synthesis = null;
+        }
+        if (success) {
+            try {
+                SpeechCache.Clip clip = SpeechCache.readWav(finished.file);
+                if (clip != null) {
+                    cache.put(finished.key, clip);
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "读取合成语音失败", e);
+            }
+        }
+        finished.file.delete();
+        synchronized (this) {
+            synthesizeIfIdle();
+        }
+    }
+
+    private final UtteranceProgressListener engineListener = new UtteranceProgressListener() {
+        @Override
+        public void onStart(String utteranceId) {
+            if (utteranceId.startsWith(SYNTHESIS_PREFIX)) {
+                return;
+            }
+            Long start;
+            String messageId = utteranceId;
+            synchronized (SpeechOutput.this) {
+                start = missStartNanos.remove(utteranceId);
+                Segmented message = segmented;
+                int index = message != null ? message.indexOf(utteranceId) : -1;
+                if (index >= 0) {
+                    // Let the engine synthesize the next segment while this one plays
+                    queueNextSegment(message, false);
+                    if (index > 0) {
+                        return;
+                    }
+                    messageId = message.utteranceId;
+                } else if (utteranceId.indexOf('#') >= 0) {
+                    // A segment of a message that has since been cancelled
+                    return;
+                }
+            }
+            if (start != null) {
+                cache.recordMissFirstAudio(System.nanoTime() - start);
+            }
+            notifyStarted(messageId);
+        }
+
+        @Override
+        public void onDone(String utteranceId) {
+            finished(utteranceId, true);
+        }
+
+        @Override
+        public void onError(String utteranceId) {
+            finished(utteranceId, false);
+        }
+
+        @Override
+        public void onStop(String utteranceId, boolean interrupted) {
+            finished(utteranceId, false);
+        }
+
+        private void finished(String utteranceId, boolean success) {
+            if (utteranceId.startsWith(SYNTHESIS_PREFIX)) {
+                onSynthesisFinished(utteranceId, success);
+                return;
+            }
+            String messageId = utteranceId;
+            synchronized (SpeechOutput.this) {
+                missStartNanos.remove(utteranceId);
+                Segmented message = segmented;
+                int index = message != null ? message.indexOf(utteranceId) : -1;
+                if (index >= 0) {
+                    // The next segment is normally queued when this one started; if the engine
+                    // rejected it then and rejects it again now, the message cannot go on
+                    if (success && index < message.segments.size() - 1 && queueNextSegment(message, false)) {
+                        return;
+                    }
+                    // Last segment done, or the message failed part-way: it is over either way
+                    segmented = null;
+                    if (message.queued > index + 1) {
+                        textToSpeech.stop();
+                    }
+                    messageId = message.utteranceId;
+                } else if (utteranceId.indexOf('#') >= 0) {
+                    return;
+                }
+                if (messageId.equals(activeUtteranceId)) {
+                    activeUtteranceId = null;
+                }
+            }
+            notifyFinished(messageId);
+            synchronized (SpeechOutput.this) {
+                synthesizeIfIdle();
+            }
+        }
+    };
+}
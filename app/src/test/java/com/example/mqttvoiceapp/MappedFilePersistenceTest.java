@@ -0,0 +1,449 @@
+package com.example.mqttvoiceapp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import io.moquette.broker.Server;
+import io.moquette.broker.config.MemoryConfig;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
+import org.eclipse.paho.client.mqttv3.internal.MqttPersistentData;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+public class MappedFilePersistenceTest {
+    private static final String CLIENT_ID = "client";
+    private static final String SERVER = "tcp://broker:1883";
+    private static final byte[] PAYLOAD = "三号门告警".getBytes(StandardCharsets.UTF_8);
+    private static final int PUBLISH = 3;
+    private static final int DUP = 0x08;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private ScheduledExecutorService syncExecutor;
+    private final List<MappedFilePersistence> opened = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        syncExecutor = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (MappedFilePersistence persistence : opened) {
+            persistence.close();
+        }
+        syncExecutor.shutdownNow();
+    }
+
+    private MappedFilePersistence open(File directory) throws MqttPersistenceException {
+        MappedFilePersistence persistence = new MappedFilePersistence(directory, syncExecutor, 10);
+        persistence.open(CLIENT_ID, SERVER);
+        opened.add(persistence);
+        return persistence;
+    }
+
+    private static MqttPersistentData record(String key, String header, String payload) {
+        byte[] headerBytes = header.getBytes(StandardCharsets.UTF_8);
+        byte[] payloadBytes = payload.getBytes(StandardCharsets.UTF_8);
+        return new MqttPersistentData(key, headerBytes, 0, headerBytes.length, payloadBytes, 0, payloadBytes.length);
+    }
+
+    private static String payloadOf(MappedFilePersistence persistence, String key) throws MqttPersistenceException {
+        return new String(persistence.get(key).getPayloadBytes(), StandardCharsets.UTF_8);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<String> keysOf(MappedFilePersistence persistence) throws MqttPersistenceException {
+        return Collections.list(persistence.keys());
+    }
+
+    private static File logFile(File directory) {
+        File[] logs = directory.listFiles((dir, name) -> name.endsWith(".log"));
+        assertEquals(1, logs.length);
+        return logs[0];
+    }
+
+    @Test
+    public void replaysPutsAndRemovesAfterRestart() throws Exception {
+        File directory = folder.newFolder();
+        MappedFilePersistence persistence = open(directory);
+        persistence.put("s-1", record("s-1", "h1", "one"));
+        persistence.put("s-2", record("s-2", "h2", "two"));
+        persistence.put("s-1", record("s-1", "h1", "one again"));
+        persistence.remove("s-2");
+        // Simulates a process kill: nothing is closed, the mapped pages are all that is left
+        MappedFilePersistence restarted = open(directory);
+
+        assertEquals(Collections.singletonList("s-1"), keysOf(restarted));
+        assertEquals("one again", payloadOf(restarted, "s-1"));
+        assertArrayEquals("h1".getBytes(StandardCharsets.UTF_8), restarted.get("s-1").getHeaderBytes());
+        assertNull(restarted.get("s-2"));
+    }
+
+    @Test
+    public void tornTailIsDroppedAndLogStaysUsable() throws Exception {
+        File directory = folder.newFolder();
+        MappedFilePersistence persistence = open(directory);
+        persistence.put("s-1", record("s-1", "h", "kept"));
+        persistence.put("s-2", record("s-2", "h", "torn"));
+        persistence.close();
+        opened.remove(persistence);
+
+        // Corrupt the last byte of the second record, as a write cut short by power loss would
+        File log = logFile(directory);
+        try (RandomAccessFile file = new RandomAccessFile(log, "rw")) {
+            int first = file.readInt();
+            file.seek(first);
+            int second = file.readInt();
+            long last = first + second - 1;
+            file.seek(last);
+            int value = file.read();
+            file.seek(last);
+            file.write(value ^ 0xff);
+        }
+
+        MappedFilePersistence restarted = open(directory);
+        assertTrue(restarted.containsKey("s-1"));
+        assertFalse(restarted.containsKey("s-2"));
+        restarted.put("s-3", record("s-3", "h", "after"));
+        restarted.close();
+        opened.remove(restarted);
+
+        MappedFilePersistence again = open(directory);
+        assertEquals("kept", payloadOf(again, "s-1"));
+        assertEquals("after", payloadOf(again, "s-3"));
+        assertFalse(again.containsKey("s-2"));
+    }
+
+    @Test
+    public void compactionKeepsLiveEntries() throws Exception {
+        File directory = folder.newFolder();
+        MappedFilePersistence persistence = open(directory);
+        String filler = new String(new char[1000]).replace('\0', 'x');
+        for (int i = 0; i < 500; i++) {
+            persistence.put("s-" + (i % 5), record("s", "h", filler + i));
+        }
+        assertTrue("log was never compacted", logFile(directory).length() < 500 * 1000);
+        MappedFilePersistence restarted = open(directory);
+        assertEquals(5, keysOf(restarted).size());
+        assertEquals(filler + 499, payloadOf(restarted, "s-4"));
+    }
+
+    @Test
+    public void failedCompactionLeavesPersistenceOpen() throws Exception {
+        File directory = folder.newFolder();
+        MappedFilePersistence persistence = new MappedFilePersistence(directory, syncExecutor, 10) {
+            @Override
+            boolean replaceLog(File compacted, File log) {
+                return false;
+            }
+        };
+        persistence.open(CLIENT_ID, SERVER);
+        opened.add(persistence);
+        String filler = new String(new char[1000]).replace('\0', 'x');
+        // Compaction keeps failing; the writes that trigger it must not
+        for (int i = 0; i < 200; i++) {
+            persistence.put("s-" + (i % 2), record("s", "h", filler + i));
+        }
+        assertTrue("log was compacted after all", logFile(directory).length() > 200 * 1000);
+        persistence.put("s-9", record("s-9", "h", "after failure"));
+        assertEquals("after failure", payloadOf(persistence, "s-9"));
+        File[] leftovers = directory.listFiles((dir, name) -> name.endsWith(".tmp"));
+        assertEquals(0, leftovers.length);
+
+        MappedFilePersistence restarted = open(directory);
+        assertEquals("after failure", payloadOf(restarted, "s-9"));
+        assertEquals(filler + 198, payloadOf(restarted, "s-0"));
+        assertEquals(filler + 199, payloadOf(restarted, "s-1"));
+    }
+
+    @Test
+    public void failedClearKeepsEntries() throws Exception {
+        File directory = folder.newFolder();
+        MappedFilePersistence persistence = new MappedFilePersistence(directory, syncExecutor, 10) {
+            @Override
+            boolean replaceLog(File compacted, File log) {
+                return false;
+            }
+        };
+        persistence.open(CLIENT_ID, SERVER);
+        opened.add(persistence);
+        persistence.put("s-1", record("s-1", "h", "one"));
+        try {
+            persistence.clear();
+            fail("clear should have failed");
+        } catch (MqttPersistenceException expected) {
+            // Falls through to the checks below
+        }
+        assertEquals("one", payloadOf(persistence, "s-1"));
+    }
+
+    /**
+     * A QoS 1 message that the broker never acknowledged is still in the log
+     * after the client process dies, and a new client with the same id sends
+     * it again, unchanged apart from the DUP flag, and drops it from the log
+     * once it is acknowledged.
+     */
+    @Test
+    public void unacknowledgedPublishSurvivesClientCrash() throws Exception {
+        File directory = folder.newFolder();
+        int brokerPort = freePort();
+        Properties config = new Properties();
+        config.setProperty("host", "127.0.0.1");
+        config.setProperty("port", Integer.toString(brokerPort));
+        config.setProperty("websocket_port", "disabled");
+        config.setProperty("persistence_enabled", "false");
+        config.setProperty("allow_anonymous", "true");
+        Server broker = new Server();
+        broker.startServer(new MemoryConfig(config));
+        // Paho names the log after the client's server URI, so both clients use the broker's
+        // and reach it through a proxy given as the connect URI
+        String brokerUrl = "tcp://127.0.0.1:" + brokerPort;
+        BlockingQueue<byte[]> firstPublishes = new LinkedBlockingQueue<>();
+        BlockingQueue<byte[]> resentPublishes = new LinkedBlockingQueue<>();
+        MqttProxy stalling = new MqttProxy(brokerPort, (packet, proxy) -> {
+            if (packetType(packet) != PUBLISH) {
+                return false;
+            }
+            // Swallowed: the broker never sees it and never acknowledges it
+            firstPublishes.add(packet);
+            return true;
+        });
+        // Moquette only re-routes a DUP publish to subscribers it failed earlier and never
+        // acknowledges one it has not seen, so the proxy acknowledges the resend itself
+        MqttProxy acknowledging = new MqttProxy(brokerPort, (packet, proxy) -> {
+            if (packetType(packet) != PUBLISH || (packet[0] & DUP) == 0) {
+                return false;
+            }
+            resentPublishes.add(packet);
+            int idOffset = packet.length - PAYLOAD.length - 2;
+            proxy.sendToClient(new byte[] {0x40, 0x02, packet[idOffset], packet[idOffset + 1]});
+            return true;
+        });
+        try {
+            MappedFilePersistence firstLog = new MappedFilePersistence(directory, syncExecutor, 10);
+            MqttAsyncClient publisher = new MqttAsyncClient(brokerUrl, CLIENT_ID, firstLog);
+            CountDownLatch lost = new CountDownLatch(1);
+            publisher.setCallback(new MqttCallback() {
+                @Override
+                public void connectionLost(Throwable cause) {
+                    lost.countDown();
+                }
+
+                @Override
+                public void messageArrived(String topic, MqttMessage message) {
+                }
+
+                @Override
+                public void deliveryComplete(IMqttDeliveryToken token) {
+                }
+            });
+            publisher.connect(sessionVia(stalling)).waitForCompletion(5000);
+            publisher.publish("alerts", PAYLOAD, 1, false);
+            byte[] original = firstPublishes.poll(5, TimeUnit.SECONDS);
+            assertTrue(firstLog.containsKey("s-1"));
+            // The process dies: the connection drops and nothing is closed
+            stalling.kill();
+            assertTrue(lost.await(5, TimeUnit.SECONDS));
+
+            MappedFilePersistence secondLog = new MappedFilePersistence(directory, syncExecutor, 10);
+            MqttAsyncClient restarted = new MqttAsyncClient(brokerUrl, CLIENT_ID, secondLog);
+            restarted.connect(sessionVia(acknowledging)).waitForCompletion(5000);
+            byte[] resent = resentPublishes.poll(5, TimeUnit.SECONDS);
+            original[0] |= DUP;
+            assertArrayEquals(original, resent);
+            assertTrue(waitFor(() -> !secondLog.containsKey("s-1")));
+            restarted.disconnect().waitForCompletion(5000);
+            restarted.close();
+        } finally {
+            stalling.kill();
+            acknowledging.kill();
+            broker.stopServer();
+        }
+    }
+
+    private static int packetType(byte[] packet) {
+        return (packet[0] & 0xff) >>> 4;
+    }
+
+    private static MqttConnectOptions sessionVia(MqttProxy proxy) {
+        MqttConnectOptions options = new MqttConnectOptions();
+        options.setCleanSession(false);
+        options.setServerURIs(new String[] {"tcp://127.0.0.1:" + proxy.port()});
+        return options;
+    }
+
+    private interface Condition {
+        boolean holds() throws Exception;
+    }
+
+    private static boolean waitFor(Condition condition) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (System.nanoTime() < deadline) {
+            if (condition.holds()) {
+                return true;
+            }
+            Thread.sleep(10);
+        }
+        return condition.holds();
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    /**
+     * Forwards one client connection to the broker packet by packet. Packets
+     * from the client go to the interceptor first, which can keep them from
+     * the broker.
+     */
+    private static final class MqttProxy {
+        interface Interceptor {
+            /** Returns true if the packet was handled and must not reach the broker. */
+            boolean intercept(byte[] packet, MqttProxy proxy) throws IOException;
+        }
+
+        private final ServerSocket server;
+        private final List<Socket> sockets = Collections.synchronizedList(new ArrayList<>());
+        private volatile OutputStream toClient;
+
+        MqttProxy(int brokerPort, Interceptor interceptor) throws IOException {
+            server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+            Thread acceptor = new Thread(() -> {
+                try {
+                    Socket client = server.accept();
+                    Socket upstream = new Socket(InetAddress.getLoopbackAddress(), brokerPort);
+                    sockets.add(client);
+                    sockets.add(upstream);
+                    toClient = client.getOutputStream();
+                    InputStream fromClient = client.getInputStream();
+                    OutputStream toBroker = upstream.getOutputStream();
+                    start(() -> {
+                        byte[] packet;
+                        while ((packet = readPacket(fromClient)) != null) {
+                            if (!interceptor.intercept(packet, this)) {
+                                toBroker.write(packet);
+                                toBroker.flush();
+                            }
+                        }
+                    });
+                    InputStream fromBroker = upstream.getInputStream();
+                    start(() -> {
+                        byte[] packet;
+                        while ((packet = readPacket(fromBroker)) != null) {
+                            sendToClient(packet);
+                        }
+                    });
+                } catch (IOException ignored) {
+                    // Closed by kill()
+                }
+            }, "proxy-accept");
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        int port() {
+            return server.getLocalPort();
+        }
+
+        synchronized void sendToClient(byte[] packet) throws IOException {
+            toClient.write(packet);
+            toClient.flush();
+        }
+
+        void kill() throws IOException {
+            server.close();
+            synchronized (sockets) {
+                for (Socket socket : sockets) {
+                    socket.close();
+                }
+            }
+        }
+
+        private interface Pump {
+            void run() throws IOException;
+        }
+
+        private static void start(Pump pump) {
+            Thread thread = new Thread(() -> {
+                try {
+                    pump.run();
+                } catch (IOException ignored) {
+                    // Closed by kill()
+                }
+            }, "proxy-pump");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        /** Reads one whole MQTT packet, fixed header included, or returns null at end of stream. */
+        private static byte[] readPacket(InputStream in) throws IOException {
+            int first = in.read();
+            if (first < 0) {
+                return null;
+            }
+            ByteArrayOutputStream packet = new ByteArrayOutputStream();
+            packet.write(first);
+            int remaining = 0;
+            int shift = 0;
+            int digit;
+            do {
+                digit = in.read();
+                if (digit < 0) {
+                    return null;
+                }
+                packet.write(digit);
+                remaining |= (digit & 0x7f) << shift;
+                shift += 7;
+            } while ((digit & 0x80) != 0);
+            byte[] body = new byte[remaining];
+            int read = 0;
+            while (read < remaining) {
+                int count = in.read(body, read, remaining - read);
+                if (count < 0) {
+                    return null;
+                }
+                read += count;
+            }
+            packet.write(body, 0, remaining);
+            return packet.toByteArray();
+        }
+    }
+}
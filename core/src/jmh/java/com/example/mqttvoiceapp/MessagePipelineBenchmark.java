@@ -0,0 +1,55 @@
+package com.example.mqttvoiceapp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Hand-off cost from the MQTT callback thread into the pipeline, with the
+ * worker draining into a no-op handler.
+ */
+@State(Scope.Benchmark)
+public class MessagePipelineBenchmark {
+    @Param({"DROP_OLDEST", "DROP_NEWEST", "BLOCK"})
+    public String policy;
+
+    private final byte[] payload = "前台有新的快递需要签收".getBytes(StandardCharsets.UTF_8);
+    private MessagePipeline pipeline;
+    private long sequence;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        pipeline = new MessagePipeline(1024, OverflowPolicy.valueOf(policy), message -> { });
+        pipeline.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        pipeline.stop();
+    }
+
+    @Benchmark
+    public boolean submit() {
+        long id = ++sequence;
+        return pipeline.submit(new InboundMessage("home/door", payload, (int) id, 1, false,
+            System.nanoTime(), id, 0, null));
+    }
+
+    @Benchmark
+    public void ringBufferOfferPoll(RingState state, Blackhole blackhole) {
+        state.ring.offer(payload);
+        blackhole.consume(state.ring.poll());
+    }
+
+    @State(Scope.Thread)
+    public static class RingState {
+        final MessageRingBuffer<byte[]> ring = new MessageRingBuffer<>(1024);
+    }
+}
@@ -0,0 +1,63 @@
+package com.example.mqttvoiceapp;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The byte-level classifier against what the service did before: decode the
+ * payload to a String and try {@code new JSONObject(text)}.
+ */
+@State(Scope.Thread)
+public class PayloadClassifierBenchmark {
+    @Param({"plain", "tts_dynamic", "other_json"})
+    public String payloadKind;
+
+    private final PayloadClassifier classifier = new PayloadClassifier();
+    private final PayloadRecord record = new PayloadRecord();
+    private byte[] payload;
+
+    @Setup
+    public void setUp() {
+        String text;
+        switch (payloadKind) {
+            case "plain":
+                text = "前台有新的快递需要签收，请尽快到一楼大厅领取";
+                break;
+            case "tts_dynamic":
+                text = "{\"type\":\"tts_dynamic\",\"txt\":\"三号门有访客到达，请前台确认\",\"priority\":\"high\"}";
+                break;
+            case "other_json":
+            default:
+                text = "{\"sensor\":\"温度\",\"values\":[23.5,23.7,24.1],\"unit\":\"C\",\"ok\":true,\"ts\":1700000000}";
+                break;
+        }
+        payload = text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public PayloadRecord.Kind classifier() {
+        return classifier.classify(payload, record).kind;
+    }
+
+    @Benchmark
+    public PayloadRecord.Kind jsonObject() {
+        String text = new String(payload, StandardCharsets.UTF_8);
+        try {
+            JSONObject json = new JSONObject(text);
+            if (!"tts_dynamic".equals(json.optString("type")) || !json.has("txt")) {
+                return PayloadRecord.Kind.OTHER_JSON;
+            }
+            return json.getString("txt").trim().isEmpty()
+                ? PayloadRecord.Kind.TTS_EMPTY : PayloadRecord.Kind.TTS_DYNAMIC;
+        } catch (JSONException e) {
+            return PayloadRecord.Kind.PLAIN_TEXT;
+        }
+    }
+}
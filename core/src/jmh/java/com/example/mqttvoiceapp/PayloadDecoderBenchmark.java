@@ -0,0 +1,96 @@
+package com.example.mqttvoiceapp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Decode throughput per payload format. Run with {@code -prof gc} to see the
+ * allocation rate next to it.
+ */
+@State(Scope.Thread)
+public class PayloadDecoderBenchmark {
+    private static final String COMMAND = "{\"type\":\"tts_dynamic\",\"txt\":\"三号门有访客到达，请前台确认\"}";
+
+    @Param({"plain", "json", "gzip", "cbor_batch", "msgpack"})
+    public String format;
+
+    private final PayloadDecoder decoder = new PayloadDecoder(new PayloadClassifier());
+    private final List<PayloadRecord> records = new ArrayList<>();
+    private byte[] payload;
+
+    @Setup
+    public void setUp() throws IOException {
+        switch (format) {
+            case "plain":
+                payload = utf8("前台有新的快递需要签收");
+                break;
+            case "json":
+                payload = utf8(COMMAND);
+                break;
+            case "gzip": {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                try (GZIPOutputStream out = new GZIPOutputStream(bytes)) {
+                    out.write(utf8(COMMAND));
+                }
+                payload = bytes.toByteArray();
+                break;
+            }
+            case "cbor_batch": {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                out.write(0x84);
+                for (int i = 0; i < 4; i++) {
+                    out.write(0xa2);
+                    text(out, 0x60, "type");
+                    text(out, 0x60, "tts_dynamic");
+                    text(out, 0x60, "txt");
+                    text(out, 0x60, "第" + i + "条");
+                }
+                payload = out.toByteArray();
+                break;
+            }
+            case "msgpack":
+            default: {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                out.write(0x82);
+                text(out, 0xa0, "type");
+                text(out, 0xa0, "tts_dynamic");
+                text(out, 0xa0, "txt");
+                text(out, 0xa0, "三号门有访客");
+                payload = out.toByteArray();
+                break;
+            }
+        }
+    }
+
+    private static byte[] utf8(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    // Short strings only: the length fits in the type byte for both formats
+    private static void text(ByteArrayOutputStream out, int marker, String text) {
+        byte[] bytes = utf8(text);
+        out.write(marker | bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    @Benchmark
+    public int decode() {
+        decoder.decode(payload, records);
+        int count = records.size();
+        for (int i = 0; i < count; i++) {
+            records.get(i).recycle();
+        }
+        records.clear();
+        return count;
+    }
+}
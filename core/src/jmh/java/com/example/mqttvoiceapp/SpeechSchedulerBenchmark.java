@@ -0,0 +1,39 @@
+package com.example.mqttvoiceapp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Submitting to the scheduler while the engine is busy, so requests queue,
+ * coalesce and get trimmed instead of going straight to the speaker.
+ */
+@State(Scope.Thread)
+public class SpeechSchedulerBenchmark {
+    @Param({"1", "64"})
+    public int distinctKeys;
+
+    private SpeechScheduler scheduler;
+    private String[] keys;
+    private long sequence;
+
+    @Setup
+    public void setUp() {
+        scheduler = new SpeechScheduler((text, flush, utteranceId, voice) -> { }, null, 60_000, 256);
+        keys = new String[distinctKeys];
+        for (int i = 0; i < distinctKeys; i++) {
+            keys[i] = "sensor/" + i;
+        }
+    }
+
+    @Benchmark
+    public int submitWhileSpeaking() {
+        long id = ++sequence;
+        scheduler.submit(new SpeechRequest(keys[(int) (id % distinctKeys)], "门铃", (int) (id & 3) == 3
+            ? SpeechScheduler.PRIORITY_HIGH : SpeechScheduler.PRIORITY_NORMAL, System.nanoTime(), 0,
+            LatencyTracker.utteranceId(id, 0), RouteProfile.DEFAULT));
+        return scheduler.getQueuedCount();
+    }
+}
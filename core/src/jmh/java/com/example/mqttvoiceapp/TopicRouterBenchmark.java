@@ -0,0 +1,66 @@
+package com.example.mqttvoiceapp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Resolving topics against thousands of routes. The "wildcard" mix puts
+ * {@code +} and {@code #} on every level, which is what made the old
+ * backtracking lookup explore many dead ends per topic.
+ */
+@State(Scope.Benchmark)
+public class TopicRouterBenchmark {
+    @Param({"1000", "10000"})
+    public int routes;
+
+    @Param({"literal", "wildcard"})
+    public String mix;
+
+    private TopicRouter router;
+    private String[] topics;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(7);
+        List<TopicRouter.Route> list = new ArrayList<>();
+        double wildcardShare = "wildcard".equals(mix) ? 0.4 : 0.02;
+        for (int i = 0; i < routes; i++) {
+            int depth = 2 + random.nextInt(5);
+            StringBuilder filter = new StringBuilder();
+            for (int level = 0; level < depth; level++) {
+                String segment = "s" + random.nextInt(12);
+                if (random.nextDouble() < wildcardShare) {
+                    segment = level == depth - 1 && random.nextBoolean() ? "#" : "+";
+                }
+                filter.append(level == 0 ? "" : "/").append(segment);
+            }
+            list.add(new TopicRouter.Route(filter.toString(),
+                new RouteProfile(Locale.ROOT, 1.0f, 1.0f, i, true, true)));
+        }
+        router = TopicRouter.compile(list, RouteProfile.DEFAULT);
+        topics = new String[1024];
+        for (int i = 0; i < topics.length; i++) {
+            int depth = 2 + random.nextInt(6);
+            StringBuilder topic = new StringBuilder();
+            for (int level = 0; level < depth; level++) {
+                topic.append(level == 0 ? "" : "/").append("s").append(random.nextInt(12));
+            }
+            topics[i] = topic.toString();
+        }
+    }
+
+    @Benchmark
+    public RouteProfile resolve() {
+        next = (next + 1) & (topics.length - 1);
+        return router.resolve(topics[next]);
+    }
+}
@@ -0,0 +1,340 @@
+package com.example.mqttvoiceapp;
+
+import io.moquette.broker.Server;
+import io.moquette.broker.config.MemoryConfig;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Drives the message path end to end: an embedded Moquette broker, a Paho
+ * publisher paced at a fixed rate with a configurable payload mix, and a
+ * subscriber feeding {@link MessagePipeline}, {@link PayloadDecoder},
+ * {@link TopicRouter} and {@link SpeechScheduler} the way the service does,
+ * with a speaker that finishes every utterance at once.
+ *
+ * <p>Options, all {@code --name=value}: {@code rate} messages per second,
+ * {@code duration} seconds, {@code mix} as {@code kind:weight,...} over
+ * plain, tts, json and gzip, {@code queue} pipeline capacity, {@code policy}
+ * overflow policy and {@code out} the JSON result file.
+ */
+public final class LoadGenerator {
+    private static final String TOPIC_PREFIX = "load/";
+    private static final long DRAIN_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(30);
+    private static final long QUIET_NANOS = TimeUnit.SECONDS.toNanos(2);
+
+    private final int rate;
+    private final int durationSeconds;
+    private final Map<String, Integer> mix;
+    private final int queueCapacity;
+    private final OverflowPolicy policy;
+
+    private final AtomicLongArray sentNanos;
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong publishFailures = new AtomicLong();
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong spoken = new AtomicLong();
+    private final LatencyHistogram endToEnd = new LatencyHistogram("end_to_end");
+    private final LatencyHistogram pipelineLatency = new LatencyHistogram("pipeline");
+
+    private LoadGenerator(Map<String, String> options) {
+        rate = Integer.parseInt(options.getOrDefault("rate", "2000"));
+        durationSeconds = Integer.parseInt(options.getOrDefault("duration", "10"));
+        mix = parseMix(options.getOrDefault("mix", "plain:50,tts:30,json:10,gzip:10"));
+        queueCapacity = Integer.parseInt(options.getOrDefault("queue", "1024"));
+        policy = OverflowPolicy.fromName(options.getOrDefault("policy", "DROP_OLDEST"), OverflowPolicy.DROP_OLDEST);
+        sentNanos = new AtomicLongArray((int) Math.min(Integer.MAX_VALUE - 8, (long) rate * durationSeconds + 1));
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (!arg.startsWith("--") || eq < 0) {
+                throw new IllegalArgumentException("Expected --name=value: " + arg);
+            }
+            options.put(arg.substring(2, eq), arg.substring(eq + 1));
+        }
+        File out = new File(options.getOrDefault("out", "loadtest-result.json"));
+        String result = new LoadGenerator(options).run();
+        File parent = out.getAbsoluteFile().getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+        try (Writer writer = Files.newBufferedWriter(out.toPath(), StandardCharsets.UTF_8)) {
+            writer.write(result);
+        }
+        System.out.println(result);
+        System.out.println("Wrote " + out.getAbsolutePath());
+        // Paho and Moquette leave non-daemon threads behind
+        System.exit(0);
+    }
+
+    private String run() throws Exception {
+        int port = freePort();
+        Properties config = new Properties();
+        config.setProperty("host", "127.0.0.1");
+        config.setProperty("port", Integer.toString(port));
+        config.setProperty("websocket_port", "disabled");
+        config.setProperty("persistence_enabled", "false");
+        config.setProperty("allow_anonymous", "true");
+        // Defaults favour memory over delivery: a 1024-message session queue and batched flushes
+        config.setProperty("session_queue_size", "65536");
+        config.setProperty("buffer_flush_millis", "0");
+        config.setProperty("netty.tcp_nodelay", "true");
+        Server broker = new Server();
+        broker.startServer(new MemoryConfig(config));
+
+        String url = "tcp://127.0.0.1:" + port;
+        ExecutorService speechThread = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "speaker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        SpeechScheduler[] scheduler = new SpeechScheduler[1];
+        scheduler[0] = new SpeechScheduler((text, flush, utteranceId, voice) -> {
+            spoken.incrementAndGet();
+            speechThread.execute(() -> scheduler[0].onUtteranceFinished(utteranceId));
+        }, null, 30_000, 64);
+        TopicRouter router = TopicRouter.compile(Arrays.asList(
+            new TopicRouter.Route(TOPIC_PREFIX + "tts/#", new RouteProfile(Locale.CHINESE, 1.0f, 1.0f,
+                RouteProfile.PRIORITY_FROM_PAYLOAD, true, true)),
+            new TopicRouter.Route(TOPIC_PREFIX + "+/+", RouteProfile.DEFAULT)), RouteProfile.DEFAULT);
+        PayloadDecoder decoder = new PayloadDecoder(new PayloadClassifier());
+        List<PayloadRecord> records = new ArrayList<>();
+
+        MessagePipeline pipeline = new MessagePipeline(queueCapacity, policy, message -> {
+            long now = System.nanoTime();
+            pipelineLatency.recordNanos(now - message.arrivalNanos);
+            decoder.decode(message.payload, records);
+            RouteProfile route = router.resolve(message.topic);
+            for (int i = 0; i < records.size(); i++) {
+                PayloadRecord record = records.get(i);
+                String text = record.kind == PayloadRecord.Kind.TTS_DYNAMIC ? record.text() : record.payloadText();
+                if (text != null && record.kind != PayloadRecord.Kind.OTHER_BINARY) {
+                    scheduler[0].submit(new SpeechRequest(message.topic, text,
+                        route.resolvePriority(record.field(PayloadClassifier.FIELD_PRIORITY)),
+                        message.arrivalNanos, 0, LatencyTracker.utteranceId(message.traceId, i), route));
+                }
+                record.recycle();
+            }
+            records.clear();
+            long sent = message.traceId < sentNanos.length() ? sentNanos.get((int) message.traceId) : 0;
+            if (sent != 0) {
+                endToEnd.recordNanos(System.nanoTime() - sent);
+            }
+        });
+        pipeline.start();
+
+        MqttAsyncClient subscriber = new MqttAsyncClient(url, "load-subscriber", new MemoryPersistence());
+        subscriber.setCallback(new MqttCallback() {
+            @Override
+            public void connectionLost(Throwable cause) {
+                System.err.println("Subscriber lost: " + cause);
+            }
+
+            @Override
+            public void messageArrived(String topic, MqttMessage message) {
+                received.incrementAndGet();
+                long sequence = Long.parseLong(topic.substring(topic.lastIndexOf('/') + 1));
+                pipeline.submit(new InboundMessage(topic, message.getPayload(), message.getId(), message.getQos(),
+                    message.isDuplicate(), System.nanoTime(), sequence, 0, null));
+            }
+
+            @Override
+            public void deliveryComplete(IMqttDeliveryToken token) {
+            }
+        });
+        MqttConnectOptions options = new MqttConnectOptions();
+        options.setCleanSession(true);
+        options.setMaxInflight(65535);
+        subscriber.connect(options).waitForCompletion();
+        subscriber.subscribe(TOPIC_PREFIX + "#", 0).waitForCompletion();
+
+        MqttAsyncClient publisher = new MqttAsyncClient(url, "load-publisher", new MemoryPersistence());
+        publisher.connect(options).waitForCompletion();
+
+        List<String> kinds = new ArrayList<>();
+        List<byte[]> payloads = new ArrayList<>();
+        for (Map.Entry<String, Integer> entry : mix.entrySet()) {
+            for (int i = 0; i < entry.getValue(); i++) {
+                kinds.add(entry.getKey());
+                payloads.add(payloadFor(entry.getKey()));
+            }
+        }
+
+        long total = sentNanos.length() - 1;
+        long intervalNanos = TimeUnit.SECONDS.toNanos(1) / Math.max(1, rate);
+        long start = System.nanoTime();
+        for (long sequence = 1; sequence <= total; sequence++) {
+            long due = start + (sequence - 1) * intervalNanos;
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            int slot = (int) (sequence % kinds.size());
+            sentNanos.set((int) sequence, System.nanoTime());
+            try {
+                publisher.publish(TOPIC_PREFIX + kinds.get(slot) + "/" + sequence, payloads.get(slot), 0, false);
+                published.incrementAndGet();
+            } catch (MqttException e) {
+                publishFailures.incrementAndGet();
+            }
+        }
+        long publishEnd = System.nanoTime();
+
+        // Let the broker and the pipeline catch up before counting
+        long drainDeadline = System.nanoTime() + DRAIN_TIMEOUT_NANOS;
+        long lastProgress = -1;
+        long quietSince = System.nanoTime();
+        while (System.nanoTime() < drainDeadline) {
+            long seen = pipeline.getProcessedCount() + pipeline.getDroppedCount();
+            if (received.get() >= published.get() && seen >= received.get()) {
+                break;
+            }
+            long progress = received.get() + seen;
+            if (progress != lastProgress) {
+                lastProgress = progress;
+                quietSince = System.nanoTime();
+            } else if (System.nanoTime() - quietSince > QUIET_NANOS) {
+                // Whatever has not arrived by now was lost in transport
+                break;
+            }
+            Thread.sleep(50);
+        }
+        long end = System.nanoTime();
+        pipeline.stop();
+        publisher.disconnectForcibly(0, 1000);
+        subscriber.disconnectForcibly(0, 1000);
+        publisher.close();
+        subscriber.close();
+        broker.stopServer();
+
+        double elapsedSeconds = (end - start) / 1e9;
+        long processed = pipeline.getProcessedCount();
+        long sent = published.get();
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("rate_target", rate);
+        result.put("duration_s", durationSeconds);
+        result.put("mix", mix);
+        result.put("queue_capacity", queueCapacity);
+        result.put("overflow_policy", policy.name());
+        result.put("published", sent);
+        result.put("publish_failures", publishFailures.get());
+        result.put("received", received.get());
+        result.put("lost_in_transport", sent - received.get());
+        result.put("processed", processed);
+        result.put("pipeline_dropped", pipeline.getDroppedCount());
+        result.put("spoken", spoken.get());
+        result.put("publish_rate", sent / ((publishEnd - start) / 1e9));
+        result.put("throughput", processed / elapsedSeconds);
+        result.put("drop_rate", sent == 0 ? 0.0 : (double) (sent - processed) / sent);
+        result.put(endToEnd.getName() + "_us", percentiles(endToEnd));
+        result.put(pipelineLatency.getName() + "_us", percentiles(pipelineLatency));
+        return toJson(result);
+    }
+
+    private static Map<String, Object> percentiles(LatencyHistogram histogram) {
+        Map<String, Object> values = new LinkedHashMap<>();
+        values.put("count", histogram.getCount());
+        values.put("p50", histogram.percentileMicros(50));
+        values.put("p90", histogram.percentileMicros(90));
+        values.put("p99", histogram.percentileMicros(99));
+        values.put("p999", histogram.percentileMicros(99.9));
+        values.put("max", histogram.maxMicros());
+        return values;
+    }
+
+    static Map<String, Integer> parseMix(String spec) {
+        Map<String, Integer> mix = new LinkedHashMap<>();
+        for (String part : spec.split(",")) {
+            String[] pair = part.trim().split(":");
+            String kind = pair[0].trim();
+            if (!Arrays.asList("plain", "tts", "json", "gzip").contains(kind)) {
+                throw new IllegalArgumentException("Unknown payload kind: " + kind);
+            }
+            int weight = pair.length > 1 ? Integer.parseInt(pair[1].trim()) : 1;
+            if (weight > 0) {
+                mix.put(kind, weight);
+            }
+        }
+        if (mix.isEmpty()) {
+            throw new IllegalArgumentException("Empty payload mix: " + spec);
+        }
+        return mix;
+    }
+
+    private static byte[] payloadFor(String kind) throws IOException {
+        switch (kind) {
+            case "tts":
+                return "{\"type\":\"tts_dynamic\",\"txt\":\"三号门有访客到达\",\"priority\":\"high\"}"
+                    .getBytes(StandardCharsets.UTF_8);
+            case "json":
+                return "{\"sensor\":\"温度\",\"value\":23.5,\"ok\":true}".getBytes(StandardCharsets.UTF_8);
+            case "gzip":
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                try (GZIPOutputStream gzip = new GZIPOutputStream(bytes)) {
+                    gzip.write("{\"type\":\"tts_dynamic\",\"txt\":\"仓库温度过高，请检查空调\"}"
+                        .getBytes(StandardCharsets.UTF_8));
+                }
+                return bytes.toByteArray();
+            case "plain":
+            default:
+                return "前台有新的快递需要签收".getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static String toJson(Object value) {
+        if (value instanceof Map) {
+            StringBuilder builder = new StringBuilder("{");
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                if (builder.length() > 1) {
+                    builder.append(',');
+                }
+                builder.append('"').append(entry.getKey()).append("\":").append(toJson(entry.getValue()));
+            }
+            return builder.append('}').toString();
+        }
+        if (value instanceof Double) {
+            double number = (Double) value;
+            return Double.isFinite(number) ? String.format(Locale.ROOT, "%.4f", number) : "null";
+        }
+        if (value instanceof Number) {
+            return value.toString();
+        }
+        return "\"" + value.toString().replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+}
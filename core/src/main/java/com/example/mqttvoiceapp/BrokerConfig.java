@@ -0,0 +1,70 @@
+package com.example.mqttvoiceapp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+/** Connection settings for one broker, as entered in MainActivity. */
+public class BrokerConfig {
+    public static final int MQTT_VERSION_3 = 3;
+    public static final int MQTT_VERSION_5 = 5;
+
+    public final String brokerIp;
+    public final String brokerPort;
+    public final String protocol;
+    public final String topic;
+    public final String clientId;
+    public final String username;
+    public final String password;
+    public final boolean persistentSession;
+    /** {@link #MQTT_VERSION_3} (3.1.1) or {@link #MQTT_VERSION_5}. */
+    public final int mqttVersion;
+
+    public BrokerConfig(String brokerIp, String brokerPort, String protocol, String topic,
+                        String clientId, String username, String password, boolean persistentSession,
+                        int mqttVersion) {
+        this.brokerIp = brokerIp;
+        this.brokerPort = brokerPort;
+        this.protocol = protocol;
+        this.topic = topic;
+        this.clientId = clientId;
+        this.username = username;
+        this.password = password;
+        this.persistentSession = persistentSession;
+        this.mqttVersion = mqttVersion == MQTT_VERSION_5 ? MQTT_VERSION_5 : MQTT_VERSION_3;
+    }
+
+    public String getBrokerUrl() {
+        return protocol + brokerIp + ":" + brokerPort;
+    }
+
+    /**
+     * True if {@code other} connects to the same broker with the same identity,
+     * session settings and protocol version, so switching to it never needs a new connection.
+     */
+    public boolean sameConnection(BrokerConfig other) {
+        return other != null
+            && getBrokerUrl().equals(other.getBrokerUrl())
+            && Objects.equals(clientId, other.clientId)
+            && Objects.equals(username, other.username)
+            && Objects.equals(password, other.password)
+            && persistentSession == other.persistentSession
+            && mqttVersion == other.mqttVersion;
+    }
+
+    /** The comma-separated topic field split into trimmed, non-empty filters. */
+    public List<String> getTopics() {
+        if (topic == null) {
+            return Collections.emptyList();
+        }
+        List<String> topics = new ArrayList<>();
+        for (String item : topic.split(",")) {
+            String trimmed = item.trim();
+            if (!trimmed.isEmpty() && !topics.contains(trimmed)) {
+                topics.add(trimmed);
+            }
+        }
+        return topics;
+    }
+}
@@ -0,0 +1,159 @@
+package com.example.mqttvoiceapp;
+
+import java.util.Arrays;
+
+/**
+ * Suppresses messages that were already delivered.
+ *
+ * <p>Redeliveries are recognised by the protocol: a QoS 1 or 2 message that
+ * the broker resends carries the DUP flag and keeps its packet identifier, so
+ * a DUP message whose id, topic and payload were seen within the redelivery
+ * window is dropped. A message without DUP is never treated as a redelivery,
+ * however similar it is to an earlier one.
+ *
+ * <p>Optionally, messages whose topic and payload were seen within a content
+ * window are dropped as well, which also catches publisher retries. That
+ * drops legitimate repeats such as the same alert sent twice, so it is off
+ * unless a window is configured.
+ *
+ * <p>Seen messages are kept as 64-bit hashes in two fixed-size open-addressing
+ * tables per check: the current generation and the previous one. Every window
+ * the current table becomes the previous one and the old previous table is
+ * cleared, so a message is remembered for at least one full window and at most
+ * two. If a generation fills up before its window ends it is rotated early;
+ * memory stays constant and only the effective window shrinks under extreme
+ * rates. Not thread-safe; used from the pipeline worker only.
+ */
+public class DuplicateFilter {
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    private static final long EMPTY = 0;
+
+    private static final class Generations {
+        final long windowMs;
+        final int mask;
+        final int maxFill;
+        long[] current;
+        long[] previous;
+        int currentFill;
+        long generationStartMs;
+
+        Generations(long windowMs, int capacity) {
+            this.windowMs = windowMs;
+            int size = 1;
+            // Keep the tables at most half full so probe sequences stay short
+            while (size < Math.max(16, capacity * 2)) {
+                size <<= 1;
+            }
+            mask = size - 1;
+            maxFill = size / 2;
+            current = new long[size];
+            previous = new long[size];
+        }
+
+        /** Returns true if the hash was seen within the window, and remembers it otherwise. */
+        boolean seen(long hash, long nowMs) {
+            if (nowMs - generationStartMs >= windowMs || currentFill >= maxFill) {
+                rotate(nowMs);
+            }
+            if (contains(current, hash) || contains(previous, hash)) {
+                return true;
+            }
+            insert(hash);
+            return false;
+        }
+
+        private void rotate(long nowMs) {
+            long[] recycled = previous;
+            previous = current;
+            Arrays.fill(recycled, EMPTY);
+            current = recycled;
+            currentFill = 0;
+            generationStartMs = nowMs;
+        }
+
+        private boolean contains(long[] table, long hash) {
+            int index = (int) hash & mask;
+            while (true) {
+                long value = table[index];
+                if (value == EMPTY) {
+                    return false;
+                }
+                if (value == hash) {
+                    return true;
+                }
+                index = (index + 1) & mask;
+            }
+        }
+
+        private void insert(long hash) {
+            int index = (int) hash & mask;
+            while (current[index] != EMPTY) {
+                index = (index + 1) & mask;
+            }
+            current[index] = hash;
+            currentFill++;
+        }
+    }
+
+    private final Generations content;
+    private final Generations redeliveries;
+    private long suppressedCount;
+
+    /**
+     * @param windowMs           how long topic and payload are remembered; 0 disables the content check
+     * @param redeliveryWindowMs how long QoS 1 and 2 deliveries are remembered for DUP
+     *                           resends; 0 disables the redelivery check
+     * @param capacity           messages remembered per generation, rounded up to a power of two
+     */
+    public DuplicateFilter(long windowMs, long redeliveryWindowMs, int capacity) {
+        this.content = windowMs > 0 ? new Generations(windowMs, capacity) : null;
+        this.redeliveries = redeliveryWindowMs > 0 ? new Generations(redeliveryWindowMs, capacity) : null;
+    }
+
+    /** Returns true if the message is a redelivery or, when enabled, repeats recent content. */
+    public boolean isDuplicate(InboundMessage message, long nowMs) {
+        if (content == null && redeliveries == null) {
+            return false;
+        }
+        long contentHash = hash(message.topic, message.payload);
+        boolean duplicate = false;
+        if (redeliveries != null && message.qos > 0) {
+            // Every delivery is remembered, since the first one to arrive may itself carry DUP
+            boolean seen = redeliveries.seen(mix(contentHash ^ message.messageId), nowMs);
+            duplicate = seen && message.duplicate;
+        }
+        if (content != null && content.seen(contentHash, nowMs)) {
+            duplicate = true;
+        }
+        if (duplicate) {
+            suppressedCount++;
+        }
+        return duplicate;
+    }
+
+    public long getSuppressedCount() {
+        return suppressedCount;
+    }
+
+    private static long hash(String topic, byte[] payload) {
+        long hash = FNV_OFFSET;
+        for (int i = 0; i < topic.length(); i++) {
+            hash = (hash ^ topic.charAt(i)) * FNV_PRIME;
+        }
+        // Separator so "a/b" + "c" and "a/" + "bc" differ
+        hash = (hash ^ 0xFF) * FNV_PRIME;
+        for (byte b : payload) {
+            hash = (hash ^ (b & 0xFF)) * FNV_PRIME;
+        }
+        return mix(hash);
+    }
+
+    // Final avalanche so the low bits used for indexing are well mixed
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash == EMPTY ? 1 : hash;
+    }
+}
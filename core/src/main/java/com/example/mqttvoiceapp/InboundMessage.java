@@ -0,0 +1,34 @@
+package com.example.mqttvoiceapp;
+
+/** A raw MQTT message as it was handed to us by the client library. */
+public class InboundMessage {
+    public final String topic;
+    public final byte[] payload;
+    public final int messageId;
+    public final int qos;
+    public final boolean duplicate;
+    public final long arrivalNanos;
+    public final long traceId;
+    /** When the publisher's message expiry runs out, in System.nanoTime() terms; 0 if it never does. */
+    public final long expiresAtNanos;
+    /** Told when the message is done with; null if the transport acknowledges on its own. */
+    public final MessageSource source;
+
+    public InboundMessage(String topic, byte[] payload, int messageId, int qos, boolean duplicate,
+                          long arrivalNanos, long traceId, long expiresAtNanos, MessageSource source) {
+        this.topic = topic;
+        this.payload = payload;
+        this.messageId = messageId;
+        this.qos = qos;
+        this.duplicate = duplicate;
+        this.arrivalNanos = arrivalNanos;
+        this.traceId = traceId;
+        this.expiresAtNanos = expiresAtNanos;
+        this.source = source;
+    }
+
+    /** True if the publisher's expiry has passed at {@code nowNanos}. */
+    public boolean isExpired(long nowNanos) {
+        return expiresAtNanos != 0 && nowNanos - expiresAtNanos > 0;
+    }
+}
@@ -0,0 +1,159 @@
+package com.example.mqttvoiceapp;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Per-message latency tracing from broker arrival to audio start and end.
+ *
+ * <p>Each message gets a trace id at arrival. Stage timestamps are written
+ * into fixed ring slots indexed by trace id, and stage-to-stage durations are
+ * recorded into {@link LatencyHistogram}s, so tracing a message allocates
+ * nothing. The trace id is embedded in the utterance id handed to the speech
+ * engine ("mqtt_&lt;traceId&gt;..."), which is how engine callbacks find their
+ * trace again. A slot is simply overwritten once the ring wraps, which only
+ * loses traces for messages that were still waiting that far behind.
+ */
+public class LatencyTracker {
+    public static final String UTTERANCE_PREFIX = "mqtt_";
+
+    private static final int SLOT_COUNT = 1024;
+    private static final int SLOT_MASK = SLOT_COUNT - 1;
+
+    private final AtomicLong nextTraceId = new AtomicLong();
+    private final AtomicLongArray slotOwners = new AtomicLongArray(SLOT_COUNT);
+    private final AtomicLongArray arrivalNanos = new AtomicLongArray(SLOT_COUNT);
+    private final AtomicLongArray decodedNanos = new AtomicLongArray(SLOT_COUNT);
+    private final AtomicLongArray enqueuedNanos = new AtomicLongArray(SLOT_COUNT);
+    private final AtomicLongArray startedNanos = new AtomicLongArray(SLOT_COUNT);
+
+    private final LatencyHistogram decode = new LatencyHistogram("到达→解码");
+    private final LatencyHistogram enqueue = new LatencyHistogram("解码→入队");
+    private final LatencyHistogram wait = new LatencyHistogram("入队→开始播报");
+    private final LatencyHistogram firstAudio = new LatencyHistogram("到达→开始播报");
+    private final LatencyHistogram playback = new LatencyHistogram("开始→结束播报");
+    private final LatencyHistogram[] histograms = {decode, enqueue, wait, firstAudio, playback};
+
+    /** Starts a trace on the MQTT callback thread and returns its id. */
+    public long onArrival(long nowNanos) {
+        long traceId = nextTraceId.incrementAndGet();
+        int slot = (int) (traceId & SLOT_MASK);
+        slotOwners.set(slot, traceId);
+        arrivalNanos.set(slot, nowNanos);
+        decodedNanos.set(slot, 0);
+        enqueuedNanos.set(slot, 0);
+        startedNanos.set(slot, 0);
+        return traceId;
+    }
+
+    public void onDecoded(long traceId, long nowNanos) {
+        int slot = slotOf(traceId);
+        if (slot >= 0) {
+            decodedNanos.set(slot, nowNanos);
+            decode.recordNanos(nowNanos - arrivalNanos.get(slot));
+        }
+    }
+
+    public void onEnqueued(long traceId, long nowNanos) {
+        int slot = slotOf(traceId);
+        if (slot >= 0) {
+            enqueuedNanos.set(slot, nowNanos);
+            long decoded = decodedNanos.get(slot);
+            if (decoded != 0) {
+                enqueue.recordNanos(nowNanos - decoded);
+            }
+        }
+    }
+
+    /** Called when audio for an utterance actually starts. Only the first start of a trace counts. */
+    public void onSpeechStart(String utteranceId, long nowNanos) {
+        int slot = slotOf(parseTraceId(utteranceId));
+        if (slot >= 0 && startedNanos.compareAndSet(slot, 0, nowNanos)) {
+            long enqueued = enqueuedNanos.get(slot);
+            if (enqueued != 0) {
+                wait.recordNanos(nowNanos - enqueued);
+            }
+            firstAudio.recordNanos(nowNanos - arrivalNanos.get(slot));
+        }
+    }
+
+    public void onSpeechDone(String utteranceId, long nowNanos) {
+        int slot = slotOf(parseTraceId(utteranceId));
+        if (slot >= 0) {
+            long started = startedNanos.get(slot);
+            if (started != 0) {
+                playback.recordNanos(nowNanos - started);
+            }
+        }
+    }
+
+    /** Builds the utterance id for a trace; {@code part} distinguishes several utterances of one message. */
+    public static String utteranceId(long traceId, int part) {
+        return UTTERANCE_PREFIX + traceId + "_" + part;
+    }
+
+    /** Parses the trace id out of an utterance id without allocating; returns -1 if there is none. */
+    public static long parseTraceId(String utteranceId) {
+        if (utteranceId == null || !utteranceId.startsWith(UTTERANCE_PREFIX)) {
+            return -1;
+        }
+        long value = 0;
+        int digits = 0;
+        for (int i = UTTERANCE_PREFIX.length(); i < utteranceId.length(); i++) {
+            char c = utteranceId.charAt(i);
+            if (c < '0' || c > '9') {
+                break;
+            }
+            value = value * 10 + (c - '0');
+            digits++;
+        }
+        return digits == 0 ? -1 : value;
+    }
+
+    public String summary() {
+        StringBuilder builder = new StringBuilder();
+        for (LatencyHistogram histogram : histograms) {
+            if (builder.length() > 0) {
+                builder.append('\n');
+            }
+            builder.append(String.format(Locale.ROOT, "%s: n=%d p50=%.1f p90=%.1f p99=%.1f max=%.1f ms",
+                histogram.getName(), histogram.getCount(),
+                histogram.percentileMicros(50) / 1000.0, histogram.percentileMicros(90) / 1000.0,
+                histogram.percentileMicros(99) / 1000.0, histogram.maxMicros() / 1000.0));
+        }
+        return builder.toString();
+    }
+
+    /** Writes the percentiles of every stage as CSV, in milliseconds. */
+    public void exportCsv(File file) throws IOException {
+        try (Writer writer = new FileWriter(file)) {
+            writer.write("stage,count,p50_ms,p90_ms,p99_ms,p999_ms,max_ms\n");
+            for (LatencyHistogram histogram : histograms) {
+                writer.write(String.format(Locale.ROOT, "%s,%d,%.3f,%.3f,%.3f,%.3f,%.3f\n",
+                    histogram.getName(), histogram.getCount(),
+                    histogram.percentileMicros(50) / 1000.0, histogram.percentileMicros(90) / 1000.0,
+                    histogram.percentileMicros(99) / 1000.0, histogram.percentileMicros(99.9) / 1000.0,
+                    histogram.maxMicros() / 1000.0));
+            }
+        }
+    }
+
+    public void reset() {
+        for (LatencyHistogram histogram : histograms) {
+            histogram.reset();
+        }
+    }
+
+    private int slotOf(long traceId) {
+        if (traceId <= 0) {
+            return -1;
+        }
+        int slot = (int) (traceId & SLOT_MASK);
+        return slotOwners.get(slot) == traceId ? slot : -1;
+    }
+}
@@ -0,0 +1,634 @@
+package com.example.mqttvoiceapp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Durable history of received messages in a directory of append-only
+ * segment files.
+ *
+ * <p>{@link #append} only queues the entry; batches are written on the writer
+ * executor once {@link #FLUSH_BATCH} entries are waiting or
+ * {@link #FLUSH_INTERVAL_MS} after the first one, so the caller never touches
+ * the disk. There is no sync per batch: a written batch is in the page cache
+ * and survives the process being killed; only power loss can take it.
+ *
+ * <p>Each segment has a sidecar index of fixed-size entries (record offset,
+ * topic hash, time), which is also kept in memory as primitive arrays. Pages
+ * are read newest first by walking the index backwards, so only the records
+ * that are returned are read from disk; a time bound is a binary search, as
+ * times never decrease within the journal. Whole segments are deleted once
+ * the journal exceeds its size budget or they are older than the maximum age.
+ *
+ * <p>On open, records the index does not cover yet are re-indexed and a torn
+ * record at the end of a segment is cut off. The directory is opened lazily by
+ * whichever of a flush or a read comes first. Thread-safe; use one instance
+ * per directory.
+ */
+public class MessageJournal {
+    /** One journaled message. */
+    public static final class Entry {
+        /** Position in the journal; increases by one per message and is never reused. */
+        public final long sequence;
+        public final long timeMillis;
+        public final String topic;
+        public final String text;
+
+        Entry(long sequence, long timeMillis, String topic, String text) {
+            this.sequence = sequence;
+            this.timeMillis = timeMillis;
+            this.topic = topic;
+            this.text = text;
+        }
+    }
+
+    private static class Pending {
+        final long timeMillis;
+        final String topic;
+        final String text;
+
+        Pending(long timeMillis, String topic, String text) {
+            this.timeMillis = timeMillis;
+            this.topic = topic;
+            this.text = text;
+        }
+    }
+
+    private static class Segment {
+        final long baseSequence;
+        final File logFile;
+        final File indexFile;
+        int count;
+        int[] offsets = new int[64];
+        int[] topicHashes = new int[64];
+        long[] times = new long[64];
+        long sizeBytes;
+
+        Segment(File directory, long baseSequence) {
+            String name = String.format(Locale.ROOT, "%019d", baseSequence);
+            this.baseSequence = baseSequence;
+            this.logFile = new File(directory, name + LOG_SUFFIX);
+            this.indexFile = new File(directory, name + INDEX_SUFFIX);
+        }
+
+        void add(int offset, int topicHash, long timeMillis) {
+            if (count == offsets.length) {
+                int capacity = count * 2;
+                offsets = Arrays.copyOf(offsets, capacity);
+                topicHashes = Arrays.copyOf(topicHashes, capacity);
+                times = Arrays.copyOf(times, capacity);
+            }
+            offsets[count] = offset;
+            topicHashes[count] = topicHash;
+            times[count] = timeMillis;
+            count++;
+        }
+
+        long lastTimeMillis() {
+            return count == 0 ? 0 : times[count - 1];
+        }
+
+        long diskBytes() {
+            return sizeBytes + (long) count * INDEX_ENTRY_BYTES;
+        }
+
+        /** Number of leading entries whose time is at most {@code timeMillis}. */
+        int countUntil(long timeMillis) {
+            int low = 0;
+            int high = count;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (times[mid] <= timeMillis) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+
+    public static final long DEFAULT_SEGMENT_BYTES = 1024 * 1024;
+    private static final int FLUSH_BATCH = 64;
+    private static final long FLUSH_INTERVAL_MS = 1000;
+    // Entries waiting for the writer; the oldest are dropped beyond this
+    private static final int MAX_PENDING = 4096;
+    private static final int MAX_TEXT_CHARS = 8192;
+    // The record stores the topic length in two bytes; MQTT allows no longer topics either
+    private static final int MAX_TOPIC_BYTES = 0xffff;
+    // length(4) + crc(4) + time(8) + topicLength(2)
+    private static final int RECORD_OVERHEAD = 18;
+    // offset(4) + topicHash(4) + time(8)
+    private static final int INDEX_ENTRY_BYTES = 16;
+    private static final String LOG_SUFFIX = ".log";
+    private static final String INDEX_SUFFIX = ".idx";
+
+    private final File directory;
+    private final ScheduledExecutorService writer;
+    private final long segmentBytes;
+    private final long maxBytes;
+    private final long maxAgeMillis;
+
+    private final Object pendingLock = new Object();
+    private ArrayDeque<Pending> pending = new ArrayDeque<>();
+    private boolean flushScheduled;
+    private long droppedCount;
+
+    // Everything below is guarded by this
+    private final List<Segment> segments = new ArrayList<>();
+    private final CRC32 crc = new CRC32();
+    private final ByteArrayOutputStream logBuffer = new ByteArrayOutputStream();
+    private final ByteArrayOutputStream indexBuffer = new ByteArrayOutputStream();
+    private final byte[] indexEntry = new byte[INDEX_ENTRY_BYTES];
+    private byte[] scratch = new byte[256];
+    private boolean opened;
+    private Segment writeSegment;
+    private FileOutputStream logOut;
+    private FileOutputStream indexOut;
+    private long nextSequence;
+    private long lastTimeMillis;
+    private long writeErrorCount;
+
+    /**
+     * @param maxBytes     total size the segments may use before the oldest are deleted
+     * @param maxAgeMillis segments whose newest entry is older than this are deleted
+     */
+    public MessageJournal(File directory, ScheduledExecutorService writer, long segmentBytes,
+                          long maxBytes, long maxAgeMillis) {
+        this.directory = directory;
+        this.writer = writer;
+        this.segmentBytes = Math.max(4096, segmentBytes);
+        this.maxBytes = maxBytes;
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    /**
+     * Queues a message for the next batch. Never blocks on I/O. A topic over
+     * 65535 UTF-8 bytes is cut at the last whole character that fits, and
+     * that shorter topic is what reads filter on.
+     */
+    public void append(long timeMillis, String topic, String text) {
+        topic = clampTopic(topic);
+        if (text.length() > MAX_TEXT_CHARS) {
+            int end = MAX_TEXT_CHARS;
+            if (Character.isHighSurrogate(text.charAt(end - 1))) {
+                end--;
+            }
+            text = text.substring(0, end);
+        }
+        boolean flushNow = false;
+        boolean flushLater = false;
+        synchronized (pendingLock) {
+            if (pending.size() >= MAX_PENDING) {
+                pending.pollFirst();
+                droppedCount++;
+            }
+            pending.add(new Pending(timeMillis, topic, text));
+            if (pending.size() == FLUSH_BATCH) {
+                flushNow = true;
+            } else if (!flushScheduled) {
+                flushScheduled = true;
+                flushLater = true;
+            }
+        }
+        if (flushNow) {
+            writer.execute(this::flush);
+        } else if (flushLater) {
+            writer.schedule(this::flush, FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /** Writes whatever is queued on the writer executor, without waiting for it. */
+    public void requestFlush() {
+        writer.execute(this::flush);
+    }
+
+    /** Writes whatever is queued on the calling thread. */
+    public void flush() {
+        ArrayDeque<Pending> batch;
+        synchronized (pendingLock) {
+            flushScheduled = false;
+            if (pending.isEmpty()) {
+                return;
+            }
+            batch = pending;
+            pending = new ArrayDeque<>();
+        }
+        synchronized (this) {
+            try {
+                ensureOpen();
+                write(batch);
+                enforceRetention(System.currentTimeMillis());
+            } catch (IOException e) {
+                writeErrorCount++;
+                // The in-memory index may be ahead of the files now; rescan them on the next use
+                reset();
+            }
+        }
+    }
+
+    /**
+     * Returns up to {@code limit} entries, newest first, with a sequence below
+     * {@code beforeSequence} and a time no later than {@code untilMillis}.
+     * Pass {@code Long.MAX_VALUE} for both to start at the newest entry, then
+     * continue with the sequence of the last entry returned. Entries still
+     * waiting for their batch to be written are not included.
+     *
+     * @param topic only entries with exactly this topic, or null for all
+     */
+    public synchronized List<Entry> readPage(long beforeSequence, long untilMillis, String topic, int limit)
+        throws IOException {
+        ensureOpen();
+        List<Entry> page = new ArrayList<>(Math.min(limit, 256));
+        int topicHash = topic == null ? 0 : topic.hashCode();
+        for (int s = segments.size() - 1; s >= 0 && page.size() < limit; s--) {
+            Segment segment = segments.get(s);
+            if (segment.count == 0 || segment.baseSequence >= beforeSequence || segment.times[0] > untilMillis) {
+                continue;
+            }
+            int end = (int) Math.min(segment.count, beforeSequence - segment.baseSequence);
+            end = Math.min(end, segment.countUntil(untilMillis));
+            try (RandomAccessFile in = new RandomAccessFile(segment.logFile, "r")) {
+                long length = in.length();
+                for (int i = end - 1; i >= 0 && page.size() < limit; i--) {
+                    if (topic != null && segment.topicHashes[i] != topicHash) {
+                        continue;
+                    }
+                    int recordLength = readRecord(in, segment.offsets[i], length);
+                    if (recordLength < 0) {
+                        continue;
+                    }
+                    String recordTopic = recordTopic();
+                    if (topic == null || topic.equals(recordTopic)) {
+                        page.add(new Entry(segment.baseSequence + i, segment.times[i], recordTopic,
+                            recordText(recordLength)));
+                    }
+                }
+            }
+        }
+        return page;
+    }
+
+    /** Entries written to disk so far that are still retained. */
+    public synchronized long getEntryCount() {
+        long count = 0;
+        for (Segment segment : segments) {
+            count += segment.count;
+        }
+        return count;
+    }
+
+    /** Entries dropped because the writer fell too far behind. */
+    public long getDroppedCount() {
+        synchronized (pendingLock) {
+            return droppedCount;
+        }
+    }
+
+    /** Batches lost to I/O errors. */
+    public synchronized long getWriteErrorCount() {
+        return writeErrorCount;
+    }
+
+    // ---- Writing ----
+
+    private void write(ArrayDeque<Pending> batch) throws IOException {
+        for (Pending entry : batch) {
+            if (writeSegment == null || writeSegment.sizeBytes >= segmentBytes) {
+                writeBuffered();
+                openWriteSegment();
+            }
+            // Keeps the index sorted by time even if the wall clock steps back
+            long time = Math.max(entry.timeMillis, lastTimeMillis);
+            lastTimeMillis = time;
+            byte[] topicBytes = entry.topic.getBytes(StandardCharsets.UTF_8);
+            byte[] textBytes = entry.text.getBytes(StandardCharsets.UTF_8);
+            // append() clamped the topic, so it fits and decodes back to the same string
+            int topicLength = topicBytes.length;
+            int length = RECORD_OVERHEAD + topicLength + textBytes.length;
+            byte[] record = scratch(length);
+            putLong(record, 8, time);
+            record[16] = (byte) (topicLength >>> 8);
+            record[17] = (byte) topicLength;
+            System.arraycopy(topicBytes, 0, record, RECORD_OVERHEAD, topicLength);
+            System.arraycopy(textBytes, 0, record, RECORD_OVERHEAD + topicLength, textBytes.length);
+            crc.reset();
+            crc.update(record, 8, length - 8);
+            putInt(record, 0, length);
+            putInt(record, 4, (int) crc.getValue());
+            logBuffer.write(record, 0, length);
+
+            int offset = (int) writeSegment.sizeBytes;
+            int topicHash = entry.topic.hashCode();
+            putInt(indexEntry, 0, offset);
+            putInt(indexEntry, 4, topicHash);
+            putLong(indexEntry, 8, time);
+            indexBuffer.write(indexEntry, 0, INDEX_ENTRY_BYTES);
+
+            writeSegment.add(offset, topicHash, time);
+            writeSegment.sizeBytes += length;
+            nextSequence++;
+        }
+        writeBuffered();
+    }
+
+    /** Records go out before their index entries, so the index is never ahead of the log. */
+    private void writeBuffered() throws IOException {
+        if (logOut == null) {
+            return;
+        }
+        logBuffer.writeTo(logOut);
+        logBuffer.reset();
+        indexBuffer.writeTo(indexOut);
+        indexBuffer.reset();
+    }
+
+    private void openWriteSegment() throws IOException {
+        closeWriter();
+        Segment segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (segment == null || segment.sizeBytes >= segmentBytes) {
+            segment = new Segment(directory, nextSequence);
+            segments.add(segment);
+        }
+        logOut = new FileOutputStream(segment.logFile, true);
+        indexOut = new FileOutputStream(segment.indexFile, true);
+        writeSegment = segment;
+    }
+
+    private void closeWriter() {
+        closeQuietly(logOut);
+        closeQuietly(indexOut);
+        logOut = null;
+        indexOut = null;
+        writeSegment = null;
+        logBuffer.reset();
+        indexBuffer.reset();
+    }
+
+    private void reset() {
+        closeWriter();
+        segments.clear();
+        opened = false;
+    }
+
+    private void enforceRetention(long nowMillis) {
+        long total = 0;
+        for (Segment segment : segments) {
+            total += segment.diskBytes();
+        }
+        long cutoff = nowMillis - maxAgeMillis;
+        // The newest segment is kept even when it is over the limits; it is the one being written
+        while (segments.size() > 1) {
+            Segment oldest = segments.get(0);
+            if (total <= maxBytes && oldest.lastTimeMillis() >= cutoff) {
+                break;
+            }
+            segments.remove(0);
+            total -= oldest.diskBytes();
+            delete(oldest);
+        }
+    }
+
+    // ---- Opening ----
+
+    private void ensureOpen() throws IOException {
+        if (opened) {
+            return;
+        }
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("无法创建历史记录目录: " + directory);
+        }
+        List<Long> bases = new ArrayList<>();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (!name.endsWith(LOG_SUFFIX)) {
+                    continue;
+                }
+                try {
+                    bases.add(Long.parseLong(name.substring(0, name.length() - LOG_SUFFIX.length())));
+                } catch (NumberFormatException ignored) {
+                    // Not one of ours
+                }
+            }
+        }
+        Collections.sort(bases);
+        for (int i = 0; i < bases.size(); i++) {
+            Segment segment = new Segment(directory, bases.get(i));
+            load(segment);
+            boolean last = i == bases.size() - 1;
+            if (segment.count == 0 && !last) {
+                delete(segment);
+            } else {
+                segments.add(segment);
+            }
+        }
+        if (!segments.isEmpty()) {
+            Segment last = segments.get(segments.size() - 1);
+            nextSequence = last.baseSequence + last.count;
+            lastTimeMillis = last.lastTimeMillis();
+        }
+        opened = true;
+        enforceRetention(System.currentTimeMillis());
+    }
+
+    private void load(Segment segment) throws IOException {
+        try (RandomAccessFile log = new RandomAccessFile(segment.logFile, "rw")) {
+            long logLength = log.length();
+            int indexed = readIndex(segment, logLength);
+            // Drop index entries whose record did not make it to disk intact
+            long position = 0;
+            while (segment.count > 0) {
+                int last = segment.count - 1;
+                int length = readRecord(log, segment.offsets[last], logLength);
+                if (length > 0) {
+                    position = segment.offsets[last] + (long) length;
+                    break;
+                }
+                segment.count--;
+            }
+            boolean changed = segment.count != indexed;
+            // Records written after the last index entry
+            int length;
+            while ((length = readRecord(log, position, logLength)) > 0) {
+                segment.add((int) position, recordTopic().hashCode(), getLong(scratch, 8));
+                position += length;
+                changed = true;
+            }
+            if (position < logLength) {
+                // A torn or corrupt tail; appends continue from the last good record
+                log.setLength(position);
+            }
+            segment.sizeBytes = position;
+            if (changed) {
+                writeIndex(segment);
+            }
+        }
+    }
+
+    /** Loads index entries until the first one that cannot be right; returns how many were read. */
+    private static int readIndex(Segment segment, long logLength) throws IOException {
+        if (!segment.indexFile.exists()) {
+            return 0;
+        }
+        long entries = segment.indexFile.length() / INDEX_ENTRY_BYTES;
+        try (DataInputStream in = new DataInputStream(
+            new BufferedInputStream(new FileInputStream(segment.indexFile)))) {
+            int previous = -1;
+            for (long i = 0; i < entries; i++) {
+                int offset = in.readInt();
+                int topicHash = in.readInt();
+                long time = in.readLong();
+                if (offset <= previous || offset >= logLength) {
+                    break;
+                }
+                segment.add(offset, topicHash, time);
+                previous = offset;
+            }
+        }
+        return segment.count;
+    }
+
+    private static void writeIndex(Segment segment) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(segment.indexFile)))) {
+            for (int i = 0; i < segment.count; i++) {
+                out.writeInt(segment.offsets[i]);
+                out.writeInt(segment.topicHashes[i]);
+                out.writeLong(segment.times[i]);
+            }
+        }
+    }
+
+    // ---- Records ----
+
+    /**
+     * Reads the record at {@code offset} into the scratch buffer and checks it.
+     * Returns its length, or -1 if there is no intact record there.
+     */
+    private int readRecord(RandomAccessFile in, long offset, long fileLength) throws IOException {
+        if (offset + RECORD_OVERHEAD > fileLength) {
+            return -1;
+        }
+        in.seek(offset);
+        int length = in.readInt();
+        if (length < RECORD_OVERHEAD || length > fileLength - offset) {
+            return -1;
+        }
+        byte[] record = scratch(length);
+        putInt(record, 0, length);
+        in.readFully(record, 4, length - 4);
+        crc.reset();
+        crc.update(record, 8, length - 8);
+        int topicLength = (record[16] & 0xff) << 8 | (record[17] & 0xff);
+        if ((int) crc.getValue() != getInt(record, 4) || RECORD_OVERHEAD + topicLength > length) {
+            return -1;
+        }
+        return length;
+    }
+
+    private String recordTopic() {
+        int topicLength = (scratch[16] & 0xff) << 8 | (scratch[17] & 0xff);
+        return new String(scratch, RECORD_OVERHEAD, topicLength, StandardCharsets.UTF_8);
+    }
+
+    private String recordText(int length) {
+        int start = RECORD_OVERHEAD + ((scratch[16] & 0xff) << 8 | (scratch[17] & 0xff));
+        return new String(scratch, start, length - start, StandardCharsets.UTF_8);
+    }
+
+    /** The longest prefix of {@code topic} whose UTF-8 encoding fits in {@link #MAX_TOPIC_BYTES}. */
+    static String clampTopic(String topic) {
+        // No char takes more than three bytes, so short topics need no counting
+        if (topic.length() <= MAX_TOPIC_BYTES / 3) {
+            return topic;
+        }
+        int bytes = 0;
+        for (int i = 0; i < topic.length(); i++) {
+            char c = topic.charAt(i);
+            int charBytes;
+            int chars = 1;
+            if (c < 0x80) {
+                charBytes = 1;
+            } else if (c < 0x800) {
+                charBytes = 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < topic.length()
+                    && Character.isLowSurrogate(topic.charAt(i + 1))) {
+                charBytes = 4;
+                chars = 2;
+            } else {
+                charBytes = 3;
+            }
+            if (bytes + charBytes > MAX_TOPIC_BYTES) {
+                return topic.substring(0, i);
+            }
+            bytes += charBytes;
+            i += chars - 1;
+        }
+        return topic;
+    }
+
+    private byte[] scratch(int length) {
+        if (scratch.length < length) {
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+        }
+        return scratch;
+    }
+
+    private static void delete(Segment segment) {
+        // A file that cannot be deleted now is picked up again on the next open
+        segment.logFile.delete();
+        segment.indexFile.delete();
+    }
+
+    private static void closeQuietly(FileOutputStream out) {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.close();
+        } catch (IOException ignored) {
+            // Everything was written before; nothing is buffered in the stream
+        }
+    }
+
+    private static void putInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+
+    private static void putLong(byte[] bytes, int offset, long value) {
+        putInt(bytes, offset, (int) (value >>> 32));
+        putInt(bytes, offset + 4, (int) value);
+    }
+
+    private static int getInt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xff) << 24 | (bytes[offset + 1] & 0xff) << 16
+            | (bytes[offset + 2] & 0xff) << 8 | (bytes[offset + 3] & 0xff);
+    }
+
+    private static long getLong(byte[] bytes, int offset) {
+        return (long) getInt(bytes, offset) << 32 | (getInt(bytes, offset + 4) & 0xffffffffL);
+    }
+}
@@ -0,0 +1,217 @@
+package com.example.mqttvoiceapp;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Moves message handling off the MQTT client's callback thread.
+ * The callback only enqueues the raw message; a dedicated worker drains the
+ * queue in arrival order and runs decoding, classification, UI fan-out and
+ * speech through the {@link Handler}.
+ *
+ * <p>Every message that was submitted is reported to its
+ * {@link InboundMessage#source} once it has been handled or dropped, so a
+ * transport with manual acknowledgements never loses flow-control credit.
+ * That includes messages still queued when the pipeline is stopped.
+ */
+public class MessagePipeline {
+    public interface Handler {
+        void handle(InboundMessage message);
+    }
+
+    public interface ErrorListener {
+        /** Called on the worker when the handler threw; the worker goes on with the next message. */
+        void onHandlerError(InboundMessage message, RuntimeException error);
+    }
+
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+    private static final long BLOCK_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    private final MessageRingBuffer<InboundMessage> queue;
+    private final OverflowPolicy overflowPolicy;
+    private final Handler handler;
+    private final ErrorListener errorListener;
+
+    private final AtomicLong enqueuedCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong processedCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+
+    private volatile boolean running;
+    private volatile boolean stopped;
+    private volatile Thread worker;
+
+    /** Handler failures are only counted; see {@link #getFailedCount()}. */
+    public MessagePipeline(int capacity, OverflowPolicy overflowPolicy, Handler handler) {
+        this(capacity, overflowPolicy, handler, null);
+    }
+
+    public MessagePipeline(int capacity, OverflowPolicy overflowPolicy, Handler handler,
+                           ErrorListener errorListener) {
+        this.queue = new MessageRingBuffer<>(capacity);
+        this.overflowPolicy = overflowPolicy;
+        this.handler = handler;
+        this.errorListener = errorListener;
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        worker = new Thread(this::drainLoop, "mqtt-pipeline");
+        worker.start();
+    }
+
+    /**
+     * Stops the worker after the message it is handling. Messages still queued
+     * are dropped and reported done. The pipeline cannot be started again.
+     */
+    public synchronized void stop() {
+        running = false;
+        stopped = true;
+        Thread thread = worker;
+        worker = null;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+        discardQueued();
+    }
+
+    /**
+     * Called on the MQTT callback thread. Returns false if the message was dropped.
+     */
+    public boolean submit(InboundMessage message) {
+        if (stopped) {
+            droppedCount.incrementAndGet();
+            done(message);
+            return false;
+        }
+        boolean accepted;
+        switch (overflowPolicy) {
+            case BLOCK:
+                accepted = offerBlocking(message);
+                break;
+            case DROP_OLDEST:
+                accepted = offerDropOldest(message);
+                break;
+            case DROP_NEWEST:
+            default:
+                accepted = queue.offer(message);
+                if (!accepted) {
+                    droppedCount.incrementAndGet();
+                    done(message);
+                }
+                break;
+        }
+        if (accepted) {
+            enqueuedCount.incrementAndGet();
+            Thread thread = worker;
+            if (thread != null) {
+                LockSupport.unpark(thread);
+            }
+            if (stopped) {
+                // Raced with stop(); nothing will drain the queue any more
+                discardQueued();
+            }
+        }
+        return accepted;
+    }
+
+    private void discardQueued() {
+        InboundMessage message;
+        while ((message = queue.poll()) != null) {
+            droppedCount.incrementAndGet();
+            done(message);
+        }
+    }
+
+    private boolean offerBlocking(InboundMessage message) {
+        while (!queue.offer(message)) {
+            if (!running) {
+                droppedCount.incrementAndGet();
+                done(message);
+                return false;
+            }
+            Thread thread = worker;
+            if (thread != null) {
+                LockSupport.unpark(thread);
+            }
+            LockSupport.parkNanos(BLOCK_PARK_NANOS);
+        }
+        return true;
+    }
+
+    private boolean offerDropOldest(InboundMessage message) {
+        while (!queue.offer(message)) {
+            InboundMessage dropped = queue.poll();
+            if (dropped != null) {
+                droppedCount.incrementAndGet();
+                done(dropped);
+            }
+        }
+        return true;
+    }
+
+    private void drainLoop() {
+        while (running) {
+            InboundMessage message = queue.poll();
+            if (message == null) {
+                LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                continue;
+            }
+            try {
+                handler.handle(message);
+            } catch (RuntimeException e) {
+                // A bad message must not take the worker down with it
+                failedCount.incrementAndGet();
+                if (errorListener != null) {
+                    errorListener.onHandlerError(message, e);
+                }
+            }
+            processedCount.incrementAndGet();
+            done(message);
+        }
+    }
+
+    private static void done(InboundMessage message) {
+        if (message.source != null) {
+            message.source.onMessageDone(message);
+        }
+    }
+
+    /** Free slots in the queue right now. */
+    public int getFreeCapacity() {
+        return Math.max(0, queue.capacity() - queue.size());
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    public int getCapacity() {
+        return queue.capacity();
+    }
+
+    public long getEnqueuedCount() {
+        return enqueuedCount.get();
+    }
+
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    public long getProcessedCount() {
+        return processedCount.get();
+    }
+
+    /** Messages whose handler threw; they are also counted as processed. */
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+}
@@ -0,0 +1,87 @@
+package com.example.mqttvoiceapp;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock-free multi-producer/multi-consumer ring buffer.
+ * Each slot carries a sequence number so producers and consumers can claim
+ * slots with a single CAS and never take a lock.
+ */
+public class MessageRingBuffer<E> {
+    private final int mask;
+    private final AtomicReferenceArray<E> slots;
+    private final AtomicLongArray sequences;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    public MessageRingBuffer(int requestedCapacity) {
+        int capacity = 1;
+        while (capacity < Math.max(2, requestedCapacity)) {
+            capacity <<= 1;
+        }
+        mask = capacity - 1;
+        slots = new AtomicReferenceArray<>(capacity);
+        sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+
+    /** Adds an element, returning false when the buffer is full. */
+    public boolean offer(E element) {
+        if (element == null) {
+            throw new NullPointerException("element");
+        }
+        while (true) {
+            long position = tail.get();
+            int index = (int) (position & mask);
+            long diff = sequences.get(index) - position;
+            if (diff == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    slots.lazySet(index, element);
+                    sequences.set(index, position + 1);
+                    return true;
+                }
+            } else if (diff < 0) {
+                return false;
+            }
+        }
+    }
+
+    /** Removes the oldest element, or returns null when the buffer is empty. */
+    public E poll() {
+        while (true) {
+            long position = head.get();
+            int index = (int) (position & mask);
+            long diff = sequences.get(index) - (position + 1);
+            if (diff == 0) {
+                if (head.compareAndSet(position, position + 1)) {
+                    E element = slots.get(index);
+                    slots.lazySet(index, null);
+                    sequences.set(index, position + mask + 1);
+                    return element;
+                }
+            } else if (diff < 0) {
+                return null;
+            }
+        }
+    }
+
+    public int size() {
+        long size = tail.get() - head.get();
+        if (size < 0) {
+            return 0;
+        }
+        return (int) Math.min(size, capacity());
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+}
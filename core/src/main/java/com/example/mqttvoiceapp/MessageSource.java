@@ -0,0 +1,13 @@
+package com.example.mqttvoiceapp;
+
+/**
+ * The connection an {@link InboundMessage} arrived on, for transports that
+ * acknowledge a message only once we are done with it.
+ */
+public interface MessageSource {
+    /**
+     * Called exactly once per message after the pipeline handled or dropped it,
+     * on whichever thread finished with it. Must not block.
+     */
+    void onMessageDone(InboundMessage message);
+}
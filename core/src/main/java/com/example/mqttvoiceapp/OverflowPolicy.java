@@ -0,0 +1,22 @@
+package com.example.mqttvoiceapp;
+
+/** What the ingestion pipeline does when its queue is full. */
+public enum OverflowPolicy {
+    /** Wait for space; applies backpressure to the MQTT callback thread. */
+    BLOCK,
+    /** Evict the oldest queued message to make room for the new one. */
+    DROP_OLDEST,
+    /** Discard the incoming message and keep the queue as is. */
+    DROP_NEWEST;
+
+    public static OverflowPolicy fromName(String name, OverflowPolicy fallback) {
+        if (name == null) {
+            return fallback;
+        }
+        try {
+            return valueOf(name.trim().toUpperCase(java.util.Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            return fallback;
+        }
+    }
+}
@@ -0,0 +1,423 @@
+package com.example.mqttvoiceapp;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Classifies raw MQTT payloads without building a JSON DOM and without using
+ * exceptions for control flow. Anything that does not start with '{' is plain
+ * text and is never scanned. JSON objects are walked once; only the values of
+ * known top-level fields are decoded into strings, everything else is skipped.
+ *
+ * <p>Instances keep a scratch buffer and are not thread-safe; use one per worker.
+ */
+public class PayloadClassifier {
+    public static final int FIELD_TYPE = 0;
+    public static final int FIELD_TXT = 1;
+    public static final int FIELD_PRIORITY = 2;
+    public static final int FIELD_KEY = 3;
+    static final int FIELD_COUNT = 4;
+
+    private static final byte[][] FIELD_NAMES = {
+        ascii("type"),
+        ascii("txt"),
+        ascii("priority"),
+        ascii("key"),
+    };
+
+    private static final byte[] TRUE = ascii("true");
+    private static final byte[] FALSE = ascii("false");
+    private static final byte[] NULL = ascii("null");
+
+    private static final String TYPE_TTS_DYNAMIC = "tts_dynamic";
+    private static final int MAX_DEPTH = 64;
+
+    private byte[] scratch = new byte[256];
+    private byte[] data;
+    private int pos;
+    private int end;
+
+    public PayloadRecord classify(byte[] payload, PayloadRecord record) {
+        record.reset();
+        record.payload = payload;
+        record.kind = scanObject(payload, record) ? classifyObject(record) : PayloadRecord.Kind.PLAIN_TEXT;
+        data = null;
+        return record;
+    }
+
+    /** Kind of a record whose known fields have been filled in from a JSON object or binary map. */
+    static PayloadRecord.Kind classifyObject(PayloadRecord record) {
+        String txt = record.fields[FIELD_TXT];
+        if (!TYPE_TTS_DYNAMIC.equals(record.fields[FIELD_TYPE]) || txt == null) {
+            return PayloadRecord.Kind.OTHER_JSON;
+        }
+        return isBlank(txt) ? PayloadRecord.Kind.TTS_EMPTY : PayloadRecord.Kind.TTS_DYNAMIC;
+    }
+
+    /** Returns true when the payload is a well-formed JSON object. */
+    private boolean scanObject(byte[] payload, PayloadRecord record) {
+        data = payload;
+        pos = 0;
+        end = payload.length;
+        skipWhitespace();
+        if (pos >= end || data[pos] != '{') {
+            return false;
+        }
+        pos++;
+        skipWhitespace();
+        if (pos < end && data[pos] == '}') {
+            return true;
+        }
+        while (true) {
+            skipWhitespace();
+            if (pos >= end || data[pos] != '"') {
+                return false;
+            }
+            int keyStart = pos + 1;
+            int keyEnd = findStringEnd(keyStart);
+            if (keyEnd < 0) {
+                return false;
+            }
+            int field = matchField(data, keyStart, keyEnd);
+            pos = keyEnd + 1;
+            skipWhitespace();
+            if (pos >= end || data[pos] != ':') {
+                return false;
+            }
+            pos++;
+            skipWhitespace();
+            if (pos >= end) {
+                return false;
+            }
+            if (field >= 0) {
+                if (!readFieldValue(record, field)) {
+                    return false;
+                }
+            } else if (!skipValue(0)) {
+                return false;
+            }
+            skipWhitespace();
+            if (pos >= end) {
+                return false;
+            }
+            byte b = data[pos++];
+            if (b == '}') {
+                return true;
+            }
+            if (b != ',') {
+                return false;
+            }
+        }
+    }
+
+    private boolean readFieldValue(PayloadRecord record, int field) {
+        byte b = data[pos];
+        if (b == '"') {
+            int start = pos + 1;
+            int stringEnd = findStringEnd(start);
+            if (stringEnd < 0) {
+                return false;
+            }
+            record.fields[field] = decodeString(start, stringEnd);
+            pos = stringEnd + 1;
+            return true;
+        }
+        if (b == '{' || b == '[') {
+            // Structured values are not used for any known field; keep the raw JSON
+            int start = pos;
+            if (!skipValue(0)) {
+                return false;
+            }
+            record.fields[field] = new String(data, start, pos - start, StandardCharsets.UTF_8);
+            return true;
+        }
+        int start = pos;
+        if (!skipLiteral()) {
+            return false;
+        }
+        String literal = new String(data, start, pos - start, StandardCharsets.US_ASCII);
+        // Like JSONObject.getString, numbers and booleans read as their text form
+        record.fields[field] = "null".equals(literal) ? null : literal;
+        return true;
+    }
+
+    private boolean skipValue(int depth) {
+        if (depth > MAX_DEPTH || pos >= end) {
+            return false;
+        }
+        byte b = data[pos];
+        if (b == '"') {
+            int stringEnd = findStringEnd(pos + 1);
+            if (stringEnd < 0) {
+                return false;
+            }
+            pos = stringEnd + 1;
+            return true;
+        }
+        if (b == '{' || b == '[') {
+            byte close = b == '{' ? (byte) '}' : (byte) ']';
+            pos++;
+            skipWhitespace();
+            if (pos < end && data[pos] == close) {
+                pos++;
+                return true;
+            }
+            while (true) {
+                skipWhitespace();
+                if (b == '{') {
+                    if (pos >= end || data[pos] != '"') {
+                        return false;
+                    }
+                    int keyEnd = findStringEnd(pos + 1);
+                    if (keyEnd < 0) {
+                        return false;
+                    }
+                    pos = keyEnd + 1;
+                    skipWhitespace();
+                    if (pos >= end || data[pos] != ':') {
+                        return false;
+                    }
+                    pos++;
+                    skipWhitespace();
+                }
+                if (!skipValue(depth + 1)) {
+                    return false;
+                }
+                skipWhitespace();
+                if (pos >= end) {
+                    return false;
+                }
+                byte next = data[pos++];
+                if (next == close) {
+                    return true;
+                }
+                if (next != ',') {
+                    return false;
+                }
+            }
+        }
+        return skipLiteral();
+    }
+
+    /** Skips true, false, null or a number in RFC 8259 syntax; anything else is not JSON. */
+    private boolean skipLiteral() {
+        byte b = data[pos];
+        if (b == 't') {
+            return skipKeyword(TRUE);
+        }
+        if (b == 'f') {
+            return skipKeyword(FALSE);
+        }
+        if (b == 'n') {
+            return skipKeyword(NULL);
+        }
+        return skipNumber();
+    }
+
+    private boolean skipKeyword(byte[] keyword) {
+        if (end - pos < keyword.length) {
+            return false;
+        }
+        for (int i = 0; i < keyword.length; i++) {
+            if (data[pos + i] != keyword[i]) {
+                return false;
+            }
+        }
+        pos += keyword.length;
+        return true;
+    }
+
+    private boolean skipNumber() {
+        if (pos < end && data[pos] == '-') {
+            pos++;
+        }
+        if (pos >= end) {
+            return false;
+        }
+        if (data[pos] == '0') {
+            pos++;
+        } else if (!skipDigits()) {
+            return false;
+        }
+        if (pos < end && data[pos] == '.') {
+            pos++;
+            if (!skipDigits()) {
+                return false;
+            }
+        }
+        if (pos < end && (data[pos] == 'e' || data[pos] == 'E')) {
+            pos++;
+            if (pos < end && (data[pos] == '+' || data[pos] == '-')) {
+                pos++;
+            }
+            if (!skipDigits()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean skipDigits() {
+        int start = pos;
+        while (pos < end && data[pos] >= '0' && data[pos] <= '9') {
+            pos++;
+        }
+        return pos > start;
+    }
+
+    /** Returns the index of the closing quote, or -1 if the string is unterminated. */
+    private int findStringEnd(int start) {
+        for (int i = start; i < end; i++) {
+            byte b = data[i];
+            if (b == '\\') {
+                i++;
+            } else if (b == '"') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /** Returns the FIELD_* id whose name equals {@code data[start, stop)}, or -1. */
+    static int matchField(byte[] data, int start, int stop) {
+        int length = stop - start;
+        for (int field = 0; field < FIELD_NAMES.length; field++) {
+            byte[] name = FIELD_NAMES[field];
+            if (name.length != length) {
+                continue;
+            }
+            int i = 0;
+            while (i < length && data[start + i] == name[i]) {
+                i++;
+            }
+            if (i == length) {
+                return field;
+            }
+        }
+        return -1;
+    }
+
+    private String decodeString(int start, int stop) {
+        int escape = -1;
+        for (int i = start; i < stop; i++) {
+            if (data[i] == '\\') {
+                escape = i;
+                break;
+            }
+        }
+        if (escape < 0) {
+            return new String(data, start, stop - start, StandardCharsets.UTF_8);
+        }
+        // Slow path: unescape into the scratch buffer as UTF-8, then decode once
+        ensureScratch(stop - start);
+        int length = escape - start;
+        System.arraycopy(data, start, scratch, 0, length);
+        int i = escape;
+        while (i < stop) {
+            byte b = data[i];
+            if (b != '\\') {
+                scratch[length++] = b;
+                i++;
+                continue;
+            }
+            if (i + 1 >= stop) {
+                break;
+            }
+            byte escaped = data[i + 1];
+            i += 2;
+            switch (escaped) {
+                case 'b': scratch[length++] = '\b'; break;
+                case 'f': scratch[length++] = '\f'; break;
+                case 'n': scratch[length++] = '\n'; break;
+                case 'r': scratch[length++] = '\r'; break;
+                case 't': scratch[length++] = '\t'; break;
+                case 'u': {
+                    int codePoint = readHex(i);
+                    if (codePoint < 0) {
+                        break;
+                    }
+                    i += 4;
+                    if (Character.isHighSurrogate((char) codePoint) && i + 5 < stop
+                            && data[i] == '\\' && data[i + 1] == 'u') {
+                        int low = readHex(i + 2);
+                        if (low >= 0 && Character.isLowSurrogate((char) low)) {
+                            codePoint = Character.toCodePoint((char) codePoint, (char) low);
+                            i += 6;
+                        }
+                    }
+                    length = appendUtf8(codePoint, length);
+                    break;
+                }
+                default:
+                    // \" \\ \/ and anything unknown map to the character itself
+                    scratch[length++] = escaped;
+                    break;
+            }
+        }
+        return new String(scratch, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private int readHex(int start) {
+        if (start + 4 > end) {
+            return -1;
+        }
+        int value = 0;
+        for (int i = start; i < start + 4; i++) {
+            int digit = Character.digit(data[i], 16);
+            if (digit < 0) {
+                return -1;
+            }
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+
+    private int appendUtf8(int codePoint, int length) {
+        if (codePoint < 0x80) {
+            scratch[length++] = (byte) codePoint;
+        } else if (codePoint < 0x800) {
+            scratch[length++] = (byte) (0xC0 | (codePoint >> 6));
+            scratch[length++] = (byte) (0x80 | (codePoint & 0x3F));
+        } else if (codePoint < 0x10000) {
+            scratch[length++] = (byte) (0xE0 | (codePoint >> 12));
+            scratch[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+            scratch[length++] = (byte) (0x80 | (codePoint & 0x3F));
+        } else {
+            scratch[length++] = (byte) (0xF0 | (codePoint >> 18));
+            scratch[length++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+            scratch[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+            scratch[length++] = (byte) (0x80 | (codePoint & 0x3F));
+        }
+        return length;
+    }
+
+    private void ensureScratch(int length) {
+        // Escapes never expand: "\\uXXXX" is six bytes and encodes to at most three
+        if (scratch.length < length) {
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+        }
+    }
+
+    private void skipWhitespace() {
+        while (pos < end && isWhitespace(data[pos])) {
+            pos++;
+        }
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+    }
+
+    private static boolean isBlank(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            // Same rule as String.trim()
+            if (text.charAt(i) > ' ') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] ascii(String name) {
+        return name.getBytes(StandardCharsets.US_ASCII);
+    }
+}
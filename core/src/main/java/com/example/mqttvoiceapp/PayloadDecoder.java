@@ -0,0 +1,706 @@
+package com.example.mqttvoiceapp;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Turns a raw payload into one or more {@link PayloadRecord}s by sniffing its
+ * bytes. gzip and zlib streams are inflated first into a reused buffer. A
+ * CBOR or MessagePack map is one command; an array of maps is a batch, and
+ * its commands come out in order. Map keys and values use the same field
+ * names as the JSON format ("type", "txt", "priority", "key"). Anything else,
+ * including inflated text, goes through {@link PayloadClassifier} as before.
+ *
+ * <p>Binary content is walked once without building a tree, and only values
+ * of known fields are turned into strings. A payload that looks binary but
+ * does not parse completely falls back to text, so plain UTF-8 payloads that
+ * happen to start with a matching byte are unaffected.
+ *
+ * <p>Keeps inflaters and buffers between calls and is not thread-safe; use
+ * one per worker.
+ */
+public class PayloadDecoder {
+    private static final int MAX_INFLATED_BYTES = 1024 * 1024;
+    private static final int MAX_ITEMS = 256;
+    private static final int MAX_DEPTH = 32;
+    private static final int GZIP_FLAG_HCRC = 0x02;
+    private static final int GZIP_FLAG_EXTRA = 0x04;
+    private static final int GZIP_FLAG_NAME = 0x08;
+    private static final int GZIP_FLAG_COMMENT = 0x10;
+
+    private final PayloadClassifier classifier;
+    private final Inflater zlibInflater = new Inflater();
+    // gzip wraps a raw deflate stream in its own header and trailer
+    private final Inflater rawInflater = new Inflater(true);
+    private final CRC32 crc = new CRC32();
+    private byte[] inflated = new byte[4096];
+    private int inflatedLength;
+
+    // Binary parse state
+    private byte[] data;
+    private int pos;
+    private int end;
+    private long argument;
+    private List<PayloadRecord> out;
+
+    private long compressedCount;
+    private long binaryCount;
+
+    public PayloadDecoder(PayloadClassifier classifier) {
+        this.classifier = classifier;
+    }
+
+    /**
+     * Appends the records decoded from {@code payload} to {@code out}, at least
+     * one. The caller recycles them.
+     */
+    public void decode(byte[] payload, List<PayloadRecord> out) {
+        byte[] content = payload;
+        int length = payload.length;
+        if (isGzip(payload) ? inflateGzip(payload) : isZlib(payload) && inflate(zlibInflater, payload, 0, length)) {
+            compressedCount++;
+            content = inflated;
+            length = inflatedLength;
+        }
+        if (decodeBinary(content, length, out)) {
+            binaryCount++;
+            return;
+        }
+        byte[] text = content == payload ? payload : Arrays.copyOf(content, length);
+        out.add(classifier.classify(text, PayloadRecord.obtain()));
+    }
+
+    /** Payloads that were gzip or zlib compressed. */
+    public long getCompressedCount() {
+        return compressedCount;
+    }
+
+    /** Payloads that were CBOR or MessagePack. */
+    public long getBinaryCount() {
+        return binaryCount;
+    }
+
+    // ---- Compression ----
+
+    private static boolean isGzip(byte[] payload) {
+        return payload.length >= 18 && (payload[0] & 0xff) == 0x1f && (payload[1] & 0xff) == 0x8b
+            && payload[2] == 8;
+    }
+
+    private static boolean isZlib(byte[] payload) {
+        if (payload.length < 6) {
+            return false;
+        }
+        int cmf = payload[0] & 0xff;
+        int flg = payload[1] & 0xff;
+        // Deflate with a window of at most 32K, a valid check value and no preset dictionary
+        return (cmf & 0x0f) == 8 && (cmf >>> 4) <= 7 && ((cmf << 8) | flg) % 31 == 0 && (flg & 0x20) == 0;
+    }
+
+    private boolean inflateGzip(byte[] payload) {
+        int flags = payload[3] & 0xff;
+        int offset = 10;
+        if ((flags & GZIP_FLAG_EXTRA) != 0) {
+            if (offset + 2 > payload.length) {
+                return false;
+            }
+            offset += 2 + ((payload[offset] & 0xff) | (payload[offset + 1] & 0xff) << 8);
+        }
+        if ((flags & GZIP_FLAG_NAME) != 0) {
+            offset = skipZeroTerminated(payload, offset);
+        }
+        if ((flags & GZIP_FLAG_COMMENT) != 0) {
+            offset = skipZeroTerminated(payload, offset);
+        }
+        if ((flags & GZIP_FLAG_HCRC) != 0) {
+            offset += 2;
+        }
+        if (offset < 0 || offset + 8 > payload.length
+            || !inflate(rawInflater, payload, offset, payload.length - offset)) {
+            return false;
+        }
+        int trailer = payload.length - rawInflater.getRemaining();
+        if (trailer + 8 > payload.length) {
+            return false;
+        }
+        crc.reset();
+        crc.update(inflated, 0, inflatedLength);
+        return (int) crc.getValue() == readIntLittleEndian(payload, trailer)
+            && inflatedLength == readIntLittleEndian(payload, trailer + 4);
+    }
+
+    private boolean inflate(Inflater inflater, byte[] input, int offset, int length) {
+        inflater.reset();
+        inflater.setInput(input, offset, length);
+        inflatedLength = 0;
+        try {
+            while (!inflater.finished()) {
+                if (inflatedLength == inflated.length) {
+                    if (inflated.length >= MAX_INFLATED_BYTES) {
+                        return false;
+                    }
+                    inflated = Arrays.copyOf(inflated, Math.min(MAX_INFLATED_BYTES, inflated.length * 2));
+                }
+                int count = inflater.inflate(inflated, inflatedLength, inflated.length - inflatedLength);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    // Truncated stream
+                    return false;
+                }
+                inflatedLength += count;
+            }
+        } catch (DataFormatException e) {
+            return false;
+        }
+        return true;
+    }
+
+    private static int skipZeroTerminated(byte[] payload, int offset) {
+        if (offset < 0) {
+            return -1;
+        }
+        while (offset < payload.length) {
+            if (payload[offset++] == 0) {
+                return offset;
+            }
+        }
+        return -1;
+    }
+
+    private static int readIntLittleEndian(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xff) | (bytes[offset + 1] & 0xff) << 8
+            | (bytes[offset + 2] & 0xff) << 16 | (bytes[offset + 3] & 0xff) << 24;
+    }
+
+    // ---- Binary formats ----
+
+    private boolean decodeBinary(byte[] content, int length, List<PayloadRecord> records) {
+        if (length == 0) {
+            return false;
+        }
+        int first = content[0] & 0xff;
+        data = content;
+        end = length;
+        out = records;
+        int mark = records.size();
+        try {
+            // 0x80-0xbf can never start UTF-8 text; 0xdc-0xdf can, so a failed parse falls back
+            boolean selfDescribed = length >= 3 && first == 0xd9 && (content[1] & 0xff) == 0xd9
+                && (content[2] & 0xff) == 0xf7;
+            if ((selfDescribed || (first >= 0x80 && first <= 0xbf)) && parseCborRoot(selfDescribed ? 3 : 0)) {
+                return true;
+            }
+            rollback(records, mark);
+            if (((first >= 0x80 && first <= 0x9f) || (first >= 0xdc && first <= 0xdf)) && parseMsgPackRoot()) {
+                return true;
+            }
+            rollback(records, mark);
+            return false;
+        } finally {
+            data = null;
+            out = null;
+        }
+    }
+
+    private static void rollback(List<PayloadRecord> records, int mark) {
+        while (records.size() > mark) {
+            records.remove(records.size() - 1).recycle();
+        }
+    }
+
+    private void addRecord(PayloadRecord record) {
+        PayloadRecord.Kind kind = PayloadClassifier.classifyObject(record);
+        record.kind = kind == PayloadRecord.Kind.OTHER_JSON ? PayloadRecord.Kind.OTHER_BINARY : kind;
+        out.add(record);
+    }
+
+    // CBOR (RFC 8949)
+
+    private boolean parseCborRoot(int start) {
+        pos = start;
+        int mark = out.size();
+        if (!readCborHead()) {
+            return false;
+        }
+        int major = data[start] >>> 5 & 0x07;
+        if (major == 5) {
+            if (!readCborMap(0)) {
+                return false;
+            }
+        } else if (major == 4) {
+            long count = argument;
+            for (long i = 0; count < 0 || i < count; i++) {
+                if (pos >= end) {
+                    return false;
+                }
+                if (count < 0 && (data[pos] & 0xff) == 0xff) {
+                    pos++;
+                    break;
+                }
+                if (out.size() - mark >= MAX_ITEMS) {
+                    return false;
+                }
+                boolean isMap = (data[pos] & 0xff) >>> 5 == 5;
+                if (isMap ? !(readCborHead() && readCborMap(1)) : !skipCbor(1)) {
+                    return false;
+                }
+            }
+        } else {
+            return false;
+        }
+        return pos == end && out.size() > mark;
+    }
+
+    /** Reads one map whose head was just read; {@link #argument} holds its size or -1. */
+    private boolean readCborMap(int depth) {
+        long count = argument;
+        if (count > end - pos) {
+            return false;
+        }
+        PayloadRecord record = PayloadRecord.obtain();
+        record.reset();
+        for (long i = 0; count < 0 || i < count; i++) {
+            if (pos >= end) {
+                record.recycle();
+                return false;
+            }
+            if (count < 0 && (data[pos] & 0xff) == 0xff) {
+                pos++;
+                break;
+            }
+            int field = -1;
+            if ((data[pos] & 0xff) >>> 5 == 3 && (data[pos] & 0x1f) != 31) {
+                if (!readCborHead() || argument > end - pos) {
+                    record.recycle();
+                    return false;
+                }
+                field = PayloadClassifier.matchField(data, pos, pos + (int) argument);
+                pos += (int) argument;
+            } else if (!skipCbor(depth + 1)) {
+                record.recycle();
+                return false;
+            }
+            if (field >= 0 ? !readCborValue(record, field, depth + 1) : !skipCbor(depth + 1)) {
+                record.recycle();
+                return false;
+            }
+        }
+        addRecord(record);
+        return true;
+    }
+
+    private boolean readCborValue(PayloadRecord record, int field, int depth) {
+        int start = pos;
+        if (!readCborHead()) {
+            return false;
+        }
+        int initial = data[start] & 0xff;
+        int major = initial >>> 5;
+        if (major == 3) {
+            if (argument >= 0) {
+                if (argument > end - pos) {
+                    return false;
+                }
+                record.fields[field] = new String(data, pos, (int) argument, StandardCharsets.UTF_8);
+                pos += (int) argument;
+                return true;
+            }
+            // Indefinite-length text: definite chunks up to a break
+            StringBuilder text = new StringBuilder();
+            while (pos < end && (data[pos] & 0xff) != 0xff) {
+                if ((data[pos] & 0xff) >>> 5 != 3 || !readCborHead() || argument < 0 || argument > end - pos) {
+                    return false;
+                }
+                text.append(new String(data, pos, (int) argument, StandardCharsets.UTF_8));
+                pos += (int) argument;
+            }
+            if (pos >= end) {
+                return false;
+            }
+            pos++;
+            record.fields[field] = text.toString();
+            return true;
+        }
+        if (major == 0) {
+            record.fields[field] = Long.toUnsignedString(argument);
+            return true;
+        }
+        if (major == 1 && argument >= 0) {
+            record.fields[field] = Long.toString(-1 - argument);
+            return true;
+        }
+        if (initial == 0xf4 || initial == 0xf5) {
+            record.fields[field] = initial == 0xf5 ? "true" : "false";
+            return true;
+        }
+        if (initial == 0xf6 || initial == 0xf7) {
+            // null and undefined
+            return true;
+        }
+        pos = start;
+        return skipCbor(depth);
+    }
+
+    private boolean skipCbor(int depth) {
+        if (depth > MAX_DEPTH || pos >= end) {
+            return false;
+        }
+        int initial = data[pos] & 0xff;
+        if (!readCborHead()) {
+            return false;
+        }
+        int major = initial >>> 5;
+        long count = argument;
+        switch (major) {
+            case 0:
+            case 1:
+                return true;
+            case 2:
+            case 3:
+                if (count >= 0) {
+                    if (count > end - pos) {
+                        return false;
+                    }
+                    pos += (int) count;
+                    return true;
+                }
+                while (pos < end && (data[pos] & 0xff) != 0xff) {
+                    if ((data[pos] & 0xff) >>> 5 != major || !readCborHead() || argument < 0
+                        || argument > end - pos) {
+                        return false;
+                    }
+                    pos += (int) argument;
+                }
+                return pos++ < end;
+            case 4:
+            case 5: {
+                long items = count < 0 ? -1 : major == 5 ? count * 2 : count;
+                if (items > end - pos) {
+                    return false;
+                }
+                for (long i = 0; items < 0 || i < items; i++) {
+                    if (pos >= end) {
+                        return false;
+                    }
+                    if (items < 0 && (data[pos] & 0xff) == 0xff) {
+                        pos++;
+                        return true;
+                    }
+                    if (!skipCbor(depth + 1)) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+            case 6:
+                return skipCbor(depth + 1);
+            default:
+                // Simple values and floats are fully read by the head; a stray break is malformed
+                return initial != 0xff;
+        }
+    }
+
+    /** Reads an initial byte and its argument into {@link #argument}; -1 for indefinite length. */
+    private boolean readCborHead() {
+        if (pos >= end) {
+            return false;
+        }
+        int initial = data[pos++] & 0xff;
+        int info = initial & 0x1f;
+        if (info < 24) {
+            argument = info;
+            return true;
+        }
+        if (info == 31) {
+            int major = initial >>> 5;
+            argument = -1;
+            return major >= 2 && major != 6;
+        }
+        if (info > 27) {
+            return false;
+        }
+        int size = 1 << (info - 24);
+        if (size > end - pos) {
+            return false;
+        }
+        argument = readBigEndian(size);
+        return true;
+    }
+
+    // MessagePack
+
+    private boolean parseMsgPackRoot() {
+        pos = 0;
+        int mark = out.size();
+        int first = data[0] & 0xff;
+        long mapSize = msgPackMapSize(first);
+        if (mapSize >= 0) {
+            if (!readMsgPackMap(mapSize, 0)) {
+                return false;
+            }
+        } else {
+            long count = msgPackArraySize(first);
+            if (count < 0 || count > end - pos) {
+                return false;
+            }
+            for (long i = 0; i < count; i++) {
+                if (pos >= end || out.size() - mark >= MAX_ITEMS) {
+                    return false;
+                }
+                int initial = data[pos] & 0xff;
+                boolean isMap = initial >= 0x80 && initial <= 0x8f || initial == 0xde || initial == 0xdf;
+                if (isMap) {
+                    long size = msgPackMapSize(initial);
+                    if (size < 0 || !readMsgPackMap(size, 1)) {
+                        return false;
+                    }
+                } else if (!skipMsgPack(1)) {
+                    return false;
+                }
+            }
+        }
+        return pos == end && out.size() > mark;
+    }
+
+    /** Reads a map header at {@link #pos}; returns its size or -1 if it is not a map. */
+    private long msgPackMapSize(int initial) {
+        if (initial >= 0x80 && initial <= 0x8f) {
+            pos++;
+            return initial & 0x0f;
+        }
+        if (initial == 0xde || initial == 0xdf) {
+            return readMsgPackLength(initial == 0xde ? 2 : 4);
+        }
+        return -1;
+    }
+
+    private long msgPackArraySize(int initial) {
+        if (initial >= 0x90 && initial <= 0x9f) {
+            pos++;
+            return initial & 0x0f;
+        }
+        if (initial == 0xdc || initial == 0xdd) {
+            return readMsgPackLength(initial == 0xdc ? 2 : 4);
+        }
+        return -1;
+    }
+
+    /** Skips the type byte at {@link #pos} and reads a big-endian length after it. */
+    private long readMsgPackLength(int size) {
+        if (size + 1 > end - pos) {
+            return -1;
+        }
+        pos++;
+        return readBigEndian(size);
+    }
+
+    /** Returns the length of the string at {@link #pos} and moves past its header, or -1. */
+    private long readMsgPackStringHeader() {
+        int initial = data[pos] & 0xff;
+        if (initial >= 0xa0 && initial <= 0xbf) {
+            pos++;
+            return initial & 0x1f;
+        }
+        switch (initial) {
+            case 0xd9:
+                return readMsgPackLength(1);
+            case 0xda:
+                return readMsgPackLength(2);
+            case 0xdb:
+                return readMsgPackLength(4);
+            default:
+                return -1;
+        }
+    }
+
+    private boolean readMsgPackMap(long count, int depth) {
+        if (count > end - pos) {
+            return false;
+        }
+        PayloadRecord record = PayloadRecord.obtain();
+        record.reset();
+        for (long i = 0; i < count; i++) {
+            if (pos >= end) {
+                record.recycle();
+                return false;
+            }
+            int keyStart = pos;
+            long keyLength = readMsgPackStringHeader();
+            int field = -1;
+            if (keyLength >= 0) {
+                if (keyLength > end - pos) {
+                    record.recycle();
+                    return false;
+                }
+                field = PayloadClassifier.matchField(data, pos, pos + (int) keyLength);
+                pos += (int) keyLength;
+            } else {
+                pos = keyStart;
+                if (!skipMsgPack(depth + 1)) {
+                    record.recycle();
+                    return false;
+                }
+            }
+            if (pos >= end || (field >= 0 ? !readMsgPackValue(record, field, depth + 1) : !skipMsgPack(depth + 1))) {
+                record.recycle();
+                return false;
+            }
+        }
+        addRecord(record);
+        return true;
+    }
+
+    private boolean readMsgPackValue(PayloadRecord record, int field, int depth) {
+        int start = pos;
+        int initial = data[pos] & 0xff;
+        long length = readMsgPackStringHeader();
+        if (length >= 0) {
+            if (length > end - pos) {
+                return false;
+            }
+            record.fields[field] = new String(data, pos, (int) length, StandardCharsets.UTF_8);
+            pos += (int) length;
+            return true;
+        }
+        if (initial <= 0x7f) {
+            pos++;
+            record.fields[field] = Integer.toString(initial);
+            return true;
+        }
+        if (initial >= 0xe0) {
+            pos++;
+            record.fields[field] = Integer.toString((byte) initial);
+            return true;
+        }
+        if (initial >= 0xcc && initial <= 0xd3) {
+            int size = 1 << ((initial - 0xcc) & 0x03);
+            if (size + 1 > end - pos) {
+                return false;
+            }
+            pos++;
+            long value = readBigEndian(size);
+            if (initial >= 0xd0) {
+                // Sign-extend int8..int64
+                int shift = 64 - size * 8;
+                record.fields[field] = Long.toString(value << shift >> shift);
+            } else {
+                record.fields[field] = Long.toUnsignedString(value);
+            }
+            return true;
+        }
+        if (initial == 0xc2 || initial == 0xc3) {
+            pos++;
+            record.fields[field] = initial == 0xc3 ? "true" : "false";
+            return true;
+        }
+        if (initial == 0xc0) {
+            pos++;
+            return true;
+        }
+        pos = start;
+        return skipMsgPack(depth);
+    }
+
+    private boolean skipMsgPack(int depth) {
+        if (depth > MAX_DEPTH || pos >= end) {
+            return false;
+        }
+        int initial = data[pos] & 0xff;
+        if (initial <= 0x7f || initial >= 0xe0) {
+            pos++;
+            return true;
+        }
+        long items;
+        long bytes;
+        if (initial <= 0x8f || initial == 0xde || initial == 0xdf) {
+            long size = msgPackMapSize(initial);
+            items = size < 0 ? -1 : size * 2;
+            bytes = 0;
+        } else if (initial <= 0x9f || initial == 0xdc || initial == 0xdd) {
+            items = msgPackArraySize(initial);
+            bytes = 0;
+        } else if (initial <= 0xbf || (initial >= 0xd9 && initial <= 0xdb)) {
+            items = 0;
+            bytes = readMsgPackStringHeader();
+        } else {
+            items = 0;
+            bytes = skipFixedMsgPack(initial);
+        }
+        if (items < 0 || bytes < 0 || items > end - pos || bytes > end - pos) {
+            return false;
+        }
+        pos += (int) bytes;
+        for (long i = 0; i < items; i++) {
+            if (!skipMsgPack(depth + 1)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** For nil, booleans, numbers, bin and ext: moves past the header and returns the body size. */
+    private long skipFixedMsgPack(int initial) {
+        switch (initial) {
+            case 0xc0:
+            case 0xc2:
+            case 0xc3:
+                pos++;
+                return 0;
+            case 0xc4:
+                return readMsgPackLength(1);
+            case 0xc5:
+                return readMsgPackLength(2);
+            case 0xc6:
+                return readMsgPackLength(4);
+            case 0xc7:
+            case 0xc8:
+            case 0xc9: {
+                // ext: length, then a type byte, then the data
+                long length = readMsgPackLength(initial == 0xc7 ? 1 : initial == 0xc8 ? 2 : 4);
+                return length < 0 ? -1 : length + 1;
+            }
+            case 0xca:
+            case 0xd2:
+                pos++;
+                return 4;
+            case 0xcb:
+            case 0xcf:
+            case 0xd3:
+                pos++;
+                return 8;
+            case 0xcc:
+            case 0xd0:
+                pos++;
+                return 1;
+            case 0xcd:
+            case 0xd1:
+                pos++;
+                return 2;
+            case 0xce:
+                pos++;
+                return 4;
+            case 0xd4:
+            case 0xd5:
+            case 0xd6:
+            case 0xd7:
+            case 0xd8:
+                // fixext 1-16 plus the type byte
+                pos++;
+                return (1 << (initial - 0xd4)) + 1;
+            default:
+                // 0xc1 is never used
+                return -1;
+        }
+    }
+
+    private long readBigEndian(int size) {
+        long value = 0;
+        for (int i = 0; i < size; i++) {
+            value = value << 8 | (data[pos++] & 0xff);
+        }
+        return value;
+    }
+}
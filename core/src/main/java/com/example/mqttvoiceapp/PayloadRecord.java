@@ -0,0 +1,77 @@
+package com.example.mqttvoiceapp;
+
+/**
+ * Result of classifying one payload. Records are pooled and reused, so
+ * callers must {@link #recycle()} them once they are done and must not keep
+ * references afterwards.
+ */
+public class PayloadRecord {
+    public enum Kind {
+        /** Not a JSON object; the whole payload is spoken as text. */
+        PLAIN_TEXT,
+        /** A {"type":"tts_dynamic","txt":...} command with non-blank text. */
+        TTS_DYNAMIC,
+        /** A tts_dynamic command whose text is blank. */
+        TTS_EMPTY,
+        /** A JSON object in some other format; spoken as text like plain payloads. */
+        OTHER_JSON,
+        /** A CBOR or MessagePack map that is not a tts_dynamic command; has no text and is ignored. */
+        OTHER_BINARY
+    }
+
+    private static final int POOL_SIZE = 16;
+    private static final PayloadRecord[] pool = new PayloadRecord[POOL_SIZE];
+    private static int pooled;
+
+    public Kind kind;
+    public byte[] payload;
+    private String payloadText;
+    // Indexed by PayloadClassifier.FIELD_* constants; null when the field is absent
+    final String[] fields = new String[PayloadClassifier.FIELD_COUNT];
+
+    public static PayloadRecord obtain() {
+        synchronized (pool) {
+            if (pooled > 0) {
+                PayloadRecord record = pool[--pooled];
+                pool[pooled] = null;
+                return record;
+            }
+        }
+        return new PayloadRecord();
+    }
+
+    public void recycle() {
+        reset();
+        synchronized (pool) {
+            if (pooled < POOL_SIZE) {
+                pool[pooled++] = this;
+            }
+        }
+    }
+
+    void reset() {
+        kind = null;
+        payload = null;
+        payloadText = null;
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = null;
+        }
+    }
+
+    /** Returns an extracted field value, or null when the payload did not have it. */
+    public String field(int fieldId) {
+        return fields[fieldId];
+    }
+
+    /** The whole payload decoded as UTF-8; decoded lazily and only once. */
+    public String payloadText() {
+        if (payloadText == null && payload != null) {
+            payloadText = new String(payload, java.nio.charset.StandardCharsets.UTF_8);
+        }
+        return payloadText;
+    }
+
+    public String text() {
+        return fields[PayloadClassifier.FIELD_TXT];
+    }
+}
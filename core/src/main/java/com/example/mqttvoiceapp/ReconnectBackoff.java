@@ -0,0 +1,41 @@
+package com.example.mqttvoiceapp;
+
+import java.util.Random;
+
+/**
+ * Capped exponential backoff with full jitter: the n-th retry waits a random
+ * time between zero and min(cap, base * 2^n). Spreading retries over the whole
+ * window keeps a fleet of devices from reconnecting in lockstep after the
+ * broker restarts.
+ */
+public class ReconnectBackoff {
+    private final long baseDelayMs;
+    private final long maxDelayMs;
+    private final Random random = new Random();
+    private int attempt;
+
+    public ReconnectBackoff(long baseDelayMs, long maxDelayMs) {
+        this.baseDelayMs = baseDelayMs;
+        this.maxDelayMs = maxDelayMs;
+    }
+
+    /** Returns the delay before the next retry and advances the attempt counter. */
+    public synchronized long nextDelayMs() {
+        long ceiling = maxDelayMs;
+        // Stop doubling once the cap is reached so the shift cannot overflow
+        if (attempt < 30 && (baseDelayMs << attempt) < maxDelayMs) {
+            ceiling = baseDelayMs << attempt;
+        }
+        attempt++;
+        return (long) (random.nextDouble() * (ceiling + 1));
+    }
+
+    public synchronized int getAttempt() {
+        return attempt;
+    }
+
+    /** Called once a connection has stayed up long enough to count as stable. */
+    public synchronized void reset() {
+        attempt = 0;
+    }
+}
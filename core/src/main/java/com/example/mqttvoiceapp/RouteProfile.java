@@ -0,0 +1,36 @@
+package com.example.mqttvoiceapp;
+
+import java.util.Locale;
+
+/** How messages on a matching topic are spoken and displayed. */
+public class RouteProfile {
+    /** Marks a profile that leaves the priority to the payload. */
+    public static final int PRIORITY_FROM_PAYLOAD = -1;
+
+    public static final RouteProfile DEFAULT =
+        new RouteProfile(Locale.CHINESE, 1.0f, 1.0f, PRIORITY_FROM_PAYLOAD, true, true);
+
+    public final Locale locale;
+    public final float speechRate;
+    public final float pitch;
+    public final int priority;
+    public final boolean speak;
+    public final boolean display;
+
+    public RouteProfile(Locale locale, float speechRate, float pitch, int priority, boolean speak, boolean display) {
+        this.locale = locale;
+        this.speechRate = speechRate;
+        this.pitch = pitch;
+        this.priority = priority;
+        this.speak = speak;
+        this.display = display;
+    }
+
+    /** Picks the priority for a message: the payload's own field wins over the route default. */
+    public int resolvePriority(String payloadPriority) {
+        if (payloadPriority != null || priority == PRIORITY_FROM_PAYLOAD) {
+            return SpeechScheduler.parsePriority(payloadPriority);
+        }
+        return priority;
+    }
+}
@@ -0,0 +1,28 @@
+package com.example.mqttvoiceapp;
+
+/** One thing to say, as handed to {@link SpeechScheduler#submit(SpeechRequest)}. */
+public class SpeechRequest {
+    /** Requests with the same non-null key replace each other while waiting. */
+    public final String key;
+    public final String text;
+    public final int priority;
+    public final long arrivalNanos;
+    /** The publisher's deadline in System.nanoTime() terms, or 0 for none. */
+    public final long expiresAtNanos;
+    /** Unique per request; see {@link LatencyTracker#utteranceId(long, int)}. */
+    public final String utteranceId;
+    public final RouteProfile voice;
+    // Set by the scheduler when a newer request with the same key replaced this one
+    boolean cancelled;
+
+    public SpeechRequest(String key, String text, int priority, long arrivalNanos, long expiresAtNanos,
+                         String utteranceId, RouteProfile voice) {
+        this.key = key;
+        this.text = text;
+        this.priority = Math.max(SpeechScheduler.PRIORITY_LOW, Math.min(SpeechScheduler.PRIORITY_URGENT, priority));
+        this.arrivalNanos = arrivalNanos;
+        this.expiresAtNanos = expiresAtNanos;
+        this.utteranceId = utteranceId;
+        this.voice = voice;
+    }
+}
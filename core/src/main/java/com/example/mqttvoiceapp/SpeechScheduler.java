@@ -0,0 +1,296 @@
+package com.example.mqttvoiceapp;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Owns the speech backlog instead of appending everything to the TTS engine.
+ * Only one utterance is handed to the engine at a time; the rest wait here so
+ * they can be prioritised, coalesced by key and expired when they get too old
+ * or when the publisher's own message expiry has passed.
+ * Urgent entries interrupt whatever is playing.
+ *
+ * <p>The current utterance has a deadline derived from its length and speech
+ * rate. An engine that never reports it finished would otherwise hold up the
+ * queue for good, so once the deadline has passed {@link #checkStalled(long)},
+ * and the next {@link #submit}, give up on it and move on.
+ */
+public class SpeechScheduler {
+    public static final int PRIORITY_LOW = 0;
+    public static final int PRIORITY_NORMAL = 1;
+    public static final int PRIORITY_HIGH = 2;
+    public static final int PRIORITY_URGENT = 3;
+    private static final int PRIORITY_LEVELS = 4;
+    // Generous for any engine: Chinese is spoken at about four characters a second
+    private static final long STALL_BASE_NANOS = TimeUnit.SECONDS.toNanos(10);
+    private static final long STALL_PER_CHAR_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+
+    /** The engine side; implemented by the service on top of TextToSpeech. */
+    public interface Speaker {
+        void speak(String text, boolean flush, String utteranceId, RouteProfile voice);
+    }
+
+    public interface StatsListener {
+        void onStats(int queued, long stalenessMs, long expiredCount, long coalescedCount, long preemptedCount);
+    }
+
+    private final Speaker speaker;
+    private final StatsListener statsListener;
+    private final long maxAgeNanos;
+    private final int maxQueued;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final ArrayDeque<SpeechRequest>[] queues = new ArrayDeque[PRIORITY_LEVELS];
+    private final Map<String, SpeechRequest> pendingByKey = new HashMap<>();
+    private int queuedCount;
+    private SpeechRequest current;
+    private long currentDeadlineNanos;
+
+    private long expiredCount;
+    private long coalescedCount;
+    private long preemptedCount;
+    private long stalledCount;
+    private long lastStalenessMs;
+
+    public SpeechScheduler(Speaker speaker, StatsListener statsListener, long maxAgeMs, int maxQueued) {
+        this.speaker = speaker;
+        this.statsListener = statsListener;
+        this.maxAgeNanos = TimeUnit.MILLISECONDS.toNanos(maxAgeMs);
+        this.maxQueued = maxQueued;
+        for (int i = 0; i < PRIORITY_LEVELS; i++) {
+            queues[i] = new ArrayDeque<>();
+        }
+    }
+
+    /**
+     * Parses a priority from a payload field: either a number 0-3 or one of
+     * low/normal/high/urgent. Anything else maps to normal.
+     */
+    public static int parsePriority(String value) {
+        if (value == null || value.isEmpty()) {
+            return PRIORITY_NORMAL;
+        }
+        switch (value.trim().toLowerCase(Locale.ROOT)) {
+            case "0":
+            case "low":
+                return PRIORITY_LOW;
+            case "2":
+            case "high":
+                return PRIORITY_HIGH;
+            case "3":
+            case "urgent":
+                return PRIORITY_URGENT;
+            default:
+                return PRIORITY_NORMAL;
+        }
+    }
+
+    /**
+     * Priority for item {@code part} of a batch. An urgent request cuts off the
+     * current one, so later urgent items would cut off their own batch and only
+     * the last would be heard. Only the first item may preempt; the others are
+     * spoken as high priority, in order.
+     */
+    public static int batchPriority(int priority, int part) {
+        return part > 0 ? Math.min(priority, PRIORITY_HIGH) : priority;
+    }
+
+    /**
+     * Coalescing key for item {@code part} of a batch of {@code batchSize}.
+     * Items of one batch must not replace each other, so each gets its own
+     * key, and a later batch replaces the same positions. A single message
+     * with the plain key therefore does not replace a waiting batch item, nor
+     * the other way round.
+     */
+    public static String batchKey(String key, int part, int batchSize) {
+        return batchSize > 1 ? key + "#" + part : key;
+    }
+
+    /**
+     * Queues a request for speech. A pending request with the same key is
+     * replaced, so only the newest message per key is spoken.
+     */
+    public void submit(SpeechRequest request) {
+        String key = request.key;
+        int priority = request.priority;
+        SpeechRequest toSpeak = null;
+        boolean flush = false;
+        synchronized (this) {
+            long now = System.nanoTime();
+            // Whatever the engine still holds of an abandoned utterance must not delay the next
+            flush = abandonIfStalled(now);
+            if (key != null) {
+                SpeechRequest previous = pendingByKey.put(key, request);
+                if (previous != null) {
+                    previous.cancelled = true;
+                    queuedCount--;
+                    coalescedCount++;
+                }
+            }
+            if (priority == PRIORITY_URGENT) {
+                // Urgent entries skip the queue and cut off the current utterance
+                if (key != null) {
+                    pendingByKey.remove(key);
+                }
+                if (current != null) {
+                    preemptedCount++;
+                }
+                setCurrent(request, now);
+                toSpeak = request;
+                flush = true;
+            } else {
+                queues[priority].addLast(request);
+                queuedCount++;
+                trimToCapacity();
+                if (current == null) {
+                    toSpeak = pollNext(now);
+                    setCurrent(toSpeak, now);
+                }
+            }
+        }
+        dispatch(toSpeak, flush);
+    }
+
+    /** Called when the engine finished, stopped or failed an utterance. */
+    public void onUtteranceFinished(String utteranceId) {
+        SpeechRequest next;
+        synchronized (this) {
+            if (current == null || !current.utteranceId.equals(utteranceId)) {
+                return;
+            }
+            long now = System.nanoTime();
+            next = pollNext(now);
+            setCurrent(next, now);
+        }
+        dispatch(next, false);
+    }
+
+    /**
+     * Gives up on the current utterance if its deadline has passed and speaks
+     * the next one. A backstop for engines that drop callbacks; call it
+     * periodically. Returns true if an utterance was given up on.
+     */
+    public boolean checkStalled(long nowNanos) {
+        SpeechRequest next;
+        synchronized (this) {
+            if (!abandonIfStalled(nowNanos)) {
+                return false;
+            }
+            next = pollNext(nowNanos);
+            setCurrent(next, nowNanos);
+        }
+        // Flushing drops whatever the engine still holds of the abandoned utterance
+        dispatch(next, true);
+        return true;
+    }
+
+    /** Drops everything that has not been spoken yet. */
+    public synchronized void clear() {
+        for (ArrayDeque<SpeechRequest> queue : queues) {
+            queue.clear();
+        }
+        pendingByKey.clear();
+        queuedCount = 0;
+        current = null;
+    }
+
+    public synchronized int getQueuedCount() {
+        return queuedCount;
+    }
+
+    public synchronized long getLastStalenessMs() {
+        return lastStalenessMs;
+    }
+
+    /** Utterances given up on because the engine never reported them finished. */
+    public synchronized long getStalledCount() {
+        return stalledCount;
+    }
+
+    // Must hold the lock
+    private void setCurrent(SpeechRequest request, long now) {
+        current = request;
+        if (request != null) {
+            float rate = Math.max(0.1f, request.voice.speechRate);
+            currentDeadlineNanos = now + STALL_BASE_NANOS
+                + (long) (request.text.length() * STALL_PER_CHAR_NANOS / rate);
+        }
+    }
+
+    // Must hold the lock
+    private boolean abandonIfStalled(long now) {
+        if (current == null || now - currentDeadlineNanos < 0) {
+            return false;
+        }
+        current = null;
+        stalledCount++;
+        return true;
+    }
+
+    private void dispatch(SpeechRequest entry, boolean flush) {
+        if (entry == null) {
+            return;
+        }
+        speaker.speak(entry.text, flush, entry.utteranceId, entry.voice);
+        if (statsListener != null) {
+            int queued;
+            long staleness, expired, coalesced, preempted;
+            synchronized (this) {
+                lastStalenessMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - entry.arrivalNanos);
+                queued = queuedCount;
+                staleness = lastStalenessMs;
+                expired = expiredCount;
+                coalesced = coalescedCount;
+                preempted = preemptedCount;
+            }
+            statsListener.onStats(queued, staleness, expired, coalesced, preempted);
+        }
+    }
+
+    // Must hold the lock
+    private SpeechRequest pollNext(long now) {
+        for (int priority = PRIORITY_LEVELS - 1; priority >= 0; priority--) {
+            ArrayDeque<SpeechRequest> queue = queues[priority];
+            SpeechRequest entry;
+            while ((entry = queue.pollFirst()) != null) {
+                if (entry.cancelled) {
+                    continue;
+                }
+                queuedCount--;
+                if (entry.key != null && pendingByKey.get(entry.key) == entry) {
+                    pendingByKey.remove(entry.key);
+                }
+                if ((maxAgeNanos > 0 && now - entry.arrivalNanos > maxAgeNanos)
+                    || (entry.expiresAtNanos != 0 && now - entry.expiresAtNanos > 0)) {
+                    expiredCount++;
+                    continue;
+                }
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    // Must hold the lock; evicts the oldest lowest-priority entries
+    private void trimToCapacity() {
+        int priority = PRIORITY_LOW;
+        while (queuedCount > maxQueued && priority < PRIORITY_LEVELS) {
+            SpeechRequest entry = queues[priority].pollFirst();
+            if (entry == null) {
+                priority++;
+                continue;
+            }
+            if (entry.cancelled) {
+                continue;
+            }
+            queuedCount--;
+            expiredCount++;
+            if (entry.key != null && pendingByKey.get(entry.key) == entry) {
+                pendingByKey.remove(entry.key);
+            }
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package com.example.mqttvoiceapp;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits long announcements into segments the engine can start on quickly.
+ *
+ * <p>The first segment ends at the first sentence or clause boundary once it
+ * has at least {@link #MIN_SEGMENT_LENGTH} characters, so audio can begin
+ * after synthesizing a few words instead of the whole text. Later segments
+ * gather whole sentences up to {@code segmentMax} characters and fall back to
+ * clause punctuation, whitespace and finally a hard cut when a sentence is
+ * longer than that. Both Chinese and Western punctuation count; a '.' only
+ * ends a sentence when followed by whitespace, so decimals stay intact.
+ */
+public class SpeechSegmenter {
+    private static final int MIN_SEGMENT_LENGTH = 6;
+
+    private final int firstSegmentMax;
+    private final int segmentMax;
+
+    /**
+     * @param firstSegmentMax longest first segment, cut hard if no boundary is found
+     * @param segmentMax      longest later segment; must not exceed the engine's input limit
+     */
+    public SpeechSegmenter(int firstSegmentMax, int segmentMax) {
+        this.segmentMax = Math.max(MIN_SEGMENT_LENGTH * 2, segmentMax);
+        this.firstSegmentMax = Math.max(MIN_SEGMENT_LENGTH * 2, Math.min(firstSegmentMax, this.segmentMax));
+    }
+
+    public List<String> split(String text) {
+        List<String> segments = new ArrayList<>();
+        int length = text.length();
+        int start = skipWhitespace(text, 0);
+        while (start < length) {
+            boolean first = segments.isEmpty();
+            int end = first ? firstCut(text, start) : nextCut(text, start);
+            String segment = text.substring(start, end).trim();
+            if (!segment.isEmpty()) {
+                segments.add(segment);
+            }
+            start = skipWhitespace(text, end);
+        }
+        return segments;
+    }
+
+    // Ends at the first boundary that leaves a segment long enough to be worth its own request
+    private int firstCut(String text, int start) {
+        int limit = Math.min(text.length(), start + firstSegmentMax);
+        int whitespaceCut = -1;
+        for (int i = start; i < limit; i++) {
+            char c = text.charAt(i);
+            if (isSentenceEnd(text, i) || isClauseEnd(c)) {
+                int end = skipTrailing(text, i + 1);
+                if (end - start >= MIN_SEGMENT_LENGTH) {
+                    return end;
+                }
+                i = end - 1;
+            } else if (Character.isWhitespace(c) && i - start >= MIN_SEGMENT_LENGTH) {
+                whitespaceCut = i;
+            }
+        }
+        if (limit == text.length()) {
+            return limit;
+        }
+        return whitespaceCut > 0 ? whitespaceCut : hardCut(text, limit);
+    }
+
+    // Packs whole sentences up to segmentMax
+    private int nextCut(String text, int start) {
+        if (text.length() - start <= segmentMax) {
+            return text.length();
+        }
+        int limit = start + segmentMax;
+        int sentenceCut = -1;
+        int clauseCut = -1;
+        int whitespaceCut = -1;
+        for (int i = start; i < limit; i++) {
+            char c = text.charAt(i);
+            if (isSentenceEnd(text, i)) {
+                int end = skipTrailing(text, i + 1);
+                if (end <= limit) {
+                    sentenceCut = end;
+                }
+                i = end - 1;
+            } else if (isClauseEnd(c)) {
+                int end = skipTrailing(text, i + 1);
+                if (end <= limit) {
+                    clauseCut = end;
+                }
+                i = end - 1;
+            } else if (Character.isWhitespace(c)) {
+                whitespaceCut = i;
+            }
+        }
+        if (sentenceCut > start) {
+            return sentenceCut;
+        }
+        if (clauseCut > start) {
+            return clauseCut;
+        }
+        return whitespaceCut > start ? whitespaceCut : hardCut(text, limit);
+    }
+
+    private static int hardCut(String text, int limit) {
+        // Never separate a surrogate pair
+        return Character.isHighSurrogate(text.charAt(limit - 1)) ? limit - 1 : limit;
+    }
+
+    private static boolean isSentenceEnd(String text, int index) {
+        switch (text.charAt(index)) {
+            case '。':
+            case '！':
+            case '？':
+            case '；':
+            case '…':
+            case '!':
+            case '?':
+            case ';':
+            case '\n':
+                return true;
+            case '.':
+                return index + 1 == text.length() || Character.isWhitespace(text.charAt(index + 1));
+            default:
+                return false;
+        }
+    }
+
+    private static boolean isClauseEnd(char c) {
+        switch (c) {
+            case '，':
+            case '、':
+            case '：':
+            case ',':
+            case ':':
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // Keeps repeated terminators ("！？", "……") and closing quotes with the segment they end
+    private static int skipTrailing(String text, int index) {
+        while (index < text.length()) {
+            char c = text.charAt(index);
+            boolean trailing = c == '”' || c == '’' || c == '」' || c == '』' || c == '）' || c == ')'
+                || c == '"' || c == '\'' || (c != '\n' && isSentenceEnd(text, index)) || isClauseEnd(c);
+            if (!trailing) {
+                break;
+            }
+            index++;
+        }
+        return index;
+    }
+
+    private static int skipWhitespace(String text, int index) {
+        while (index < text.length() && Character.isWhitespace(text.charAt(index))) {
+            index++;
+        }
+        return index;
+    }
+}
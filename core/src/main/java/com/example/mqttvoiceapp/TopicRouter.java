@@ -0,0 +1,267 @@
+package com.example.mqttvoiceapp;
+
+import java.util.List;
+
+/**
+ * Resolves a topic to its {@link RouteProfile} using a trie compiled from MQTT
+ * topic filters, including the {@code +} and {@code #} wildcards.
+ *
+ * <p>Lookups walk the topic once, level by level, and compare segments in
+ * place. They never backtrack: the trie nodes that still match are carried
+ * along together, so a lookup visits each node at most once and, after the
+ * first on a thread, allocates nothing. When several filters match, the
+ * most specific wins: at each level a literal segment beats {@code +}, which
+ * beats {@code #}. Topics starting with '$' never match a wildcard at the
+ * first level, as the MQTT specification requires.
+ *
+ * <p>A compiled router is immutable and safe to share between threads.
+ */
+public class TopicRouter {
+    public static class Route {
+        public final String filter;
+        public final RouteProfile profile;
+
+        public Route(String filter, RouteProfile profile) {
+            this.filter = filter;
+            this.profile = profile;
+        }
+    }
+
+    private static final class Node {
+        // Literal children in an open-addressing table keyed by segment
+        String[] keys = new String[4];
+        Node[] children = new Node[4];
+        int childCount;
+        Node plusChild;
+        RouteProfile profile;
+        RouteProfile hashProfile;
+
+        Node child(String segment, boolean create) {
+            int mask = keys.length - 1;
+            int index = spread(segment.hashCode()) & mask;
+            while (keys[index] != null) {
+                if (keys[index].equals(segment)) {
+                    return children[index];
+                }
+                index = (index + 1) & mask;
+            }
+            if (!create) {
+                return null;
+            }
+            if ((childCount + 1) * 2 > keys.length) {
+                grow();
+                return child(segment, true);
+            }
+            Node node = new Node();
+            keys[index] = segment;
+            children[index] = node;
+            childCount++;
+            return node;
+        }
+
+        /** Finds the literal child matching topic[start, end) without creating a substring. */
+        Node find(String topic, int start, int end, int hash) {
+            int mask = keys.length - 1;
+            int index = spread(hash) & mask;
+            int length = end - start;
+            while (true) {
+                String key = keys[index];
+                if (key == null) {
+                    return null;
+                }
+                if (key.length() == length && key.regionMatches(0, topic, start, length)) {
+                    return children[index];
+                }
+                index = (index + 1) & mask;
+            }
+        }
+
+        private void grow() {
+            String[] oldKeys = keys;
+            Node[] oldChildren = children;
+            keys = new String[oldKeys.length * 2];
+            children = new Node[oldKeys.length * 2];
+            childCount = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != null) {
+                    int mask = keys.length - 1;
+                    int index = spread(oldKeys[i].hashCode()) & mask;
+                    while (keys[index] != null) {
+                        index = (index + 1) & mask;
+                    }
+                    keys[index] = oldKeys[i];
+                    children[index] = oldChildren[i];
+                    childCount++;
+                }
+            }
+        }
+    }
+
+    private final Node root = new Node();
+    private final RouteProfile fallback;
+    private final int routeCount;
+    // Two candidate arrays per thread, each as wide as the widest trie level
+    private final ThreadLocal<Node[][]> scratch;
+
+    private TopicRouter(RouteProfile fallback, int routeCount) {
+        this.fallback = fallback;
+        this.routeCount = routeCount;
+        this.scratch = ThreadLocal.withInitial(() -> {
+            int width = Math.max(1, maxWidth(root));
+            return new Node[][] {new Node[width], new Node[width]};
+        });
+    }
+
+    /**
+     * Compiles routes into a router. Later routes with the same filter replace
+     * earlier ones. Invalid filters (a '#' that is not the last level, or
+     * wildcards mixed into a level) throw IllegalArgumentException.
+     */
+    public static TopicRouter compile(List<Route> routes, RouteProfile fallback) {
+        TopicRouter router = new TopicRouter(fallback, routes.size());
+        for (Route route : routes) {
+            router.add(route.filter, route.profile);
+        }
+        return router;
+    }
+
+    public int getRouteCount() {
+        return routeCount;
+    }
+
+    /** Returns the profile for a topic, or the fallback when no route matches. */
+    public RouteProfile resolve(String topic) {
+        RouteProfile profile = match(topic);
+        return profile != null ? profile : fallback;
+    }
+
+    private void add(String filter, RouteProfile profile) {
+        Node node = root;
+        String[] levels = filter.split("/", -1);
+        for (int i = 0; i < levels.length; i++) {
+            String level = levels[i];
+            if ("#".equals(level)) {
+                if (i != levels.length - 1) {
+                    throw new IllegalArgumentException("'#' 只能出现在最后一级: " + filter);
+                }
+                node.hashProfile = profile;
+                return;
+            }
+            if ("+".equals(level)) {
+                if (node.plusChild == null) {
+                    node.plusChild = new Node();
+                }
+                node = node.plusChild;
+            } else {
+                if (level.indexOf('+') >= 0 || level.indexOf('#') >= 0) {
+                    throw new IllegalArgumentException("通配符必须独占一级: " + filter);
+                }
+                node = node.child(level, true);
+            }
+        }
+        node.profile = profile;
+    }
+
+    /**
+     * Walks the topic once, carrying every trie node that still matches,
+     * ordered most specific first. A node's literal child goes before its
+     * {@code +} child and both before the next node's children, so the order
+     * is the precedence order. The first node at a level that has a {@code #}
+     * route ends that level: everything after it ranks lower. Its route is
+     * the best match found so far, and later levels can only replace it with
+     * a more specific one.
+     */
+    private RouteProfile match(String topic) {
+        Node[][] buffers = scratch.get();
+        Node[] current = buffers[0];
+        Node[] next = buffers[1];
+        current[0] = root;
+        int count = 1;
+        RouteProfile best = null;
+        int length = topic.length();
+        // Wildcards never match the first level of a '$' topic
+        boolean wildcardsAllowed = length == 0 || topic.charAt(0) != '$';
+        int start = 0;
+        while (start <= length && count > 0) {
+            int end = start;
+            int hash = 0;
+            while (end < length) {
+                char c = topic.charAt(end);
+                if (c == '/') {
+                    break;
+                }
+                // Same as String.hashCode over the segment
+                hash = 31 * hash + c;
+                end++;
+            }
+            int nextCount = 0;
+            for (int i = 0; i < count; i++) {
+                Node node = current[i];
+                Node literal = node.childCount == 0 ? null : node.find(topic, start, end, hash);
+                if (literal != null) {
+                    next[nextCount++] = literal;
+                }
+                if (wildcardsAllowed) {
+                    if (node.plusChild != null) {
+                        next[nextCount++] = node.plusChild;
+                    }
+                    if (node.hashProfile != null) {
+                        best = node.hashProfile;
+                        break;
+                    }
+                }
+            }
+            Node[] swap = current;
+            current = next;
+            next = swap;
+            count = nextCount;
+            wildcardsAllowed = true;
+            start = end + 1;
+        }
+        // The topic is consumed; "a/#" also matches "a" itself
+        for (int i = 0; i < count; i++) {
+            Node node = current[i];
+            if (node.profile != null) {
+                return node.profile;
+            }
+            if (node.hashProfile != null) {
+                return node.hashProfile;
+            }
+        }
+        return best;
+    }
+
+    /** The most nodes any one level of the trie has; bounds the candidates of a lookup. */
+    private static int maxWidth(Node root) {
+        int width = 0;
+        Node[] level = {root};
+        int count = 1;
+        while (count > 0) {
+            width = Math.max(width, count);
+            int nextCount = 0;
+            for (int i = 0; i < count; i++) {
+                nextCount += level[i].childCount + (level[i].plusChild != null ? 1 : 0);
+            }
+            Node[] nextLevel = new Node[nextCount];
+            nextCount = 0;
+            for (int i = 0; i < count; i++) {
+                Node node = level[i];
+                for (Node child : node.children) {
+                    if (child != null) {
+                        nextLevel[nextCount++] = child;
+                    }
+                }
+                if (node.plusChild != null) {
+                    nextLevel[nextCount++] = node.plusChild;
+                }
+            }
+            level = nextLevel;
+            count = nextCount;
+        }
+        return width;
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -0,0 +1,66 @@
+package com.example.mqttvoiceapp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+public class DuplicateFilterTest {
+    private static InboundMessage message(String payload, int id, int qos, boolean duplicate) {
+        return new InboundMessage("home/door", payload.getBytes(StandardCharsets.UTF_8), id, qos, duplicate,
+            0, 0, 0, null);
+    }
+
+    @Test
+    public void repeatedContentIsKeptByDefault() {
+        DuplicateFilter filter = new DuplicateFilter(0, 60000, 64);
+        assertFalse(filter.isDuplicate(message("门铃", 1, 1, false), 0));
+        assertFalse(filter.isDuplicate(message("门铃", 2, 1, false), 10));
+        assertFalse(filter.isDuplicate(message("门铃", 0, 0, false), 20));
+        assertEquals(0, filter.getSuppressedCount());
+    }
+
+    @Test
+    public void dropsDupResendOfASeenDelivery() {
+        DuplicateFilter filter = new DuplicateFilter(0, 60000, 64);
+        assertFalse(filter.isDuplicate(message("门铃", 7, 1, false), 0));
+        assertTrue(filter.isDuplicate(message("门铃", 7, 1, true), 5000));
+        assertEquals(1, filter.getSuppressedCount());
+    }
+
+    @Test
+    public void keepsDupResendThatWasNeverSeen() {
+        DuplicateFilter filter = new DuplicateFilter(0, 60000, 64);
+        assertFalse(filter.isDuplicate(message("门铃", 7, 1, true), 0));
+        // A different message reusing the packet id is not a resend
+        assertFalse(filter.isDuplicate(message("车库", 7, 1, true), 10));
+    }
+
+    @Test
+    public void sameIdWithoutDupIsANewMessage() {
+        DuplicateFilter filter = new DuplicateFilter(0, 60000, 64);
+        assertFalse(filter.isDuplicate(message("门铃", 7, 1, false), 0));
+        // Packet ids are reused once acknowledged
+        assertFalse(filter.isDuplicate(message("门铃", 7, 1, false), 10));
+    }
+
+    @Test
+    public void forgetsDeliveriesAfterTwoWindows() {
+        DuplicateFilter filter = new DuplicateFilter(0, 1000, 64);
+        assertFalse(filter.isDuplicate(message("门铃", 7, 1, false), 0));
+        assertFalse(filter.isDuplicate(message("其他", 8, 1, false), 1000));
+        assertFalse(filter.isDuplicate(message("其他", 9, 1, false), 2000));
+        assertFalse(filter.isDuplicate(message("门铃", 7, 1, true), 2001));
+    }
+
+    @Test
+    public void contentWindowIsOptIn() {
+        DuplicateFilter filter = new DuplicateFilter(30000, 0, 64);
+        assertFalse(filter.isDuplicate(message("门铃", 1, 0, false), 0));
+        assertTrue(filter.isDuplicate(message("门铃", 2, 0, false), 10));
+        assertFalse(filter.isDuplicate(message("车库", 3, 0, false), 20));
+    }
+}
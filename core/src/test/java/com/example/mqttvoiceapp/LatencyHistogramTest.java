@@ -0,0 +1,68 @@
+package com.example.mqttvoiceapp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+    private static void assertWithinBucket(long expectedMicros, long actualMicros) {
+        // Reported values are bucket upper bounds, at most 1/32 above the true value
+        assertTrue(actualMicros + " < " + expectedMicros, actualMicros >= expectedMicros);
+        assertTrue(actualMicros + " > " + expectedMicros, actualMicros <= expectedMicros + expectedMicros / 32);
+    }
+
+    @Test
+    public void emptyHistogramReportsZero() {
+        LatencyHistogram histogram = new LatencyHistogram("空");
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.percentileMicros(50));
+        assertEquals(0, histogram.maxMicros());
+    }
+
+    @Test
+    public void smallValuesAreExact() {
+        LatencyHistogram histogram = new LatencyHistogram("小");
+        for (int micros = 0; micros < 32; micros++) {
+            histogram.recordNanos(micros * 1000L);
+        }
+        assertEquals(32, histogram.getCount());
+        assertEquals(15, histogram.percentileMicros(50));
+        assertEquals(31, histogram.maxMicros());
+    }
+
+    @Test
+    public void percentilesStayWithinTheBucketError() {
+        LatencyHistogram histogram = new LatencyHistogram("到达→开始播报");
+        for (int millis = 1; millis <= 1000; millis++) {
+            histogram.recordNanos(millis * 1000000L);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertWithinBucket(500000, histogram.percentileMicros(50));
+        assertWithinBucket(900000, histogram.percentileMicros(90));
+        assertWithinBucket(990000, histogram.percentileMicros(99));
+        assertWithinBucket(1000000, histogram.maxMicros());
+        assertWithinBucket(1000, histogram.percentileMicros(0));
+    }
+
+    @Test
+    public void ignoresNegativeAndClampsHugeValues() {
+        LatencyHistogram histogram = new LatencyHistogram("异常");
+        // A clock step backwards must not land in a bucket
+        histogram.recordNanos(-5);
+        assertEquals(0, histogram.getCount());
+        histogram.recordNanos(Long.MAX_VALUE);
+        assertEquals(1, histogram.getCount());
+        assertTrue(histogram.maxMicros() >= 1L << 36);
+    }
+
+    @Test
+    public void resetClearsEveryBucket() {
+        LatencyHistogram histogram = new LatencyHistogram("重置");
+        histogram.recordNanos(3000);
+        histogram.recordNanos(5000000);
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.maxMicros());
+    }
+}
@@ -0,0 +1,104 @@
+package com.example.mqttvoiceapp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+public class LatencyTrackerTest {
+    private static final long MS = 1000000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // Checks a stage's count and that its median is the expected value within the histogram's bucket error
+    private static void assertStage(String summary, String stage, int count, double medianMillis) {
+        for (String line : summary.split("\n")) {
+            if (line.startsWith(stage + ": ")) {
+                assertTrue(line, line.contains(" n=" + count + " "));
+                if (count > 0) {
+                    int start = line.indexOf("p50=") + 4;
+                    double median = Double.parseDouble(line.substring(start, line.indexOf(' ', start)));
+                    assertEquals(line, medianMillis, median, medianMillis / 32 + 0.1);
+                }
+                return;
+            }
+        }
+        throw new AssertionError("no stage " + stage + " in " + summary);
+    }
+
+    @Test
+    public void parsesTheTraceIdOutOfUtteranceIds() {
+        assertEquals(42, LatencyTracker.parseTraceId(LatencyTracker.utteranceId(42, 0)));
+        assertEquals(42, LatencyTracker.parseTraceId(LatencyTracker.utteranceId(42, 3) + "#1"));
+        assertEquals(-1, LatencyTracker.parseTraceId("synth_7"));
+        assertEquals(-1, LatencyTracker.parseTraceId(LatencyTracker.UTTERANCE_PREFIX));
+        assertEquals(-1, LatencyTracker.parseTraceId(null));
+    }
+
+    @Test
+    public void tracesEveryStageOfAMessage() {
+        LatencyTracker tracker = new LatencyTracker();
+        long traceId = tracker.onArrival(0);
+        String utteranceId = LatencyTracker.utteranceId(traceId, 0);
+        tracker.onDecoded(traceId, 2 * MS);
+        tracker.onEnqueued(traceId, 3 * MS);
+        tracker.onSpeechStart(utteranceId, 103 * MS);
+        tracker.onSpeechDone(utteranceId, 1103 * MS);
+
+        String summary = tracker.summary();
+        assertStage(summary, "到达→解码", 1, 2);
+        assertStage(summary, "解码→入队", 1, 1);
+        assertStage(summary, "入队→开始播报", 1, 100);
+        assertStage(summary, "到达→开始播报", 1, 103);
+        assertStage(summary, "开始→结束播报", 1, 1000);
+    }
+
+    @Test
+    public void onlyTheFirstStartOfATraceCounts() {
+        LatencyTracker tracker = new LatencyTracker();
+        long traceId = tracker.onArrival(0);
+        // A message split into several utterances starts more than once
+        tracker.onSpeechStart(LatencyTracker.utteranceId(traceId, 0), 10 * MS);
+        tracker.onSpeechStart(LatencyTracker.utteranceId(traceId, 1), 500 * MS);
+        assertStage(tracker.summary(), "到达→开始播报", 1, 10);
+    }
+
+    @Test
+    public void ignoresTracesWhoseSlotWasReused() {
+        LatencyTracker tracker = new LatencyTracker();
+        long stale = tracker.onArrival(0);
+        for (int i = 0; i < 1024; i++) {
+            tracker.onArrival(MS);
+        }
+        tracker.onDecoded(stale, 2 * MS);
+        tracker.onSpeechStart(LatencyTracker.utteranceId(stale, 0), 3 * MS);
+        tracker.onSpeechStart("tts_other", 3 * MS);
+        String summary = tracker.summary();
+        assertStage(summary, "到达→解码", 0, 0);
+        assertStage(summary, "到达→开始播报", 0, 0);
+    }
+
+    @Test
+    public void exportsOneCsvRowPerStage() throws Exception {
+        LatencyTracker tracker = new LatencyTracker();
+        long traceId = tracker.onArrival(0);
+        tracker.onDecoded(traceId, MS);
+        File file = folder.newFile("latency.csv");
+        tracker.exportCsv(file);
+        List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+        assertEquals(6, lines.size());
+        assertEquals("stage,count,p50_ms,p90_ms,p99_ms,p999_ms,max_ms", lines.get(0));
+        assertTrue(lines.get(1), lines.get(1).startsWith("到达→解码,1,1.0"));
+
+        tracker.reset();
+        assertStage(tracker.summary(), "到达→解码", 0, 0);
+    }
+}
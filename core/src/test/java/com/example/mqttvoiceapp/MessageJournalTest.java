@@ -0,0 +1,123 @@
+package com.example.mqttvoiceapp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+public class MessageJournalTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor();
+
+    @After
+    public void shutDown() {
+        writer.shutdownNow();
+    }
+
+    private MessageJournal journal() {
+        return new MessageJournal(folder.getRoot(), writer, MessageJournal.DEFAULT_SEGMENT_BYTES,
+            Long.MAX_VALUE, Long.MAX_VALUE);
+    }
+
+    private static String repeat(String text, int count) {
+        StringBuilder builder = new StringBuilder(text.length() * count);
+        for (int i = 0; i < count; i++) {
+            builder.append(text);
+        }
+        return builder.toString();
+    }
+
+    @Test
+    public void readsNewestFirstAndFiltersByTopic() throws Exception {
+        MessageJournal journal = journal();
+        journal.append(1, "home/door", "开门");
+        journal.append(2, "home/bell", "门铃");
+        journal.append(3, "home/door", "关门");
+        journal.flush();
+
+        List<MessageJournal.Entry> all = journal.readPage(Long.MAX_VALUE, Long.MAX_VALUE, null, 10);
+        assertEquals(3, all.size());
+        assertEquals("关门", all.get(0).text);
+        assertEquals(2, all.get(0).sequence);
+
+        List<MessageJournal.Entry> door = journal.readPage(Long.MAX_VALUE, Long.MAX_VALUE, "home/door", 10);
+        assertEquals(2, door.size());
+        assertEquals("关门", door.get(0).text);
+        assertEquals("开门", door.get(1).text);
+    }
+
+    @Test
+    public void clampsLongTopicsOnACharacterBoundary() {
+        // 3 bytes per character, so 65535 bytes end exactly after 21845 characters
+        String threeByte = repeat("主", 30000);
+        assertEquals(repeat("主", 21845), MessageJournal.clampTopic(threeByte));
+        // 2 bytes per character: the one that would straddle the limit is left out
+        String clamped = MessageJournal.clampTopic(repeat("é", 40000));
+        assertEquals(32767, clamped.length());
+        assertEquals(65534, clamped.getBytes(StandardCharsets.UTF_8).length);
+        // Surrogate pairs are never split
+        String emoji = MessageJournal.clampTopic(repeat("🔔", 20000));
+        assertEquals(16383 * 2, emoji.length());
+        assertEquals("home/door", MessageJournal.clampTopic("home/door"));
+    }
+
+    @Test
+    public void filteredReadFindsAClampedTopicAfterReopening() throws Exception {
+        String topic = repeat("主", 30000);
+        String stored = MessageJournal.clampTopic(topic);
+        MessageJournal journal = journal();
+        journal.append(1, topic, "长主题");
+        journal.append(2, "home/door", "开门");
+        journal.flush();
+
+        List<MessageJournal.Entry> page = journal.readPage(Long.MAX_VALUE, Long.MAX_VALUE, stored, 10);
+        assertEquals(1, page.size());
+        assertEquals(stored, page.get(0).topic);
+        assertEquals("长主题", page.get(0).text);
+
+        // The index written on disk must agree with the topics re-read from the log
+        assertTrue(new File(folder.getRoot(), String.format(Locale.ROOT, "%019d.idx", 0)).delete());
+        MessageJournal reopened = journal();
+        page = reopened.readPage(Long.MAX_VALUE, Long.MAX_VALUE, stored, 10);
+        assertEquals(1, page.size());
+        assertEquals("长主题", page.get(0).text);
+        assertEquals(2, reopened.getEntryCount());
+    }
+
+    @Test
+    public void dropsTheOldestWhenTheWriterFallsBehind() throws Exception {
+        MessageJournal journal = journal();
+        // Keep the writer busy so every flush it was asked for waits
+        CountDownLatch release = new CountDownLatch(1);
+        writer.execute(() -> {
+            try {
+                release.await();
+            } catch (InterruptedException ignored) {
+                // Shutting down
+            }
+        });
+        for (int i = 0; i < 4100; i++) {
+            journal.append(i, "t", Integer.toString(i));
+        }
+        assertEquals(4, journal.getDroppedCount());
+        journal.flush();
+        release.countDown();
+        List<MessageJournal.Entry> page = journal.readPage(Long.MAX_VALUE, Long.MAX_VALUE, null, 5000);
+        assertEquals(4096, page.size());
+        assertEquals("4099", page.get(0).text);
+        assertEquals("4", page.get(page.size() - 1).text);
+    }
+}
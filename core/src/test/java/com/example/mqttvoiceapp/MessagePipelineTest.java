@@ -0,0 +1,110 @@
+package com.example.mqttvoiceapp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class MessagePipelineTest {
+    private static InboundMessage message(int id, MessageSource source) {
+        return new InboundMessage("t", new byte[0], id, 1, false, System.nanoTime(), id, 0, source);
+    }
+
+    @Test
+    public void handlesInArrivalOrderAndReportsEveryMessageDone() throws Exception {
+        List<Integer> handled = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch finished = new CountDownLatch(100);
+        MessageSource source = message -> finished.countDown();
+        MessagePipeline pipeline = new MessagePipeline(16, OverflowPolicy.BLOCK, message -> handled.add(message.messageId));
+        pipeline.start();
+        for (int i = 0; i < 100; i++) {
+            assertTrue(pipeline.submit(message(i, source)));
+        }
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+        pipeline.stop();
+
+        assertEquals(100, handled.size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i, (int) handled.get(i));
+        }
+        assertEquals(100, pipeline.getProcessedCount());
+        assertEquals(0, pipeline.getDroppedCount());
+    }
+
+    @Test
+    public void dropNewestRejectsWhenFull() {
+        AtomicInteger done = new AtomicInteger();
+        MessagePipeline pipeline = new MessagePipeline(4, OverflowPolicy.DROP_NEWEST, message -> { });
+        for (int i = 0; i < 4; i++) {
+            assertTrue(pipeline.submit(message(i, m -> done.incrementAndGet())));
+        }
+        assertFalse(pipeline.submit(message(4, m -> done.incrementAndGet())));
+        assertEquals(1, pipeline.getDroppedCount());
+        assertEquals(1, done.get());
+        assertEquals(4, pipeline.getQueueDepth());
+    }
+
+    @Test
+    public void dropOldestKeepsTheNewest() throws Exception {
+        List<Integer> handled = Collections.synchronizedList(new ArrayList<>());
+        MessagePipeline pipeline = new MessagePipeline(4, OverflowPolicy.DROP_OLDEST, message -> handled.add(message.messageId));
+        for (int i = 0; i < 10; i++) {
+            assertTrue(pipeline.submit(message(i, null)));
+        }
+        assertEquals(6, pipeline.getDroppedCount());
+        CountDownLatch drained = new CountDownLatch(1);
+        pipeline.start();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (pipeline.getProcessedCount() < 4 && System.nanoTime() < deadline) {
+            drained.await(10, TimeUnit.MILLISECONDS);
+        }
+        pipeline.stop();
+        assertEquals(List.of(6, 7, 8, 9), handled);
+    }
+
+    @Test
+    public void reportsHandlerFailuresAndKeepsGoing() throws Exception {
+        List<Integer> failed = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch finished = new CountDownLatch(3);
+        MessagePipeline pipeline = new MessagePipeline(4, OverflowPolicy.BLOCK, message -> {
+            if (message.messageId == 1) {
+                throw new IllegalStateException("bad message");
+            }
+        }, (message, error) -> failed.add(message.messageId));
+        pipeline.start();
+        for (int i = 0; i < 3; i++) {
+            pipeline.submit(message(i, m -> finished.countDown()));
+        }
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+        pipeline.stop();
+
+        assertEquals(List.of(1), failed);
+        assertEquals(1, pipeline.getFailedCount());
+        assertEquals(3, pipeline.getProcessedCount());
+    }
+
+    @Test
+    public void stopReportsQueuedMessagesDone() {
+        AtomicInteger done = new AtomicInteger();
+        MessagePipeline pipeline = new MessagePipeline(8, OverflowPolicy.DROP_OLDEST, message -> { });
+        for (int i = 0; i < 5; i++) {
+            assertTrue(pipeline.submit(message(i, m -> done.incrementAndGet())));
+        }
+        pipeline.stop();
+        assertEquals(5, done.get());
+        assertEquals(5, pipeline.getDroppedCount());
+        assertEquals(0, pipeline.getQueueDepth());
+
+        // Nothing drains a stopped pipeline, so later messages are dropped at once
+        assertFalse(pipeline.submit(message(5, m -> done.incrementAndGet())));
+        assertEquals(6, done.get());
+    }
+}
@@ -0,0 +1,92 @@
+package com.example.mqttvoiceapp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+public class PayloadClassifierTest {
+    private final PayloadClassifier classifier = new PayloadClassifier();
+
+    private PayloadRecord classify(String payload) {
+        return classifier.classify(payload.getBytes(StandardCharsets.UTF_8), new PayloadRecord());
+    }
+
+    private void assertKind(PayloadRecord.Kind kind, String payload) {
+        assertEquals(payload, kind, classify(payload).kind);
+    }
+
+    @Test
+    public void plainText() {
+        assertKind(PayloadRecord.Kind.PLAIN_TEXT, "前台有快递");
+        assertKind(PayloadRecord.Kind.PLAIN_TEXT, "");
+        assertKind(PayloadRecord.Kind.PLAIN_TEXT, "[1,2,3]");
+    }
+
+    @Test
+    public void ttsDynamic() {
+        PayloadRecord record = classify(" {\"type\" : \"tts_dynamic\", \"txt\":\"你好\", \"priority\":2, \"key\":\"door\"} ");
+        assertEquals(PayloadRecord.Kind.TTS_DYNAMIC, record.kind);
+        assertEquals("你好", record.text());
+        assertEquals("2", record.field(PayloadClassifier.FIELD_PRIORITY));
+        assertEquals("door", record.field(PayloadClassifier.FIELD_KEY));
+    }
+
+    @Test
+    public void blankTextIsEmptyCommand() {
+        assertKind(PayloadRecord.Kind.TTS_EMPTY, "{\"type\":\"tts_dynamic\",\"txt\":\" \\t \"}");
+    }
+
+    @Test
+    public void unescapesStrings() {
+        PayloadRecord record = classify("{\"type\":\"tts_dynamic\",\"txt\":\"a\\\"b\\n\\u4f60\\ud83d\\ude00\"}");
+        assertEquals("a\"b\n你😀", record.text());
+    }
+
+    @Test
+    public void otherJsonSkipsUnknownValues() {
+        PayloadRecord record = classify("{\"sensor\":{\"t\":[1,-2.5e3,true,false,null,\"x\"]},\"ok\":true,\"txt\":\"hi\"}");
+        assertEquals(PayloadRecord.Kind.OTHER_JSON, record.kind);
+        assertEquals("hi", record.text());
+        assertKind(PayloadRecord.Kind.OTHER_JSON, "{}");
+        assertKind(PayloadRecord.Kind.OTHER_JSON, "{\"type\":\"other\",\"txt\":\"hi\"}");
+    }
+
+    @Test
+    public void literalFieldsReadAsText() {
+        PayloadRecord record = classify("{\"txt\":null,\"priority\":true,\"key\":-0.5E+2}");
+        assertNull(record.text());
+        assertEquals("true", record.field(PayloadClassifier.FIELD_PRIORITY));
+        assertEquals("-0.5E+2", record.field(PayloadClassifier.FIELD_KEY));
+    }
+
+    @Test
+    public void barewordsAreNotJson() {
+        assertKind(PayloadRecord.Kind.PLAIN_TEXT, "{\"a\":foo}");
+        assertKind(PayloadRecord.Kind.PLAIN_TEXT, "{\"a\":[foo]}");
+        assertKind(PayloadRecord.Kind.PLAIN_TEXT, "{\"a\":truex}");
+        assertKind(PayloadRecord.Kind.PLAIN_TEXT, "{\"a\":nul}");
+        assertKind(PayloadRecord.Kind.PLAIN_TEXT, "{\"type\":tts_dynamic,\"txt\":\"hi\"}");
+    }
+
+    @Test
+    public void malformedNumbersAreNotJson() {
+        assertKind(PayloadRecord.Kind.PLAIN_TEXT, "{\"a\":01}");
+        assertKind(PayloadRecord.Kind.PLAIN_TEXT, "{\"a\":1.}");
+        assertKind(PayloadRecord.Kind.PLAIN_TEXT, "{\"a\":.5}");
+        assertKind(PayloadRecord.Kind.PLAIN_TEXT, "{\"a\":1e}");
+        assertKind(PayloadRecord.Kind.PLAIN_TEXT, "{\"a\":-}");
+        assertKind(PayloadRecord.Kind.PLAIN_TEXT, "{\"a\":+1}");
+    }
+
+    @Test
+    public void malformedObjectsAreText() {
+        assertKind(PayloadRecord.Kind.PLAIN_TEXT, "{\"type\":\"tts_dynamic\",\"txt\":\"hi\"");
+        assertKind(PayloadRecord.Kind.PLAIN_TEXT, "{\"txt\":\"unterminated}");
+        assertKind(PayloadRecord.Kind.PLAIN_TEXT, "{\"a\" 1}");
+        assertKind(PayloadRecord.Kind.PLAIN_TEXT, "{\"a\":1,}");
+        assertKind(PayloadRecord.Kind.PLAIN_TEXT, "{'a':1}");
+    }
+}
@@ -0,0 +1,186 @@
+package com.example.mqttvoiceapp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+public class PayloadDecoderTest {
+    private static final String COMMAND = "{\"type\":\"tts_dynamic\",\"txt\":\"三号门有访客\",\"priority\":\"high\"}";
+
+    private final PayloadDecoder decoder = new PayloadDecoder(new PayloadClassifier());
+    private final List<PayloadRecord> records = new ArrayList<>();
+
+    @After
+    public void recycle() {
+        for (PayloadRecord record : records) {
+            record.recycle();
+        }
+        records.clear();
+    }
+
+    static byte[] utf8(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (GZIPOutputStream out = new GZIPOutputStream(bytes)) {
+            out.write(data);
+        }
+        return bytes.toByteArray();
+    }
+
+    static byte[] zlib(byte[] data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DeflaterOutputStream out = new DeflaterOutputStream(bytes)) {
+            out.write(data);
+        }
+        return bytes.toByteArray();
+    }
+
+    /** A CBOR text string; short strings only. */
+    static void cborText(ByteArrayOutputStream out, String text) {
+        byte[] bytes = utf8(text);
+        if (bytes.length < 24) {
+            out.write(0x60 | bytes.length);
+        } else {
+            out.write(0x78);
+            out.write(bytes.length);
+        }
+        out.write(bytes, 0, bytes.length);
+    }
+
+    static byte[] cborCommand(ByteArrayOutputStream out, String txt) {
+        out.write(0xa2);
+        cborText(out, "type");
+        cborText(out, "tts_dynamic");
+        cborText(out, "txt");
+        cborText(out, txt);
+        return out.toByteArray();
+    }
+
+    static byte[] cborBatch(String... texts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0x80 | texts.length);
+        for (String text : texts) {
+            cborCommand(out, text);
+        }
+        return out.toByteArray();
+    }
+
+    static void msgpackText(ByteArrayOutputStream out, String text) {
+        byte[] bytes = utf8(text);
+        out.write(0xa0 | bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    static byte[] msgpackCommand(String txt) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0x82);
+        msgpackText(out, "type");
+        msgpackText(out, "tts_dynamic");
+        msgpackText(out, "txt");
+        msgpackText(out, txt);
+        return out.toByteArray();
+    }
+
+    private PayloadRecord decodeOne(byte[] payload) {
+        decoder.decode(payload, records);
+        assertEquals(1, records.size());
+        return records.get(0);
+    }
+
+    @Test
+    public void plainTextPassesThrough() {
+        PayloadRecord record = decodeOne(utf8("前台有快递"));
+        assertEquals(PayloadRecord.Kind.PLAIN_TEXT, record.kind);
+        assertEquals("前台有快递", record.payloadText());
+    }
+
+    @Test
+    public void inflatesGzipAndZlib() throws IOException {
+        PayloadRecord record = decodeOne(gzip(utf8(COMMAND)));
+        assertEquals(PayloadRecord.Kind.TTS_DYNAMIC, record.kind);
+        assertEquals("三号门有访客", record.text());
+        assertEquals("high", record.field(PayloadClassifier.FIELD_PRIORITY));
+        recycle();
+
+        record = decodeOne(zlib(utf8(COMMAND)));
+        assertEquals(PayloadRecord.Kind.TTS_DYNAMIC, record.kind);
+        assertEquals(2, decoder.getCompressedCount());
+    }
+
+    @Test
+    public void corruptGzipFallsBackToText() throws IOException {
+        byte[] payload = gzip(utf8(COMMAND));
+        payload[payload.length - 5] ^= 0x55;
+        assertEquals(PayloadRecord.Kind.PLAIN_TEXT, decodeOne(payload).kind);
+    }
+
+    @Test
+    public void cborArrayIsABatchInOrder() {
+        decoder.decode(cborBatch("一", "二", "三"), records);
+        assertEquals(3, records.size());
+        assertEquals("一", records.get(0).text());
+        assertEquals("二", records.get(1).text());
+        assertEquals("三", records.get(2).text());
+        assertEquals(1, decoder.getBinaryCount());
+    }
+
+    @Test
+    public void messagePackMapIsOneCommand() {
+        PayloadRecord record = decodeOne(msgpackCommand("你好"));
+        assertEquals(PayloadRecord.Kind.TTS_DYNAMIC, record.kind);
+        assertEquals("你好", record.text());
+    }
+
+    @Test
+    public void truncatedBinaryFallsBackToText() {
+        byte[] cbor = cborBatch("一", "二");
+        byte[] truncated = java.util.Arrays.copyOf(cbor, cbor.length - 2);
+        assertEquals(PayloadRecord.Kind.PLAIN_TEXT, decodeOne(truncated).kind);
+    }
+
+    @Test
+    public void steadyStateDecodingAllocatesLittle() throws IOException {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocation = (com.sun.management.ThreadMXBean) threads;
+        assumeTrue(allocation.isThreadAllocatedMemorySupported());
+        allocation.setThreadAllocatedMemoryEnabled(true);
+
+        byte[][] payloads = {
+            utf8("前台有快递"), utf8(COMMAND), gzip(utf8(COMMAND)), cborBatch("一", "二"), msgpackCommand("你好")
+        };
+        int rounds = 20_000;
+        // Warm up so the JIT and the record pool settle, and buffers reach their final size
+        decodeRounds(payloads, rounds);
+        long threadId = Thread.currentThread().getId();
+        long before = allocation.getThreadAllocatedBytes(threadId);
+        decodeRounds(payloads, rounds);
+        long perDecode = (allocation.getThreadAllocatedBytes(threadId) - before) / (rounds * payloads.length);
+        // Only the extracted strings and the copy of inflated text should be left
+        assertTrue("allocated " + perDecode + " bytes per decode", perDecode < 512);
+    }
+
+    private void decodeRounds(byte[][] payloads, int rounds) {
+        for (int i = 0; i < rounds; i++) {
+            for (byte[] payload : payloads) {
+                decoder.decode(payload, records);
+                recycle();
+            }
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.example.mqttvoiceapp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class SpeechSchedulerTest {
+    private final List<String> spoken = new ArrayList<>();
+    private final SpeechScheduler scheduler =
+        new SpeechScheduler((text, flush, utteranceId, voice) -> spoken.add(text), null, 60_000, 8);
+    private long sequence;
+
+    private SpeechRequest request(String key, String text, int priority) {
+        long id = ++sequence;
+        return new SpeechRequest(key, text, priority, System.nanoTime(), 0,
+            LatencyTracker.utteranceId(id, 0), RouteProfile.DEFAULT);
+    }
+
+    private void finishCurrent() {
+        scheduler.onUtteranceFinished(LatencyTracker.utteranceId(spoken.size(), 0));
+    }
+
+    @Test
+    public void speaksHigherPriorityFirst() {
+        SpeechRequest first = request(null, "a", SpeechScheduler.PRIORITY_NORMAL);
+        scheduler.submit(first);
+        scheduler.submit(request(null, "low", SpeechScheduler.PRIORITY_LOW));
+        scheduler.submit(request(null, "high", SpeechScheduler.PRIORITY_HIGH));
+        scheduler.onUtteranceFinished(first.utteranceId);
+        assertEquals(List.of("a", "high"), spoken);
+    }
+
+    @Test
+    public void coalescesWaitingRequestsWithTheSameKey() {
+        SpeechRequest first = request(null, "busy", SpeechScheduler.PRIORITY_NORMAL);
+        scheduler.submit(first);
+        scheduler.submit(request("k", "old", SpeechScheduler.PRIORITY_NORMAL));
+        SpeechRequest newest = request("k", "new", SpeechScheduler.PRIORITY_NORMAL);
+        scheduler.submit(newest);
+        assertEquals(1, scheduler.getQueuedCount());
+        scheduler.onUtteranceFinished(first.utteranceId);
+        scheduler.onUtteranceFinished(newest.utteranceId);
+        assertEquals(List.of("busy", "new"), spoken);
+    }
+
+    @Test
+    public void urgentInterruptsImmediately() {
+        scheduler.submit(request(null, "busy", SpeechScheduler.PRIORITY_NORMAL));
+        scheduler.submit(request(null, "alarm", SpeechScheduler.PRIORITY_URGENT));
+        assertEquals(List.of("busy", "alarm"), spoken);
+    }
+
+    @Test
+    public void trimsLowestPriorityWhenOverCapacity() {
+        scheduler.submit(request(null, "busy", SpeechScheduler.PRIORITY_NORMAL));
+        for (int i = 0; i < 8; i++) {
+            scheduler.submit(request(null, "low" + i, SpeechScheduler.PRIORITY_LOW));
+        }
+        scheduler.submit(request(null, "normal", SpeechScheduler.PRIORITY_NORMAL));
+        assertEquals(8, scheduler.getQueuedCount());
+        finishCurrent();
+        assertEquals("normal", spoken.get(1));
+    }
+
+    @Test
+    public void speaksEveryUrgentItemOfABatch() {
+        scheduler.submit(request(null, "busy", SpeechScheduler.PRIORITY_NORMAL));
+        List<SpeechRequest> batch = new ArrayList<>();
+        for (int part = 0; part < 3; part++) {
+            SpeechRequest item = new SpeechRequest(SpeechScheduler.batchKey("alarm", part, 3), "alarm" + part,
+                SpeechScheduler.batchPriority(SpeechScheduler.PRIORITY_URGENT, part), System.nanoTime(), 0,
+                LatencyTracker.utteranceId(100, part), RouteProfile.DEFAULT);
+            batch.add(item);
+            scheduler.submit(item);
+        }
+        // The first item cuts off what was playing; the rest wait their turn
+        assertEquals(List.of("busy", "alarm0"), spoken);
+        scheduler.onUtteranceFinished(batch.get(0).utteranceId);
+        scheduler.onUtteranceFinished(batch.get(1).utteranceId);
+        assertEquals(List.of("busy", "alarm0", "alarm1", "alarm2"), spoken);
+    }
+
+    @Test
+    public void aLaterBatchReplacesTheSamePositions() {
+        SpeechRequest busy = request(null, "busy", SpeechScheduler.PRIORITY_NORMAL);
+        scheduler.submit(busy);
+        for (String text : new String[] {"old", "new"}) {
+            for (int part = 0; part < 2; part++) {
+                scheduler.submit(request(SpeechScheduler.batchKey("k", part, 2), text + part,
+                    SpeechScheduler.PRIORITY_NORMAL));
+            }
+        }
+        assertEquals(2, scheduler.getQueuedCount());
+        assertEquals("k", SpeechScheduler.batchKey("k", 0, 1));
+    }
+
+    @Test
+    public void givesUpOnAnUtteranceTheEngineNeverFinishes() {
+        SpeechRequest lost = request(null, "lost", SpeechScheduler.PRIORITY_NORMAL);
+        scheduler.submit(lost);
+        scheduler.submit(request(null, "next", SpeechScheduler.PRIORITY_NORMAL));
+        long now = System.nanoTime();
+        assertFalse(scheduler.checkStalled(now + TimeUnit.SECONDS.toNanos(1)));
+        assertTrue(scheduler.checkStalled(now + TimeUnit.SECONDS.toNanos(30)));
+        assertEquals(List.of("lost", "next"), spoken);
+        assertEquals(1, scheduler.getStalledCount());
+
+        // A late callback for the abandoned utterance must not end the one after it
+        scheduler.onUtteranceFinished(lost.utteranceId);
+        scheduler.submit(request(null, "queued", SpeechScheduler.PRIORITY_NORMAL));
+        assertEquals(List.of("lost", "next"), spoken);
+    }
+
+    @Test
+    public void movesOnWhenTheSpeakerFailsAtOnce() {
+        List<String> attempted = new ArrayList<>();
+        SpeechScheduler[] holder = new SpeechScheduler[1];
+        holder[0] = new SpeechScheduler((text, flush, utteranceId, voice) -> {
+            attempted.add(text);
+            if (text.startsWith("bad")) {
+                // What SpeechOutput does when the engine rejects the request
+                holder[0].onUtteranceFinished(utteranceId);
+            }
+        }, null, 60_000, 8);
+        SpeechRequest busy = request(null, "busy", SpeechScheduler.PRIORITY_NORMAL);
+        holder[0].submit(busy);
+        holder[0].submit(request(null, "bad1", SpeechScheduler.PRIORITY_NORMAL));
+        holder[0].submit(request(null, "bad2", SpeechScheduler.PRIORITY_NORMAL));
+        holder[0].submit(request(null, "good", SpeechScheduler.PRIORITY_NORMAL));
+        holder[0].onUtteranceFinished(busy.utteranceId);
+        assertEquals(List.of("busy", "bad1", "bad2", "good"), attempted);
+        assertEquals(0, holder[0].getQueuedCount());
+    }
+}
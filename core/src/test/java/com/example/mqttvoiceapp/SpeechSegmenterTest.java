@@ -0,0 +1,94 @@
+package com.example.mqttvoiceapp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.List;
+
+public class SpeechSegmenterTest {
+    // The limits SpeechOutput uses
+    private final SpeechSegmenter segmenter = new SpeechSegmenter(40, 200);
+
+    private static String repeat(String text, int count) {
+        StringBuilder builder = new StringBuilder(text.length() * count);
+        for (int i = 0; i < count; i++) {
+            builder.append(text);
+        }
+        return builder.toString();
+    }
+
+    private static String join(List<String> segments) {
+        StringBuilder builder = new StringBuilder();
+        for (String segment : segments) {
+            builder.append(segment);
+        }
+        return builder.toString();
+    }
+
+    @Test
+    public void firstSegmentEndsAtTheFirstLongEnoughBoundary() {
+        List<String> segments = segmenter.split("门铃响了，有人在门口等候。请尽快开门查看情况。");
+        // "门铃响了，" alone is too short to be worth its own request
+        assertEquals(2, segments.size());
+        assertEquals("门铃响了，有人在门口等候。", segments.get(0));
+        assertEquals("请尽快开门查看情况。", segments.get(1));
+    }
+
+    @Test
+    public void firstSegmentIsCappedWithoutABoundary() {
+        String text = repeat("门", 100);
+        List<String> segments = segmenter.split(text);
+        assertEquals(2, segments.size());
+        assertEquals(40, segments.get(0).length());
+        assertEquals(60, segments.get(1).length());
+    }
+
+    @Test
+    public void decimalPointsDoNotEndASentence() {
+        List<String> segments = segmenter.split("Temperature is 23.5 degrees. Humidity is 40.2 percent.");
+        assertEquals(2, segments.size());
+        assertEquals("Temperature is 23.5 degrees.", segments.get(0));
+        assertEquals("Humidity is 40.2 percent.", segments.get(1));
+    }
+
+    @Test
+    public void hardCutsNeverSplitASurrogatePair() {
+        // The leading letter puts a high surrogate right before the first cap
+        String text = "a" + repeat("🔔", 150);
+        List<String> segments = segmenter.split(text);
+        assertEquals(39, segments.get(0).length());
+        for (String segment : segments) {
+            assertFalse(Character.isLowSurrogate(segment.charAt(0)));
+            assertFalse(Character.isHighSurrogate(segment.charAt(segment.length() - 1)));
+        }
+        assertEquals(text, join(segments));
+    }
+
+    @Test
+    public void laterSegmentsAreForcedApartWithoutABoundary() {
+        String tail = repeat("门", 450);
+        List<String> segments = segmenter.split("门铃响了，请开门。" + tail);
+        assertEquals("门铃响了，请开门。", segments.get(0));
+        assertEquals(4, segments.size());
+        assertEquals(200, segments.get(1).length());
+        assertEquals(200, segments.get(2).length());
+        assertEquals(50, segments.get(3).length());
+        assertEquals(tail, join(segments.subList(1, segments.size())));
+    }
+
+    @Test
+    public void laterSegmentsPackWholeSentences() {
+        String sentence = repeat("门", 59) + "。";
+        List<String> segments = segmenter.split("门铃响了，请开门。" + repeat(sentence, 5));
+        assertEquals(3, segments.size());
+        // Three 60-character sentences fit in 200, a fourth would not
+        assertEquals(repeat(sentence, 3), segments.get(1));
+        assertEquals(repeat(sentence, 2), segments.get(2));
+        for (String segment : segments) {
+            assertTrue(segment.length() <= 200);
+        }
+    }
+}
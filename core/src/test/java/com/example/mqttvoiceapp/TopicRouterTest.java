@@ -0,0 +1,172 @@
+package com.example.mqttvoiceapp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+public class TopicRouterTest {
+    private static RouteProfile profile(int id) {
+        return new RouteProfile(Locale.ROOT, 1.0f, 1.0f, id, true, true);
+    }
+
+    private static final RouteProfile FALLBACK = profile(-99);
+
+    private static TopicRouter router(String... filters) {
+        List<TopicRouter.Route> routes = new ArrayList<>();
+        for (int i = 0; i < filters.length; i++) {
+            routes.add(new TopicRouter.Route(filters[i], profile(i)));
+        }
+        return TopicRouter.compile(routes, FALLBACK);
+    }
+
+    private static int resolve(TopicRouter router, String topic) {
+        return router.resolve(topic).priority;
+    }
+
+    @Test
+    public void literalBeatsPlusBeatsHash() {
+        TopicRouter router = router("a/#", "a/+/c", "a/b/c", "+/b/#");
+        assertEquals(2, resolve(router, "a/b/c"));
+        assertEquals(1, resolve(router, "a/x/c"));
+        // Only a/# and +/b/# match; the literal first level wins
+        assertEquals(0, resolve(router, "a/b/d"));
+        assertEquals(3, resolve(router, "z/b/d"));
+        assertSame(FALLBACK, router.resolve("z/y"));
+    }
+
+    @Test
+    public void hashMatchesParentLevel() {
+        TopicRouter router = router("a/#");
+        assertEquals(0, resolve(router, "a"));
+        assertEquals(0, resolve(router, "a/b/c/d"));
+        assertSame(FALLBACK, router.resolve("b"));
+    }
+
+    @Test
+    public void exactRouteBeatsHashOnSameNode() {
+        TopicRouter router = router("a/#", "a");
+        assertEquals(1, resolve(router, "a"));
+    }
+
+    @Test
+    public void deeperSpecificRouteBeatsEarlierHash() {
+        TopicRouter router = router("#", "+/+/+/x", "a/#");
+        assertEquals(1, resolve(router, "b/c/d/x"));
+        assertEquals(2, resolve(router, "a/c/d/x"));
+        assertEquals(0, resolve(router, "b/c/d/y"));
+    }
+
+    @Test
+    public void emptyLevels() {
+        TopicRouter router = router("a//b", "/+", "+");
+        assertEquals(0, resolve(router, "a//b"));
+        assertEquals(1, resolve(router, "/x"));
+        assertEquals(2, resolve(router, ""));
+    }
+
+    @Test
+    public void dollarTopicsSkipFirstLevelWildcards() {
+        TopicRouter router = router("#", "+/info", "$SYS/#");
+        assertEquals(2, resolve(router, "$SYS/info"));
+        assertSame(FALLBACK, router("#", "+/info").resolve("$SYS/info"));
+    }
+
+    @Test
+    public void laterDuplicateReplacesEarlier() {
+        assertEquals(1, resolve(router("a/+", "a/+"), "a/b"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void hashMustBeLast() {
+        router("a/#/b");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void wildcardMustFillLevel() {
+        router("a/b+");
+    }
+
+    @Test
+    public void matchesBruteForceOnRandomRoutes() {
+        Random random = new Random(42);
+        String[] segments = {"a", "b", "c", "d", "+", "#"};
+        for (int round = 0; round < 50; round++) {
+            Map<String, Integer> filters = new LinkedHashMap<>();
+            List<TopicRouter.Route> routes = new ArrayList<>();
+            int routeCount = 1 + random.nextInt(200);
+            for (int i = 0; i < routeCount; i++) {
+                int depth = 1 + random.nextInt(5);
+                StringBuilder filter = new StringBuilder();
+                for (int level = 0; level < depth; level++) {
+                    String segment = segments[random.nextInt(segments.length)];
+                    if ("#".equals(segment) && level != depth - 1) {
+                        segment = "+";
+                    }
+                    filter.append(level == 0 ? "" : "/").append(segment);
+                }
+                filters.put(filter.toString(), i);
+                routes.add(new TopicRouter.Route(filter.toString(), profile(i)));
+            }
+            TopicRouter router = TopicRouter.compile(routes, FALLBACK);
+            for (int i = 0; i < 200; i++) {
+                int depth = 1 + random.nextInt(6);
+                StringBuilder topic = new StringBuilder();
+                for (int level = 0; level < depth; level++) {
+                    topic.append(level == 0 ? "" : "/").append(segments[random.nextInt(4)]);
+                }
+                assertEquals(topic.toString(), bruteForce(filters, topic.toString()),
+                    resolve(router, topic.toString()));
+            }
+        }
+    }
+
+    /** Ranks every matching filter level by level: literal, then +, then #; a filter that ends ranks first. */
+    private static int bruteForce(Map<String, Integer> filters, String topic) {
+        String[] topicLevels = topic.split("/", -1);
+        String bestFilter = null;
+        for (String filter : filters.keySet()) {
+            if (matches(filter.split("/", -1), topicLevels)
+                    && (bestFilter == null || compareRank(filter, bestFilter) < 0)) {
+                bestFilter = filter;
+            }
+        }
+        return bestFilter == null ? FALLBACK.priority : filters.get(bestFilter);
+    }
+
+    private static boolean matches(String[] filter, String[] topic) {
+        for (int i = 0; i < filter.length; i++) {
+            if ("#".equals(filter[i])) {
+                return true;
+            }
+            if (i >= topic.length || !("+".equals(filter[i]) || filter[i].equals(topic[i]))) {
+                return false;
+            }
+        }
+        return filter.length == topic.length;
+    }
+
+    private static int compareRank(String a, String b) {
+        int[] ra = rank(a);
+        int[] rb = rank(b);
+        for (int i = 0; i < Math.min(ra.length, rb.length); i++) {
+            if (ra[i] != rb[i]) {
+                return Integer.compare(ra[i], rb[i]);
+            }
+        }
+        return Integer.compare(ra.length, rb.length);
+    }
+
+    private static int[] rank(String filter) {
+        return Arrays.stream(filter.split("/", -1))
+            .mapToInt(level -> "#".equals(level) ? 2 : "+".equals(level) ? 1 : 0).toArray();
+    }
+}